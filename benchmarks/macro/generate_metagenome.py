@@ -0,0 +1,104 @@
+#!/usr/bin/env python3
+"""
+Generates synthetic metagenomes for scaling benchmarks.
+
+A pool of random genomes is shared by all samples. Samples are split into groups, every group has its own
+abundance profile (log-normal abundances with the given skew over a group-specific permutation of genomes),
+samples in a group are noisy copies of the group profile. Reads are sampled uniformly from genomes
+(both strands) with substitution errors.
+
+Output: <out>/<sample>.fastq files, <out>/classes.tsv (sample groups in the format of kmers-color tool)
+and <out>/manifest.json with generation parameters and reads/bases counts.
+"""
+
+import argparse
+import json
+import math
+import os
+import random
+
+NUCLEOTIDES = 'ACGT'
+COMPLEMENT = str.maketrans('ACGT', 'TGCA')
+GROUPS = ['nonIBD', 'UC', 'CD']
+
+
+def parse_args(args=None):
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('-o', '--out', required=True, help='output directory')
+    parser.add_argument('--genomes', type=int, default=20, help='number of genomes in the pool')
+    parser.add_argument('--genome-length', type=int, default=200000, help='length of every genome')
+    parser.add_argument('--samples', type=int, default=6, help='number of samples')
+    parser.add_argument('--groups', type=int, default=2, choices=[1, 2, 3], help='number of sample groups')
+    parser.add_argument('--reads', type=int, default=100000, help='number of reads per sample')
+    parser.add_argument('--read-length', type=int, default=150)
+    parser.add_argument('--abundance-skew', type=float, default=1.0,
+                        help='sigma of log-normal abundances, 0 means equal abundances')
+    parser.add_argument('--error-rate', type=float, default=0.005, help='substitution error rate per base')
+    parser.add_argument('--seed', type=int, default=42)
+    return parser.parse_args(args)
+
+
+def random_genome(length, rnd):
+    return ''.join(rnd.choice(NUCLEOTIDES) for _ in range(length))
+
+
+def abundances(genomes, skew, rnd):
+    order = list(range(genomes))
+    rnd.shuffle(order)
+    values = [0.0] * genomes
+    for i in order:
+        values[i] = math.exp(rnd.gauss(0, skew)) if skew > 0 else 1.0
+    return values
+
+
+def add_errors(read, error_rate, rnd):
+    if error_rate <= 0:
+        return read
+    chars = list(read)
+    for i in range(len(chars)):
+        if rnd.random() < error_rate:
+            chars[i] = rnd.choice(NUCLEOTIDES.replace(chars[i], ''))
+    return ''.join(chars)
+
+
+def generate(opts):
+    rnd = random.Random(opts.seed)
+    os.makedirs(opts.out, exist_ok=True)
+
+    genomes = [random_genome(opts.genome_length, rnd) for _ in range(opts.genomes)]
+    group_profiles = [abundances(opts.genomes, opts.abundance_skew, rnd) for _ in range(opts.groups)]
+    quality = 'I' * opts.read_length
+
+    samples = []
+    for s in range(opts.samples):
+        group = s % opts.groups
+        name = 'sample_%d_%s' % (s + 1, GROUPS[group])
+        profile = [a * math.exp(rnd.gauss(0, 0.2)) for a in group_profiles[group]]
+        chosen = rnd.choices(range(opts.genomes), weights=profile, k=opts.reads)
+
+        with open(os.path.join(opts.out, name + '.fastq'), 'w') as out:
+            for r, g in enumerate(chosen):
+                pos = rnd.randrange(opts.genome_length - opts.read_length + 1)
+                read = genomes[g][pos:pos + opts.read_length]
+                if rnd.random() < 0.5:
+                    read = read.translate(COMPLEMENT)[::-1]
+                read = add_errors(read, opts.error_rate, rnd)
+                out.write('@%s_%d\n%s\n+\n%s\n' % (name, r, read, quality))
+        samples.append({'name': name, 'group': GROUPS[group], 'file': name + '.fastq',
+                        'reads': opts.reads, 'bases': opts.reads * opts.read_length})
+
+    with open(os.path.join(opts.out, 'classes.tsv'), 'w') as out:
+        out.write('row\tsampleID\tgroup\n')
+        for i, sample in enumerate(samples):
+            out.write('%d\t%s\t%s\n' % (i + 1, sample['name'], sample['group']))
+
+    manifest = {'parameters': vars(opts), 'samples': samples,
+                'total_reads': sum(s['reads'] for s in samples),
+                'total_bases': sum(s['bases'] for s in samples)}
+    with open(os.path.join(opts.out, 'manifest.json'), 'w') as out:
+        json.dump(manifest, out, indent=2)
+    return manifest
+
+
+if __name__ == '__main__':
+    generate(parse_args())
@@ -0,0 +1,233 @@
+#!/usr/bin/env python3
+"""
+End-to-end scaling benchmark of metafast pipelines on synthetic metagenomes.
+
+Every pipeline is run for all combinations of threads (-p) and memory (-m) values in a fresh working directory.
+For every run wall time, peak RSS, time of every top-level tool step
+(taken from the --trace-file timeline) and throughput in input reads and bases per second are reported.
+The report is saved as JSON.
+
+Peak RSS is the peak of the summed RSS of the launched process and all its descendants (e.g. metafast.sh and the JVM)
+sampled every 0.1 s if psutil is installed. Otherwise it is RSS of the largest single process of the tree
+as reported by the kernel on its termination.
+
+Example:
+    benchmarks/macro/scaling_benchmark.py --metafast out/metafast.jar --generate --reads 200000 \\
+        -p 1 2 4 8 -m 4G 8G -o scaling-report.json
+"""
+
+import argparse
+import json
+import os
+import platform
+import shutil
+import subprocess
+import sys
+import time
+
+try:
+    import psutil
+except ImportError:
+    psutil = None
+
+sys.path.insert(0, os.path.dirname(os.path.abspath(__file__)))
+import generate_metagenome
+
+PIPELINES = ['matrix-builder', 'unique-features', 'component-cutter-color']
+
+
+def parse_args():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('--metafast', default='out/metafast.jar', help='metafast.jar or metafast.sh')
+    parser.add_argument('--data', default='synthetic-metagenome', help='directory with generated data')
+    parser.add_argument('--generate', action='store_true',
+                        help='(re)generate data, generator options below are used only with this flag')
+    parser.add_argument('--work', default='scaling-work', help='directory for working directories of runs')
+    parser.add_argument('-o', '--report', default='scaling-report.json')
+    parser.add_argument('--pipelines', nargs='+', default=PIPELINES, choices=PIPELINES)
+    parser.add_argument('-p', '--threads', nargs='+', type=int, default=[1, 2, 4])
+    parser.add_argument('-m', '--memory', nargs='+', default=['2G'])
+    parser.add_argument('-k', type=int, default=31)
+    parser.add_argument('--repeats', type=int, default=1)
+    parser.add_argument('--keep-work', action='store_true', help="don't remove working directories of runs")
+
+    generator = parser.add_argument_group('generator options')
+    generator.add_argument('--genomes', type=int, default=20)
+    generator.add_argument('--genome-length', type=int, default=200000)
+    generator.add_argument('--samples', type=int, default=6)
+    generator.add_argument('--groups', type=int, default=2, choices=[1, 2, 3])
+    generator.add_argument('--reads', type=int, default=100000)
+    generator.add_argument('--read-length', type=int, default=150)
+    generator.add_argument('--abundance-skew', type=float, default=1.0)
+    generator.add_argument('--error-rate', type=float, default=0.005)
+    generator.add_argument('--seed', type=int, default=42)
+    return parser.parse_args()
+
+
+def launcher(metafast, memory):
+    if metafast.endswith('.jar'):
+        return ['java', '-Xmx' + memory, '-Xms' + memory, '-jar', metafast]
+    return [metafast, '-m', memory]
+
+
+def pipeline_commands(pipeline, k, manifest, data, work):
+    """
+    :return: list of (stage name, metafast arguments), every stage is run in <work>/<stage name> directory
+    """
+    reads = [os.path.join(data, s['file']) for s in manifest['samples']]
+    groups = sorted(set(s['group'] for s in manifest['samples']))
+
+    if pipeline == 'matrix-builder':
+        return [('matrix-builder', ['-t', 'matrix-builder', '-k', k, '-i'] + reads)]
+
+    if pipeline == 'unique-features':
+        positive = [os.path.join(data, s['file']) for s in manifest['samples'] if s['group'] == groups[0]]
+        negative = [os.path.join(data, s['file']) for s in manifest['samples'] if s['group'] != groups[0]]
+        if not negative:
+            raise ValueError('unique-features pipeline needs at least two groups of samples')
+        return [('unique-features', ['-t', 'unique-features', '-k', k, '-pos'] + positive + ['-neg'] + negative)]
+
+    if pipeline == 'component-cutter-color':
+        kmers = [os.path.join(work, 'kmer-counter-many', 'kmers', s['name'] + '.kmers.bin')
+                 for s in manifest['samples']]
+        colored = os.path.join(work, 'colored-kmers.bin')
+        return [('kmer-counter-many', ['-t', 'kmer-counter-many', '-k', k, '-i'] + reads),
+                ('kmers-color', ['-t', 'kmers-color', '-k', k, '-cs', '3', '-kf'] + kmers +
+                 ['-cf', os.path.join(data, 'classes.tsv'), '-o', colored]),
+                ('component-cutter-color', ['-t', 'component-cutter-color', '-k', k, '-ckf', colored,
+                                            '-i'] + kmers)]
+    raise ValueError('Unknown pipeline ' + pipeline)
+
+
+def top_level_steps(trace_file):
+    """
+    :return: {name, seconds, steps} for the main tool, steps are its direct sub-tools with their times
+    """
+    if not os.path.exists(trace_file):
+        return None
+    with open(trace_file) as f:
+        events = [e for e in json.load(f)['traceEvents'] if e.get('ph') == 'X' and e.get('cat') == 'tool']
+    if not events:
+        return None
+    main = max(events, key=lambda e: e['dur'])
+    steps = []
+    for e in sorted(events, key=lambda e: e['ts']):
+        inside = e is not main and e['ts'] >= main['ts'] and e['ts'] + e['dur'] <= main['ts'] + main['dur']
+        nested = any(o is not main and o is not e and o['ts'] <= e['ts'] and
+                     e['ts'] + e['dur'] <= o['ts'] + o['dur'] and o['dur'] > e['dur'] for o in events)
+        if inside and not nested:
+            steps.append({'name': e['name'], 'seconds': e['dur'] / 1e6})
+    return {'name': main['name'], 'seconds': main['dur'] / 1e6, 'steps': steps}
+
+
+def tree_rss(process):
+    """
+    :return: summed RSS in bytes of the psutil process and all its descendants alive at the moment
+    """
+    rss = 0
+    try:
+        processes = [process] + process.children(recursive=True)
+    except psutil.Error:
+        return 0
+    for p in processes:
+        try:
+            rss += p.memory_info().rss
+        except psutil.Error:
+            pass    # finished meanwhile
+    return rss
+
+
+def run_stage(command, work, log_file):
+    """
+    Runs the command and waits for it.
+
+    :return: (exit code, wall time in seconds, peak RSS in bytes as described in the module docstring)
+    """
+    start = time.time()
+    with open(log_file, 'w') as log:
+        process = subprocess.Popen(command, cwd=work, stdin=subprocess.DEVNULL, stdout=log, stderr=subprocess.STDOUT)
+        polled_rss = 0
+        if psutil is not None:
+            tree = psutil.Process(process.pid)
+            while process.poll() is None:
+                polled_rss = max(polled_rss, tree_rss(tree))
+                time.sleep(0.1)
+            returncode = process.returncode
+        else:
+            # rusage of the waited child includes its waited-for descendants, but only as maximum over processes
+            _, status, usage = os.wait4(process.pid, 0)
+            returncode = os.WEXITSTATUS(status) if os.WIFEXITED(status) else -os.WTERMSIG(status)
+    wall = time.time() - start
+    if psutil is not None:
+        max_rss = polled_rss
+    else:
+        max_rss = usage.ru_maxrss * (1 if platform.system() == 'Darwin' else 1024)    # bytes on macOS, KB on Linux
+    return returncode, wall, max_rss
+
+
+def run(opts, manifest, pipeline, threads, memory, repeat):
+    work = os.path.abspath(os.path.join(opts.work, '%s_p%d_m%s_%d' % (pipeline, threads, memory, repeat)))
+    shutil.rmtree(work, ignore_errors=True)
+    os.makedirs(work)
+    data = os.path.abspath(opts.data)
+
+    result = {'pipeline': pipeline, 'threads': threads, 'memory': memory, 'repeat': repeat,
+              'success': True, 'wall_seconds': 0.0, 'peak_rss_bytes': 0, 'stages': []}
+    for i, (stage, args) in enumerate(pipeline_commands(pipeline, str(opts.k), manifest, data, work)):
+        trace = os.path.join(work, 'trace_%d.json' % i)
+        command = launcher(os.path.abspath(opts.metafast), memory) + \
+            ['-w', os.path.join(work, stage), '-p', str(threads), '--trace-file', trace] + args
+        code, wall, rss = run_stage(command, work, os.path.join(work, 'stage_%d.log' % i))
+        result['stages'].append({'name': stage, 'exit_code': code, 'wall_seconds': wall, 'peak_rss_bytes': rss,
+                                 'tool': top_level_steps(trace)})
+        result['wall_seconds'] += wall
+        result['peak_rss_bytes'] = max(result['peak_rss_bytes'], rss)
+        if code != 0:
+            result['success'] = False
+            break
+
+    if result['wall_seconds'] > 0:
+        result['reads_per_second'] = manifest['total_reads'] / result['wall_seconds']
+        result['bases_per_second'] = manifest['total_bases'] / result['wall_seconds']
+    if not opts.keep_work and result['success']:
+        shutil.rmtree(work, ignore_errors=True)
+    return result
+
+
+def main():
+    opts = parse_args()
+    if opts.generate or not os.path.exists(os.path.join(opts.data, 'manifest.json')):
+        print('Generating synthetic metagenome to %s...' % opts.data)
+        generator_args = ['-o', opts.data, '--genomes', str(opts.genomes), '--genome-length', str(opts.genome_length),
+                          '--samples', str(opts.samples), '--groups', str(opts.groups), '--reads', str(opts.reads),
+                          '--read-length', str(opts.read_length), '--abundance-skew', str(opts.abundance_skew),
+                          '--error-rate', str(opts.error_rate), '--seed', str(opts.seed)]
+        generate_metagenome.generate(generate_metagenome.parse_args(generator_args))
+    with open(os.path.join(opts.data, 'manifest.json')) as f:
+        manifest = json.load(f)
+
+    results = []
+    for pipeline in opts.pipelines:
+        for memory in opts.memory:
+            for threads in opts.threads:
+                for repeat in range(opts.repeats):
+                    r = run(opts, manifest, pipeline, threads, memory, repeat)
+                    results.append(r)
+                    print('%-24s -p %-3d -m %-5s %s wall = %8.1f s, peak RSS = %6d MB' %
+                          (pipeline, threads, memory, 'OK    ' if r['success'] else 'FAILED',
+                           r['wall_seconds'], r['peak_rss_bytes'] >> 20))
+
+    report = {'created': time.strftime('%Y-%m-%dT%H:%M:%S'),
+              'host': {'platform': platform.platform(), 'cpus': os.cpu_count()},
+              'metafast': os.path.abspath(opts.metafast),
+              'data': manifest,
+              'runs': results}
+    with open(opts.report, 'w') as f:
+        json.dump(report, f, indent=2)
+    print('Report saved to ' + opts.report)
+    if not all(r['success'] for r in results):
+        sys.exit(1)
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,54 @@
+package algo;
+
+import benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import structures.ConnectedComponent;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Breadth-first search over all components of a synthetic de Bruijn graph made of long chains.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComponentsBuilderBenchmark {
+
+    @Param({"31"})
+    int k;
+
+    @Param({"10000"})
+    int b2;
+
+    BigLong2ShortHashMap hm;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        hm = SyntheticData.genomesKmers(200, 5000, k, 5, 42);
+    }
+
+    /**
+     * Restores frequencies which are negated by bfs for visited k-mers.
+     */
+    @Setup(Level.Invocation)
+    public void restoreValues() {
+        for (int m = 0; m < hm.maps.length; m++) {
+            for (long pos = 0; pos < hm.maps[m].capacity(); pos++) {
+                short value = hm.maps[m].valueAt(pos);
+                if (value < 0) {
+                    hm.maps[m].put(hm.maps[m].keyAt(pos), (short) -value);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public List<ConnectedComponent> findAllComponents() {
+        return ComponentsBuilder.findAllComponents(hm, k, b2, 1);
+    }
+}
@@ -0,0 +1,62 @@
+package algo;
+
+import benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.genetics.dna.kmers.ShortKmer;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashMapOperationsBenchmark {
+    static final int KMERS = 1 << 16;
+
+    @Param({"31"})
+    int k;
+
+    BigLong2ShortHashMap hm;
+    ShortKmer[] kmers;
+
+    @Setup
+    public void setup() {
+        hm = SyntheticData.genomesKmers(100, 10000, k, 20, 42);
+        long[] present = new long[KMERS];
+        int i = 0;
+        for (int m = 0; m < hm.maps.length && i < KMERS; m++) {
+            for (long pos = 0; pos < hm.maps[m].capacity() && i < KMERS; pos++) {
+                if (hm.maps[m].valueAt(pos) > 0) {
+                    present[i++] = hm.maps[m].keyAt(pos);
+                }
+            }
+        }
+        kmers = new ShortKmer[i];
+        for (int j = 0; j < i; j++) {
+            kmers[j] = new ShortKmer(present[j], k);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public int getLeftNucleotide() {
+        int ans = 0;
+        for (ShortKmer kmer : kmers) {
+            ans += HashMapOperations.getLeftNucleotide(hm, kmer, 0);
+        }
+        return ans;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public int getRightNucleotide() {
+        int ans = 0;
+        for (ShortKmer kmer : kmers) {
+            ans += HashMapOperations.getRightNucleotide(hm, kmer, 0);
+        }
+        return ans;
+    }
+}
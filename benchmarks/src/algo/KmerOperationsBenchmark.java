@@ -0,0 +1,45 @@
+package algo;
+
+import benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KmerOperationsBenchmark {
+    static final int KMERS = 1 << 16;
+
+    @Param({"21", "31"})
+    int k;
+
+    long[] kmers;
+
+    @Setup
+    public void setup() {
+        kmers = SyntheticData.randomKmers(KMERS, k, 42);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public long rc() {
+        long ans = 0;
+        for (long kmer : kmers) {
+            ans ^= KmerOperations.rc(kmer, k);
+        }
+        return ans;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public void possibleNeighbours(Blackhole bh) {
+        for (long kmer : kmers) {
+            bh.consume(KmerOperations.possibleNeighbours(kmer, k));
+        }
+    }
+}
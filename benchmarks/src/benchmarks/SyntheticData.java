@@ -0,0 +1,89 @@
+package benchmarks;
+
+import ru.ifmo.genetics.dna.DnaTools;
+import ru.ifmo.genetics.dna.kmers.ShortKmer;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generators of synthetic data for benchmarks. All generators are deterministic for the given seed.
+ */
+public class SyntheticData {
+
+    public static String randomDna(int length, Random random) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(DnaTools.NUCLEOTIDES[random.nextInt(4)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return canonical representations of random k-mers
+     */
+    public static long[] randomKmers(int count, int k, long seed) {
+        Random random = new Random(seed);
+        long mask = (1L << (2 * k)) - 1;
+        long[] kmers = new long[count];
+        for (int i = 0; i < count; i++) {
+            kmers[i] = new ShortKmer(random.nextLong() & mask, k).toLong();
+        }
+        return kmers;
+    }
+
+    /**
+     * Fills the map with all k-mers of <code>genomes</code> random genomes of length <code>genomeLength</code>,
+     * so the de Bruijn graph consists of (mostly) <code>genomes</code> long chain components.
+     * Frequencies are random from 1 to <code>maxFreq</code>.
+     */
+    public static BigLong2ShortHashMap genomesKmers(int genomes, int genomeLength, int k, int maxFreq, long seed) {
+        Random random = new Random(seed);
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(6, 12);
+        for (int g = 0; g < genomes; g++) {
+            ShortKmer kmer = new ShortKmer(randomDna(k, random));
+            for (int i = k; i <= genomeLength; i++) {
+                hm.put(kmer.toLong(), (short) (1 + random.nextInt(maxFreq)));
+                kmer.shiftRight((byte) random.nextInt(4));
+            }
+        }
+        return hm;
+    }
+
+    /**
+     * @return k-mers file contents in the format of <code>.kmers.bin</code> files (long k-mer, short frequency)
+     */
+    public static byte[] kmersFileBytes(int kmers, int k, long seed) {
+        Random random = new Random(seed);
+        long[] values = randomKmers(kmers, k, seed);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(kmers * 10);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (long kmer : values) {
+                out.writeLong(kmer);
+                out.writeShort(1 + random.nextInt(100));
+            }
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return features vector with geometrically distributed values, about <code>zeroFraction</code> of them are zeros
+     */
+    public static double[] featuresVector(int length, double zeroFraction, long seed) {
+        Random random = new Random(seed);
+        double[] vector = new double[length];
+        for (int i = 0; i < length; i++) {
+            if (random.nextDouble() >= zeroFraction) {
+                vector[i] = 1 + (long) (-Math.log(1 - random.nextDouble()) * 100);
+            }
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,44 @@
+package io;
+
+import benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a work range of a <code>.kmers.bin</code> file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KmersLoadWorkerBenchmark {
+    static final int KMERS = IOUtils.KMERS_WORK_RANGE_SIZE / KmersLoadWorker.KMER_RECORD_SIZE;
+
+    byte[] range;
+    SummingWorker worker;
+
+    static class SummingWorker extends KmersLoadWorker {
+        long sum = 0;
+
+        @Override
+        public void processKmer(long kmer, short freq) {
+            sum += kmer ^ freq;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        range = SyntheticData.kmersFileBytes(KMERS, 31, 42);
+        worker = new SummingWorker();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public long process() {
+        worker.process(range, range.length);
+        return worker.sum;
+    }
+}
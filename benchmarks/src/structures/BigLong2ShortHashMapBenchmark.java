@@ -0,0 +1,64 @@
+package structures;
+
+import benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>addAndBound</code> as used by k-mers counting workers: all threads add k-mers to one shared map.
+ * K-mers are drawn from a fixed pool, so most additions hit already present keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BigLong2ShortHashMapBenchmark {
+    static final int KMERS = 1 << 16;
+    static final int POOL = 1 << 20;
+
+    @State(Scope.Benchmark)
+    public static class SharedMap {
+        BigLong2ShortHashMap hm;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            hm = new BigLong2ShortHashMap(6, 12, true);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadKmers {
+        long[] kmers;
+
+        @Setup
+        public void setup() {
+            long[] pool = SyntheticData.randomKmers(POOL, 31, 42);
+            long[] indices = SyntheticData.randomKmers(KMERS, 31, Thread.currentThread().getId());
+            kmers = new long[KMERS];
+            for (int i = 0; i < KMERS; i++) {
+                kmers[i] = pool[(int) ((indices[i] & Long.MAX_VALUE) % POOL)];
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(KMERS)
+    public void addAndBoundSingleThread(SharedMap map, ThreadKmers kmers) {
+        for (long kmer : kmers.kmers) {
+            map.hm.addAndBound(kmer, (short) 1);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(KMERS)
+    public void addAndBoundContended(SharedMap map, ThreadKmers kmers) {
+        for (long kmer : kmers.kmers) {
+            map.hm.addAndBound(kmer, (short) 1);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package structures;
+
+import benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColoredKmersBenchmark {
+    static final int KMERS = 1 << 16;
+
+    @Param({"2", "3"})
+    int colors;
+
+    ColoredKmers coloredKmers;
+    long[] kmers;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        kmers = SyntheticData.randomKmers(KMERS, 31, 42);
+        coloredKmers = new ColoredKmers(colors, 4);
+        for (long kmer : kmers) {
+            for (int c = 0; c < colors; c++) {
+                if (random.nextBoolean()) {
+                    coloredKmers.addColor(kmer, c, 1 + random.nextInt(100));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KMERS)
+    public int getColor() {
+        int ans = 0;
+        for (long kmer : kmers) {
+            ans += coloredKmers.getColor(kmer);
+        }
+        return ans;
+    }
+}
@@ -0,0 +1,31 @@
+package tools;
+
+import benchmarks.SyntheticData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BrayCurtisBenchmark {
+
+    @Param({"10000", "1000000"})
+    int components;
+
+    double[] vector1, vector2;
+
+    @Setup
+    public void setup() {
+        vector1 = SyntheticData.featuresVector(components, 0.5, 1);
+        vector2 = SyntheticData.featuresVector(components, 0.5, 2);
+    }
+
+    @Benchmark
+    public double brayCurtisDistance() {
+        return DistanceMatrixCalculatorMain.brayCurtisDistance(vector1, vector2);
+    }
+}
@@ -1,10 +1,16 @@
+import io.Metrics;
+import io.ResultCache;
+import io.Tracer;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.StringParameterBuilder;
 import ru.ifmo.genetics.utils.tool.parameters.ParameterDescription;
+import structures.KmersMapBackend;
 import tools.DistanceMatrixBuilderMain;
 
+import java.io.File;
+
 public class Runner extends ru.ifmo.genetics.Runner {
 
     public static final ParameterDescription<String> toolParameterDescr = new StringParameterBuilder("tool")
@@ -22,6 +28,11 @@ public class Runner extends ru.ifmo.genetics.Runner {
     static {
         ru.ifmo.genetics.Runner.toolParameter.replaceDescription(toolParameterDescr);
         ru.ifmo.genetics.Runner.memoryParameter.replaceDescription(memoryParameterDescr);
+        Tool.launchOptions.add(ResultCache.cacheDirParameter);
+        Tool.launchOptions.add(ResultCache.cacheSizeParameter);
+        Tool.launchOptions.add(Metrics.intervalParameter);
+        Tool.launchOptions.add(Tracer.traceFileParameter);
+        Tool.launchOptions.add(KmersMapBackend.backendParameter);
     }
 
     Runner() {
@@ -74,6 +85,17 @@ public class Runner extends ru.ifmo.genetics.Runner {
             return true;
         }
         System.setProperty("java.awt.headless", "true");    // to use lightweight graphics in HeatMapMaker
+
+        if (containsOption(args, getOptKeys(Metrics.intervalParameter))) {
+            String workDir = containsOption(args, getOptKeys(Tool.workDirParameter)) ?
+                    getOptionValue(args, getOptKeys(Tool.workDirParameter)) :
+                    Tool.workDirParameter.description.defaultValue.get();
+            Metrics.start(new File(workDir),
+                    Integer.parseInt(getOptionValue(args, getOptKeys(Metrics.intervalParameter))));
+        }
+        if (containsOption(args, getOptKeys(Tracer.traceFileParameter))) {
+            Tracer.start(new File(getOptionValue(args, getOptKeys(Tracer.traceFileParameter))));
+        }
         return false;
     }
 
@@ -3,7 +3,6 @@ package algo;
 import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.statistics.Timer;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
 import ru.ifmo.genetics.utils.Misc;
@@ -43,7 +42,7 @@ public class ColoredComponentBuilder {
         this.forEachColorCNT = forEachColorCNT;
     }
 
-    public static List<ConnectedSetComponent> splitStrategy(BigLong2ShortHashMap hm, ColoredKmers coloredKmers,
+    public static List<ConnectedSetComponent> splitStrategy(Long2ShortHashMapInterface hm, ColoredKmers coloredKmers,
                                                             int k, int b1, int b2,
                                                             String statFP, Logger logger,
                                                             int availableProcessors, SPLIT_MODE mode, START_KMER_MODE startMode, BFS_MODE bfsMode, int forEachColorCNT, double minForGreedStart, COMPONENT_SIZES_MODE res_mode) throws FileNotFoundException {
@@ -275,7 +274,7 @@ public class ColoredComponentBuilder {
     }
 
 
-    private static int getStartKmer(BigLong2ShortHashMap hm, int prevInd, List<Long> colorsQueue, int maxvalue) {
+    private static int getStartKmer(Long2ShortHashMapInterface hm, int prevInd, List<Long> colorsQueue, int maxvalue) {
         int res = prevInd;
 
         while (true) {
@@ -290,7 +289,7 @@ public class ColoredComponentBuilder {
     }
 
 
-    private static List<Pair<ConnectedSetComponent, Integer>> findComponentsGreed(BigLong2ShortHashMap hm, ColoredKmers coloredKmers, int k, int curFreqThreshold, SPLIT_MODE mode, int forEachColorMax, BFS_MODE bfsMode, double minForStart) {
+    private static List<Pair<ConnectedSetComponent, Integer>> findComponentsGreed(Long2ShortHashMapInterface hm, ColoredKmers coloredKmers, int k, int curFreqThreshold, SPLIT_MODE mode, int forEachColorMax, BFS_MODE bfsMode, double minForStart) {
         System.out.println("find components greed start: ");
         List<Pair<ConnectedSetComponent, Integer>> ans = new ArrayList<>();
         LongArrayFIFOQueue queue = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size() / 2));
@@ -336,7 +335,7 @@ public class ColoredComponentBuilder {
         return ans;
     }
 
-    private static List<Pair<ConnectedSetComponent, Integer>> findBestComponents(BigLong2ShortHashMap hm, ColoredKmers coloredKmers, int k, int curFreqThreshold, SPLIT_MODE mode, int forEachColor, BFS_MODE bfsMode) {
+    private static List<Pair<ConnectedSetComponent, Integer>> findBestComponents(Long2ShortHashMapInterface hm, ColoredKmers coloredKmers, int k, int curFreqThreshold, SPLIT_MODE mode, int forEachColor, BFS_MODE bfsMode) {
         System.out.println("find best components start: ");
         List<Pair<ConnectedSetComponent, Integer>> ans = new ArrayList<>();
         LongArrayFIFOQueue queue = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size() / 2));
@@ -384,7 +383,7 @@ public class ColoredComponentBuilder {
     }
 
 
-    private static List<Pair<ConnectedSetComponent, Integer>> findAllComponents(BigLong2ShortHashMap hm, ColoredKmers coloredKmers, int k, int curFreqThreshold, SPLIT_MODE mode, BFS_MODE bfsMode) {
+    private static List<Pair<ConnectedSetComponent, Integer>> findAllComponents(Long2ShortHashMapInterface hm, ColoredKmers coloredKmers, int k, int curFreqThreshold, SPLIT_MODE mode, BFS_MODE bfsMode) {
         System.out.println("find all components start: ");
         List<Pair<ConnectedSetComponent, Integer>> ans = new ArrayList<>();
         LongArrayFIFOQueue queue = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size() / 2));
@@ -420,7 +419,7 @@ public class ColoredComponentBuilder {
         return ans;
     }
 
-    private void run(BigLong2ShortHashMap hm, ColoredKmers coloredKmers, SPLIT_MODE mode, ComponentColoredCutter.START_KMER_MODE startMode, ComponentColoredCutter.BFS_MODE bfsMode, double minForGreedStart, COMPONENT_SIZES_MODE res_mode) throws FileNotFoundException {
+    private void run(Long2ShortHashMapInterface hm, ColoredKmers coloredKmers, SPLIT_MODE mode, ComponentColoredCutter.START_KMER_MODE startMode, ComponentColoredCutter.BFS_MODE bfsMode, double minForGreedStart, COMPONENT_SIZES_MODE res_mode) throws FileNotFoundException {
         Tool.info(logger, "First iteration...");
         Timer t = new Timer();
 
@@ -4,28 +4,39 @@ import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import structures.SequenceComponent;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Created by -- on 03.02.2020.
  */
-public class ComponentFromSequence implements Runnable {
+public class ComponentFromSequence implements Callable<List<SequenceComponent>> {
     private final int k;
-    private final Dna dna;
-    private final List<SequenceComponent> components;
+    private final List<Dna> sequences;
 
-    public ComponentFromSequence(List<SequenceComponent> components, Dna dna, int k) {
+    /**
+     * @param sequences batch of sequences, one component is built for every sequence
+     */
+    public ComponentFromSequence(List<Dna> sequences, int k) {
         this.k = k;
-        this.dna = dna;
-        this.components = components;
+        this.sequences = sequences;
     }
 
     @Override
-    public void run() {
-        SequenceComponent comp = new SequenceComponent();
+    public List<SequenceComponent> call() {
+        List<SequenceComponent> components = new ArrayList<SequenceComponent>(sequences.size());
+        for (Dna dna : sequences) {
+            components.add(build(dna, k));
+        }
+        return components;
+    }
+
+    public static SequenceComponent build(Dna dna, int k) {
+        SequenceComponent comp = new SequenceComponent(Math.max(dna.length() - k + 1, 0));
         for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
             comp.add(kmer.toLong());
         }
-        components.add(comp);
+        return comp;
     }
 }
@@ -0,0 +1,35 @@
+package algo;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import structures.ConnectedComponent;
+import structures.Sequence;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Builds unitigs (maximal non-branching paths) of the de Bruijn graph of a single component.<br></br>
+ * <br></br>
+ * The graph is stored in a small hash map with all k-mers of the component with frequency 1,
+ * so the unitigs are the same as sequences built by seq-builder from k-mers of the component.
+ */
+public class ComponentUnitigs {
+
+    public static List<Sequence> build(ConnectedComponent component, int k) {
+        int logCapacity = 4;
+        while ((1L << logCapacity) < 2 * component.size) {
+            logCapacity++;
+        }
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(0, logCapacity);    // single small map
+        for (long kmer : component.kmers) {
+            hm.addAndBound(kmer, (short) 1);
+        }
+
+        Deque<Sequence> unitigs = new ArrayDeque<Sequence>();
+        new AddSequencesShiftingRightTask(hm, hm.maps[0], k, 0, k, unitigs, new LongOpenHashSet()).run();
+        return new ArrayList<Sequence>(unitigs);
+    }
+}
@@ -1,5 +1,6 @@
 package algo;
 
+import io.Tracer;
 import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.executors.NonBlockingQueueExecutor;
@@ -21,7 +22,7 @@ import static io.IOUtils.withP;
 public class ComponentsBuilder {
 
 
-    public static List<ConnectedComponent> splitStrategy(BigLong2ShortHashMap hm,
+    public static List<ConnectedComponent> splitStrategy(Long2ShortHashMapInterface hm,
                                                          int k, int b1, int b2,
                                                          String statFP, Logger logger,
                                                          int availableProcessors) throws FileNotFoundException {
@@ -55,13 +56,19 @@ public class ComponentsBuilder {
 
 
 
-    private void run(BigLong2ShortHashMap hm) throws FileNotFoundException {
+    private void run(Long2ShortHashMapInterface hm) throws FileNotFoundException {
         Tool.info(logger, "First iteration...");
         Timer t = new Timer();
+        Tracer.Span span = Tracer.begin("first iteration", "components");
 
         long hmSize = hm.size();
         int curFreqThreshold = 1;  // current component is formed of k-mers with frequency >= 1
-        List<ConnectedComponent> newComps = findAllComponents(hm, k, b2, curFreqThreshold);
+        List<ConnectedComponent> newComps;
+        try {
+            newComps = findAllComponents(hm, k, b2, curFreqThreshold);
+        } finally {
+            span.end();
+        }
 
         int small = 0, ok = 0, big = 0;
         long smallK = 0, okK = 0;
@@ -110,23 +117,27 @@ public class ComponentsBuilder {
         if (big != 0) {
             Tool.info(logger, "Following iterations...");
             t.start();
+            span = Tracer.begin("following iterations", "components");
+            try {
+                for (ConnectedComponent comp : toProcess) {
+                    executor.addTask(new Task(comp));
+                }
+                toProcess = null;
 
-            for (ConnectedComponent comp : toProcess) {
-                executor.addTask(new Task(comp));
-            }
-            toProcess = null;
-
-            ConnectedComponent biggest = ((Task) executor.tasks.peek()).component;
-            Tool.debug(logger, "Biggest component has " +
-                    withP(biggest.size, hmSize, "kmers", "of initial hm size"));
-            Tool.debug(logger, "Saved to new hm from it = " +
-                    withP(biggest.nextHM.size(), biggest.size, "kmers", "of its size"));
-            biggest = null;
+                ConnectedComponent biggest = ((Task) executor.tasks.peek()).component;
+                Tool.debug(logger, "Biggest component has " +
+                        withP(biggest.size, hmSize, "kmers", "of initial hm size"));
+                Tool.debug(logger, "Saved to new hm from it = " +
+                        withP(biggest.nextHM.size(), biggest.size, "kmers", "of its size"));
+                biggest = null;
 
-            executor.startWorkers();
+                executor.startWorkers();
 
-            executor.waitForTasksToFinish();
-            executor.shutdownAndAwaitTermination();
+                executor.waitForTasksToFinish();
+                executor.shutdownAndAwaitTermination();
+            } finally {
+                span.end();
+            }
 
 
             Tool.info(logger, "Found " + NumUtils.groupDigits(ans.size() - ansFirst) + " good components " +
@@ -161,20 +172,25 @@ public class ComponentsBuilder {
         @Override
         public void run() {
             int curFreqThreshold = component.usedFreqThreshold + 1;
-
-            List<ConnectedComponent> newComps =
-                    findAllComponents(component.nextHM, k, b2, curFreqThreshold);
-
-            for (ConnectedComponent comp : newComps) {
-                if (comp.size < b1) {
-                    // skipping
-                } else if (comp.size <= b2) {
-                    synchronized (ans) {
-                        ans.add(comp);
+            Tracer.Span span = Tracer.begin("splitting component", "components",
+                    "size", component.size, "freqThreshold", curFreqThreshold);
+            try {
+                List<ConnectedComponent> newComps =
+                        findAllComponents(component.nextHM, k, b2, curFreqThreshold);
+
+                for (ConnectedComponent comp : newComps) {
+                    if (comp.size < b1) {
+                        // skipping
+                    } else if (comp.size <= b2) {
+                        synchronized (ans) {
+                            ans.add(comp);
+                        }
+                    } else {
+                        executor.addTask(new Task(comp));
                     }
-                } else {
-                    executor.addTask(new Task(comp));
                 }
+            } finally {
+                span.end();
             }
         }
     }
@@ -195,7 +211,7 @@ public class ComponentsBuilder {
     /**
      * Assuming running in one thread for current hm!
      */
-    private static List<ConnectedComponent> findAllComponents(Long2ShortHashMapInterface hm,
+    static List<ConnectedComponent> findAllComponents(Long2ShortHashMapInterface hm,
                                                    int k, int b2, int curFreqThreshold) {
         List<ConnectedComponent> ans = new ArrayList<ConnectedComponent>();
         LongArrayFIFOQueue queue = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size()/2));
@@ -271,7 +287,7 @@ public class ComponentsBuilder {
 
 
     private static boolean dfs(long startKmer, long parentKmer, Long2ShortHashMapInterface hm,
-                               BigLong2ShortHashMap pivot, int k, List<Long> kmersOnPath) {
+                               Long2ShortHashMapInterface pivot, int k, List<Long> kmersOnPath) {
         boolean foundPivot = false;
         long kmer = startKmer;
         long prev = parentKmer;
@@ -3,7 +3,6 @@ package algo;
 import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.statistics.Timer;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
 import ru.ifmo.genetics.utils.Misc;
@@ -20,8 +19,8 @@ import java.util.*;
  */
 public class ComponentsBuilderAroundPivot {
 
-    public static List<ConnectedComponent> splitStrategy(BigLong2ShortHashMap hm,
-                                                         int k, BigLong2ShortHashMap pivot,
+    public static List<ConnectedComponent> splitStrategy(Long2ShortHashMapInterface hm,
+                                                         int k, Long2ShortHashMapInterface pivot,
                                                          String statFP, Logger logger) throws FileNotFoundException {
 
         ComponentsBuilderAroundPivot builder = new ComponentsBuilderAroundPivot(k, statFP, logger);
@@ -42,7 +41,7 @@ public class ComponentsBuilderAroundPivot {
         this.logger = logger;
     }
 
-    private void run(BigLong2ShortHashMap hm, BigLong2ShortHashMap pivot) throws FileNotFoundException {
+    private void run(Long2ShortHashMapInterface hm, Long2ShortHashMapInterface pivot) throws FileNotFoundException {
         Timer t = new Timer();
 
         // current component is formed of k-mers with frequency >= 1
@@ -87,7 +86,7 @@ public class ComponentsBuilderAroundPivot {
      * Assuming running in one thread for current hm!
      */
     private static List<ConnectedComponent> findAllComponents(Long2ShortHashMapInterface hm,
-                                                              int k, BigLong2ShortHashMap pivot) {
+                                                              int k, Long2ShortHashMapInterface pivot) {
         List<ConnectedComponent> ans = new ArrayList<ConnectedComponent>();
         LongArrayFIFOQueue queue = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size()/2));
         LongArrayFIFOQueue parent = new LongArrayFIFOQueue((int) Math.min(1 << 16, hm.size()/2));
@@ -111,7 +110,7 @@ public class ComponentsBuilderAroundPivot {
      */
     private static ConnectedComponent bfs(Long2ShortHashMapInterface hm, long startKmer,
                                           LongArrayFIFOQueue queue,
-                                          LongArrayFIFOQueue parent, int k, BigLong2ShortHashMap pivot) {
+                                          LongArrayFIFOQueue parent, int k, Long2ShortHashMapInterface pivot) {
         ConnectedComponent comp = new ConnectedComponent();
 
         queue.clear();
@@ -347,7 +346,7 @@ public class ComponentsBuilderAroundPivot {
 
 
     private static boolean dfs(long startKmer, long parentKmer, Long2ShortHashMapInterface hm,
-                               BigLong2ShortHashMap pivot, int k, List<Long> kmersOnPath) {
+                               Long2ShortHashMapInterface pivot, int k, List<Long> kmersOnPath) {
         boolean foundPivot = false;
         long kmer = startKmer;
         long prev = parentKmer;
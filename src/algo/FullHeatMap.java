@@ -3,6 +3,8 @@ package algo;
 import org.w3c.dom.Document;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -11,23 +13,36 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
+import java.awt.image.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.Vector;
 
 /**
  * Constructing full heat map with dendrogram for n objects.
+ * <p>
+ * Large heat maps can be written to PNG file in horizontal strips (see {@link #writeFullHeatMap}),
+ * so that the whole image is never stored in memory. If the grid doesn't fit into <code>maxGridSize</code>
+ * pixels, cells are shrunk and several objects are aggregated into one cell.
  */
 public class FullHeatMap {
 
     // ===========================   Fixed params   ===========================
 
-    final int cellSize = 40;
-    final int borderLineSize = 2;
+    public static final int DEFAULT_MAX_GRID_SIZE = Integer.MAX_VALUE;
+
+    final int cellSize;
+    final int borderLineSize;
     final int gridSize;
+    /**
+     * Number of objects aggregated into one cell (in one dimension), and number of cells in a grid row
+     */
+    public final int group;
+    final int cells;
+    final boolean drawNames;
 
     final int dx_before_dendrogram = 100;
     final int dx_for_dendrogram;
@@ -40,6 +55,8 @@ public class FullHeatMap {
     final int dx_scale = 300;
     final int dy_scale = 30;
 
+    final int stripSize = 1 << 24;  // 16 Mb of pixels data in one strip
+
 
     public Color lowColor = Color.WHITE;
     public Color highColor = new Color(12, 61, 138);
@@ -72,13 +89,26 @@ public class FullHeatMap {
     }
 
     public FullHeatMap(double[][] distMatrix, double low, double high, String[] names, boolean invertColors, String[] colors) {
+        this(distMatrix, low, high, names, invertColors, colors, DEFAULT_MAX_GRID_SIZE);
+    }
+
+    public FullHeatMap(double[][] distMatrix, double low, double high, String[] names, boolean invertColors,
+                       String[] colors, int maxGridSize) {
         n = distMatrix.length;
         this.distMatrix = distMatrix;
         this.low = low;
         this.high = high;
         this.names = names;
         this.colors = colors;
-        gridSize = n * cellSize + (n + 1) * borderLineSize;
+
+        int[] sizes = getCellSizes(n, maxGridSize);
+        cellSize = sizes[0];
+        borderLineSize = sizes[1];
+        group = sizes[2];
+        cells = (n + group - 1) / group;
+        gridSize = cells * cellSize + (cells + 1) * borderLineSize;
+        drawNames = group == 1 && cellSize >= font.getSize();
+
         dx_for_dendrogram = getDendrogramSize(n);
         perm = new int[n];
         for (int i = 0; i < n; i++) {
@@ -114,44 +144,123 @@ public class FullHeatMap {
         return cs;
     }
 
+    /**
+     * @return {cell size, border line size, objects per cell} for the grid to fit into maxGridSize pixels.
+     */
+    static int[] getCellSizes(int n, int maxGridSize) {
+        int cellSize = 40;
+        int borderLineSize = 2;
+        if ((long) n * (cellSize + borderLineSize) + borderLineSize <= maxGridSize) {
+            return new int[]{cellSize, borderLineSize, 1};
+        }
+        // downsampling: no grid lines, at least one pixel per cell, several objects per cell if needed
+        cellSize = Math.max(1, maxGridSize / Math.max(n, 1));
+        int group = (n + maxGridSize - 1) / maxGridSize;
+        return new int[]{cellSize, 0, group};
+    }
+
+    /**
+     * Average value over the block of objects shown in the cell (row, column), in perm order.
+     */
+    static double getCellValue(double[][] distMatrix, int[] perm, int group, int row, int column) {
+        if (group == 1) {
+            return distMatrix[perm[row]][perm[column]];
+        }
+        int n = perm.length;
+        int rowTo = Math.min(n, (row + 1) * group);
+        int columnTo = Math.min(n, (column + 1) * group);
+        double sum = 0;
+        for (int i = row * group; i < rowTo; i++) {
+            double[] line = distMatrix[perm[i]];
+            for (int j = column * group; j < columnTo; j++) {
+                sum += line[perm[j]];
+            }
+        }
+        return sum / (rowTo - row * group) / (columnTo - column * group);
+    }
+
+    /**
+     * @return y coordinate of the center of the cell containing object at position pos.
+     */
+    int getCellCenter(int pos) {
+        int c = pos / group;
+        return (c + 1) * borderLineSize + c * cellSize + cellSize / 2;
+    }
+
 
     // ==========================   Drawing heat map   ============================
 
     public BufferedImage createHeatMap() {
         BufferedImage image = new BufferedImage(gridSize, gridSize, BufferedImage.TYPE_3BYTE_BGR);
+        paintHeatMap(image, 0, 0);
+        return image;
+    }
+
+    /**
+     * Paints the grid with top left corner at (x, y) in image coordinates.
+     * Only the cells intersecting the image are filled.
+     */
+    void paintHeatMap(BufferedImage image, int x, int y) {
         Graphics2D graphics = image.createGraphics();
+        graphics.translate(x, y);
+        graphics.clipRect(0, 0, gridSize, gridSize);
         graphics.setBackground(Color.WHITE);
         graphics.fillRect(0, 0, gridSize, gridSize);
 
-        // drawing grid
-        graphics.setColor(Color.GRAY);
-        graphics.setStroke(new BasicStroke(borderLineSize));
-        int left = borderLineSize / 2;
-        int right = n * (cellSize + borderLineSize) + borderLineSize / 2;
-        // drawing border
-        graphics.drawLine(0, left, gridSize - 1, left);
-        graphics.drawLine(left, 0, left, gridSize - 1);
-        graphics.drawLine(0, right, gridSize - 1, right);
-        graphics.drawLine(right, 0, right, gridSize - 1);
-        if (drawInnerLines) {
-            graphics.setColor(innerLinesColor);
-            for (int i = 1; i < n; i++) {
-                int coord = i * (cellSize + borderLineSize) + borderLineSize / 2;
-                graphics.drawLine(borderLineSize+1, coord, gridSize - 1 - borderLineSize, coord);
-                graphics.drawLine(coord, borderLineSize+1, coord, gridSize - 1 - borderLineSize);
+        if (borderLineSize > 0) {
+            // drawing grid
+            graphics.setColor(Color.GRAY);
+            graphics.setStroke(new BasicStroke(borderLineSize));
+            int left = borderLineSize / 2;
+            int right = cells * (cellSize + borderLineSize) + borderLineSize / 2;
+            // drawing border
+            graphics.drawLine(0, left, gridSize - 1, left);
+            graphics.drawLine(left, 0, left, gridSize - 1);
+            graphics.drawLine(0, right, gridSize - 1, right);
+            graphics.drawLine(right, 0, right, gridSize - 1);
+            if (drawInnerLines) {
+                graphics.setColor(innerLinesColor);
+                for (int i = 1; i < cells; i++) {
+                    int coord = i * (cellSize + borderLineSize) + borderLineSize / 2;
+                    graphics.drawLine(borderLineSize+1, coord, gridSize - 1 - borderLineSize, coord);
+                    graphics.drawLine(coord, borderLineSize+1, coord, gridSize - 1 - borderLineSize);
+                }
             }
         }
 
-        // filling
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                graphics.setColor(getColor(distMatrix[perm[j]][perm[i]]));
-                graphics.fillRect(i * cellSize + (i + 1) * borderLineSize, j * cellSize + (j + 1) * borderLineSize,
-                        cellSize, cellSize);
+        // filling only visible rows
+        int step = cellSize + borderLineSize;
+        int jFrom = Math.max(0, Math.floorDiv(-y, step) - 1);
+        int jTo = Math.min(cells, Math.floorDiv(image.getHeight() - y, step) + 1);
+        if (borderLineSize == 0) {
+            // cells are adjacent, so writing whole pixel rows is much faster than drawing small rectangles
+            int from = Math.max(0, x), to = Math.min(image.getWidth(), x + gridSize);
+            int[] rgb = new int[Math.max(0, to - from)];
+            for (int j = jFrom; j < jTo; j++) {
+                int lastColumn = -1, color = 0;
+                for (int px = from; px < to; px++) {
+                    int column = (px - x) / cellSize;
+                    if (column != lastColumn) {
+                        color = getColor(getCellValue(distMatrix, perm, group, j, column)).getRGB();
+                        lastColumn = column;
+                    }
+                    rgb[px - from] = color;
+                }
+                int yFrom = Math.max(0, y + j * cellSize), yTo = Math.min(image.getHeight(), y + (j + 1) * cellSize);
+                for (int py = yFrom; py < yTo && rgb.length > 0; py++) {
+                    image.setRGB(from, py, rgb.length, 1, rgb, 0, rgb.length);
+                }
+            }
+        } else {
+            for (int i = 0; i < cells; i++) {
+                for (int j = jFrom; j < jTo; j++) {
+                    graphics.setColor(getColor(getCellValue(distMatrix, perm, group, j, i)));
+                    graphics.fillRect(i * cellSize + (i + 1) * borderLineSize, j * cellSize + (j + 1) * borderLineSize,
+                            cellSize, cellSize);
+                }
             }
         }
-
-        return image;
+        graphics.dispose();
     }
 
     public BufferedImage createHeatMapWithNames() {
@@ -159,33 +268,42 @@ public class FullHeatMap {
         int height = gridSize + dy_for_names;
 
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        paintHeatMapWithNames(image, 0, 0);
+        return image;
+    }
+
+    void paintHeatMapWithNames(BufferedImage image, int x, int y) {
+        int width = gridSize + dx_for_names; // +dx for row names
+        int height = gridSize + dy_for_names;
+
         Graphics2D graphics = image.createGraphics();
+        graphics.translate(x, y);
+        graphics.clipRect(0, 0, width, height);
         graphics.setBackground(Color.WHITE);
         graphics.fillRect(0, 0, width, height);
 
         // drawing heat map itself
-        BufferedImage heatMap = createHeatMap();
-        graphics.drawImage(heatMap, 0, dy_for_names, null);
+        paintHeatMap(image, x, y + dy_for_names);
 
         // drawing row and column names
-        graphics.setColor(Color.BLACK);
-        graphics.setFont(font);
-        AffineTransform originalTransform = graphics.getTransform();
-        AffineTransform newTransform = new AffineTransform(originalTransform);
-        newTransform.rotate(-Math.PI / 2, gridSize / 2.0, dy_for_names + gridSize / 2.0);
-        for (int i = 0; i < n; i++) {
-            graphics.setColor(Color.decode(colors[perm[i]]));
-            int yc = dy_for_names + (i + 1) * (cellSize + borderLineSize) - cellSize / 3;
-            graphics.drawString(names[perm[i]], gridSize + 10, yc); // row name
-
-            graphics.setTransform(newTransform);
-            graphics.drawString(names[perm[i]], gridSize + 10, yc); // column name
-            graphics.setTransform(originalTransform);
+        if (drawNames) {
+            graphics.setColor(Color.BLACK);
+            graphics.setFont(font);
+            AffineTransform originalTransform = graphics.getTransform();
+            AffineTransform newTransform = new AffineTransform(originalTransform);
+            newTransform.rotate(-Math.PI / 2, gridSize / 2.0, dy_for_names + gridSize / 2.0);
+            for (int i = 0; i < n; i++) {
+                graphics.setColor(Color.decode(colors[perm[i]]));
+                int yc = dy_for_names + (i + 1) * (cellSize + borderLineSize) - cellSize / 3;
+                graphics.drawString(names[perm[i]], gridSize + 10, yc); // row name
+
+                graphics.setTransform(newTransform);
+                graphics.drawString(names[perm[i]], gridSize + 10, yc); // column name
+                graphics.setTransform(originalTransform);
+            }
+            graphics.setColor(Color.BLACK);
         }
-        graphics.setColor(Color.BLACK);
-
-
-        return image;
+        graphics.dispose();
     }
 
     protected Color getColor(double value) {
@@ -215,7 +333,7 @@ public class FullHeatMap {
 
 
     /**
-     * Clusters objects, works in O(n^3) time.
+     * Clusters objects with average linkage, works in O(n^2) time on typical data.
      * @return the resulting root node.
      */
     public Node clusterObjects() {
@@ -225,48 +343,19 @@ public class FullHeatMap {
             Node c = new Node();
             c.no = i;
             c.dx = 0;
-            c.dy = (i + 1) * borderLineSize + i * cellSize + cellSize / 2;
+            c.dy = getCellCenter(i);
             nodes[i] = c;
         }
 
-        double[][] dist = new double[n][n];
-        int[] g1 = new int[n];
-        int[] g2 = new int[n];
-
-        for (int i = 0; i < n; i++) {
-            getGroup(nodes[i], g1, 0);
-            dist[i][i] = 0;
-            for (int j = i + 1; j < n; j++) {
-                getGroup(nodes[j], g2, 0);
-                dist[i][j] = dist[j][i] = distanceBetweenGroups(g1, 1, g2, 1);
-            }
-        }
-
         // clustering
-        int count = n;
+        HierarchicalClustering clustering = new HierarchicalClustering(distMatrix);
         Node root = (n > 0) ? nodes[0] : null;
-        while (count > 1) {
-//            System.out.println("Count = " + count);
-
-            double minDist = Double.MAX_VALUE;
-            int i = -1, j = -1;
-
-            for (int ii = 0; ii < n; ii++) {
-                for (int jj = ii + 1; jj < n; jj++) {
-                    if (nodes[ii] != null && nodes[jj] != null && dist[ii][jj] < minDist) {
-                        minDist = dist[ii][jj];
-                        i = ii;
-                        j = jj;
-                    }
-                }
-            }
-
-            if (i == -1 || minDist < 0) {
-                throw new RuntimeException("Internal error. Wrong minDist index.");
-            }
+        for (int step = 0; step < clustering.mergeDist.length; step++) {
+            int i = clustering.mergeI[step];
+            int j = clustering.mergeJ[step];
+            double minDist = clustering.mergeDist[step];
 
             // merging node i and j
-//            System.out.println("Merging " + i + " and " + j + ", min dist = " + minDist);
             root = new Node();
             root.left = nodes[i];
             root.right = nodes[j];
@@ -276,55 +365,18 @@ public class FullHeatMap {
             root.dy = (root.left.dy + root.right.dy) / 2;
             root.dx = (int) (minDist / high * dx_for_dendrogram);
 
-            // updating
             nodes[i] = root;
             nodes[j] = null;
-            int g1n = getGroup(root, g1, 0);
-            for (int ii = 0; ii < n; ii++) {
-                dist[ii][j] = dist[j][ii] = -1;
-                if (ii != i) {
-                    int g2n = getGroup(nodes[ii], g2, 0);
-                    dist[ii][i] = dist[i][ii] = distanceBetweenGroups(g1, g1n, g2, g2n);
-                }
-            }
-            count--;
         }
 
-//        System.out.println("Done");
         return root;
     }
 
-    protected double distanceBetweenGroups(int[] g1, int g1n, int[] g2, int g2n) {
-        if (g1n == 0 || g2n == 0) {
-            return -1;
-        }
-        double sum = 0;
-        for (int i = 0; i < g1n; i++) {
-            for (int j = 0; j < g2n; j++) {
-                sum += distMatrix[g1[i]][g2[j]];
-            }
-        }
-        return sum / g1n / g2n;
-    }
-
-    int getGroup(Node n, int[] e, int first) {
-        if (n == null) {
-            return 0;
-        }
-        if (n.no >= 0) {
-            e[first] = n.no;
-            return 1;
-        }
-        int c = getGroup(n.left,  e, first);
-        c    += getGroup(n.right, e, first + c);
-        return c;
-    }
-
     protected void renumber(Node node, int first) {
         if (node.no >= 0) {
             // node is leaf
             perm[first] = node.no;
-            node.dy = (first + 1) * borderLineSize + first * cellSize + cellSize / 2;
+            node.dy = getCellCenter(first);
             return;
         }
 
@@ -338,20 +390,30 @@ public class FullHeatMap {
         int width = dx_before_dendrogram + dx_for_dendrogram;
         int height = gridSize;
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-        Graphics2D graphics = image.createGraphics();
-        graphics.setBackground(Color.WHITE);
-        graphics.fillRect(0, 0, width, height);
 
         Node root = clusterObjects();
         if (shouldRenumber) {
             renumber(root, 0);
         }
 
+        paintLeftDendrogram(image, root, 0, 0);
+        return image;
+    }
+
+    void paintLeftDendrogram(BufferedImage image, Node root, int x, int y) {
+        int width = dx_before_dendrogram + dx_for_dendrogram;
+        int height = gridSize;
+
+        Graphics2D graphics = image.createGraphics();
+        graphics.translate(x, y);
+        graphics.clipRect(0, 0, width, height);
+        graphics.setBackground(Color.WHITE);
+        graphics.fillRect(0, 0, width, height);
+
         graphics.setColor(Color.BLACK);
         graphics.setStroke(new BasicStroke(borderLineSize));
         drawClusterNode(root, graphics, width);
-
-        return image;
+        graphics.dispose();
     }
 
     void drawClusterNode(Node n, Graphics2D graphics, int width) {
@@ -379,7 +441,19 @@ public class FullHeatMap {
         int width = dx_scale_text + dx_scale + 1, height = dy_before + dy_scale + dy_after;
 
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        paintColorScale(image, 0, 0);
+        return image;
+    }
+
+    void paintColorScale(BufferedImage image, int x, int y) {
+        int dy_before = 20;
+        int dy_after = 30;
+
+        int width = dx_scale_text + dx_scale + 1, height = dy_before + dy_scale + dy_after;
+
         Graphics2D graphics = image.createGraphics();
+        graphics.translate(x, y);
+        graphics.clipRect(0, 0, width, height);
         graphics.setBackground(Color.WHITE);
         graphics.fillRect(0, 0, width, height);
 
@@ -398,31 +472,160 @@ public class FullHeatMap {
             graphics.setColor(Color.BLACK);
             graphics.drawString(String.format("%.1f", v), dx_scale_text + i * cellSize + cellSize / 5, dy_dist);
         }
+        graphics.dispose();
+    }
 
-        return image;
+    int getFullWidth() {
+        return dx_before_dendrogram + dx_for_dendrogram + gridSize + dx_for_names;
     }
 
-    public BufferedImage createFullHeatMap(boolean shouldRenumber) {
-        int width = dx_before_dendrogram + dx_for_dendrogram + gridSize + dx_for_names;
-        int height = dy_for_names + gridSize + dy_before_color + dy_scale + dy_after_color;
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    int getFullHeight() {
+        return dy_for_names + gridSize + dy_before_color + dy_scale + dy_after_color;
+    }
+
+    /**
+     * Clusters objects (if needed) and renumbers them.
+     * @return root of the dendrogram, or null if there is nothing to draw.
+     */
+    Node prepareDendrogram(boolean shouldRenumber) {
+        if (n < 2) {
+            return null;
+        }
+        Node root = clusterObjects();
+        if (shouldRenumber) {
+            renumber(root, 0);
+        }
+        return root;
+    }
+
+    /**
+     * Paints the part of the full heat map starting from row <code>top</code> to the image.
+     */
+    void paintFullHeatMap(BufferedImage image, Node root, int top) {
         Graphics2D graphics = image.createGraphics();
         graphics.setBackground(Color.WHITE);
-        graphics.fillRect(0, 0, width, height);
+        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        graphics.dispose();
 
-        if (n >= 2) {
-            BufferedImage dendrogram = createLeftDendrogram(shouldRenumber);
-            graphics.drawImage(dendrogram, 0, dy_for_names, null);
+        if (root != null) {
+            paintLeftDendrogram(image, root, 0, dy_for_names - top);
         }
+        paintHeatMapWithNames(image, dx_before_dendrogram + dx_for_dendrogram, -top);
+        paintColorScale(image, dx_before_dendrogram + dx_for_dendrogram - 120,
+                dy_for_names + gridSize + dy_before_color - top);
+    }
 
-        BufferedImage heatMap = createHeatMapWithNames();
-        graphics.drawImage(heatMap, dx_before_dendrogram + dx_for_dendrogram, 0, null);
+    public BufferedImage createFullHeatMap(boolean shouldRenumber) {
+        BufferedImage image = new BufferedImage(getFullWidth(), getFullHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        paintFullHeatMap(image, prepareDendrogram(shouldRenumber), 0);
+        return image;
+    }
 
-        BufferedImage color = createColorScale();
-        graphics.drawImage(color, dx_before_dendrogram + dx_for_dendrogram - 120,
-                dy_for_names + gridSize + dy_before_color, null);
+    /**
+     * Writes full heat map to PNG file strip by strip, without creating the whole image in memory.
+     */
+    public void writeFullHeatMap(boolean shouldRenumber, File file) throws IOException {
+        RenderedImage image = new StripImage(prepareDendrogram(shouldRenumber));
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        file.delete();
+        ImageOutputStream out = ImageIO.createImageOutputStream(file);
+        if (out == null) {
+            throw new IOException("Can't create output stream for file " + file);
+        }
+        try {
+            writer.setOutput(out);
+            writer.write(image);
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+    }
 
-        return image;
+
+    /**
+     * Full heat map image split into horizontal strips (tiles), each strip is painted on demand.
+     * Only the last painted strip is kept in memory, that is enough for writers processing the image row by row.
+     */
+    class StripImage implements RenderedImage {
+        final Node root;
+        final int width, height, stripHeight;
+        final ColorModel colorModel;
+        final SampleModel sampleModel;
+
+        int lastStrip = -1;
+        Raster lastRaster = null;
+
+        StripImage(Node root) {
+            this.root = root;
+            width = getFullWidth();
+            height = getFullHeight();
+            stripHeight = Math.max(1, Math.min(height, stripSize / 3 / width));
+            BufferedImage sample = new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR);
+            colorModel = sample.getColorModel();
+            sampleModel = sample.getSampleModel().createCompatibleSampleModel(width, stripHeight);
+        }
+
+        @Override
+        public synchronized Raster getTile(int tileX, int tileY) {
+            if (tileY != lastStrip) {
+                int top = tileY * stripHeight;
+                BufferedImage strip = new BufferedImage(width, Math.min(stripHeight, height - top),
+                        BufferedImage.TYPE_3BYTE_BGR);
+                paintFullHeatMap(strip, root, top);
+                lastRaster = strip.getRaster().createTranslatedChild(0, top);
+                lastStrip = tileY;
+            }
+            return lastRaster;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            WritableRaster result = colorModel.createCompatibleWritableRaster(rect.width, rect.height)
+                    .createWritableTranslatedChild(rect.x, rect.y);
+            copyData(result);
+            return result;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = colorModel.createCompatibleWritableRaster(width, height);
+            }
+            int from = Math.max(0, raster.getMinY()) / stripHeight;
+            int to = (Math.min(height, raster.getMinY() + raster.getHeight()) - 1) / stripHeight;
+            for (int i = from; i <= to; i++) {
+                Raster tile = getTile(0, i);
+                Rectangle r = raster.getBounds().intersection(tile.getBounds());
+                // copying pixels by values, as strip and raster may have different band layouts
+                raster.setPixels(r.x, r.y, r.width, r.height,
+                        tile.getPixels(r.x, r.y, r.width, r.height, (int[]) null));
+            }
+            return raster;
+        }
+
+        @Override public int getWidth() { return width; }
+        @Override public int getHeight() { return height; }
+        @Override public int getMinX() { return 0; }
+        @Override public int getMinY() { return 0; }
+        @Override public int getNumXTiles() { return 1; }
+        @Override public int getNumYTiles() { return (height + stripHeight - 1) / stripHeight; }
+        @Override public int getMinTileX() { return 0; }
+        @Override public int getMinTileY() { return 0; }
+        @Override public int getTileWidth() { return width; }
+        @Override public int getTileHeight() { return stripHeight; }
+        @Override public int getTileGridXOffset() { return 0; }
+        @Override public int getTileGridYOffset() { return 0; }
+        @Override public ColorModel getColorModel() { return colorModel; }
+        @Override public SampleModel getSampleModel() { return sampleModel; }
+        @Override public Vector<RenderedImage> getSources() { return null; }
+        @Override public Object getProperty(String name) { return Image.UndefinedProperty; }
+        @Override public String[] getPropertyNames() { return null; }
     }
 
 
@@ -4,12 +4,16 @@ import org.apache.batik.anim.dom.SVGDOMImplementation;
 import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 import java.awt.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Constructing full heat map with dendrogram for n objects.
+ * <p>
+ * The same picture can be built as SVG DOM document or written directly to SVG file
+ * element by element (see {@link #writeFullHeatMap}), the latter doesn't keep the picture in memory.
  */
 public class FullHeatMapXML {
 
@@ -17,9 +21,15 @@ public class FullHeatMapXML {
 
     final String svgNS = "http://www.w3.org/2000/svg";
     
-    final int cellSize = 40;
-    final int borderLineSize = 2;
+    final int cellSize;
+    final int borderLineSize;
     final int gridSize;
+    /**
+     * Number of objects aggregated into one cell (in one dimension), and number of cells in a grid row
+     */
+    public final int group;
+    final int cells;
+    final boolean drawNames;
 
     final int dx_before_dendrogram = 100;
     final int dx_for_dendrogram;
@@ -32,6 +42,12 @@ public class FullHeatMapXML {
     final int dx_scale = 300;
     final int dy_scale = 30;
 
+    /**
+     * Maximal number of cells in a grid row. Every cell is a separate element of SVG document,
+     * so big matrices are aggregated into fewer cells than in PNG image.
+     */
+    static final int MAX_CELLS = 500;
+
 
     public Color lowColor = Color.WHITE;
     public Color highColor = new Color(12, 61, 138);
@@ -39,6 +55,7 @@ public class FullHeatMapXML {
     public Color innerLinesColor = Color.GRAY;
 
     final String fontXML = "bold 16px sans-serif";
+    final int fontSize = 16;
 
 
     // ===========================   Variables   ==============================
@@ -64,13 +81,26 @@ public class FullHeatMapXML {
     }
 
     public FullHeatMapXML(double[][] distMatrix, double low, double high, String[] names, boolean invertColors, String[] colors) {
+        this(distMatrix, low, high, names, invertColors, colors, FullHeatMap.DEFAULT_MAX_GRID_SIZE);
+    }
+
+    public FullHeatMapXML(double[][] distMatrix, double low, double high, String[] names, boolean invertColors,
+                          String[] colors, int maxGridSize) {
         n = distMatrix.length;
         this.distMatrix = distMatrix;
         this.low = low;
         this.high = high;
         this.names = names;
         this.colors = colors;
-        gridSize = n * cellSize + (n + 1) * borderLineSize;
+
+        int[] sizes = getCellSizes(n, maxGridSize);
+        cellSize = sizes[0];
+        borderLineSize = sizes[1];
+        group = sizes[2];
+        cells = (n + group - 1) / group;
+        gridSize = cells * cellSize + (cells + 1) * borderLineSize;
+        drawNames = group == 1 && cellSize >= fontSize;
+
         dx_for_dendrogram = getDendrogramSize(n);
         perm = new int[n];
         for (int i = 0; i < n; i++) {
@@ -85,6 +115,22 @@ public class FullHeatMapXML {
     }
 
 
+    /**
+     * The same as {@link FullHeatMap#getCellSizes}, but with at most {@link #MAX_CELLS} cells in a row,
+     * the grid is kept as wide as PNG one.
+     */
+    static int[] getCellSizes(int n, int maxGridSize) {
+        int[] sizes = FullHeatMap.getCellSizes(n, maxGridSize);
+        int group = sizes[2];
+        if ((n + group - 1) / group <= MAX_CELLS) {
+            return sizes;
+        }
+        group = (n + MAX_CELLS - 1) / MAX_CELLS;
+        int cells = (n + group - 1) / group;
+        int gridSize = (int) Math.min(maxGridSize, (long) n * (sizes[0] + sizes[1]));
+        return new int[]{Math.max(1, gridSize / cells), 0, group};
+    }
+
     static int getDendrogramSize(int n) {
         if (n < 2) {
             return 0;
@@ -106,128 +152,184 @@ public class FullHeatMapXML {
         return cs;
     }
 
+    /**
+     * @return y coordinate of the center of the cell containing object at position pos.
+     */
+    int getCellCenter(int pos) {
+        int c = pos / group;
+        return (c + 1) * borderLineSize + c * cellSize + cellSize / 2;
+    }
 
-    // ==========================   Drawing heat map   ============================
 
-    public Document createHeatMap() {
-        return createHeatMap(0, 0);
+    // ==========================   SVG output   ============================
+
+    /**
+     * Destination for SVG elements, either DOM document or output stream.
+     */
+    abstract class Canvas {
+        abstract void rect(int x, int y, int width, int height, String fill);
+        abstract void line(int x1, int y1, int x2, int y2, String stroke, int strokeWidth);
+        abstract void text(int x, int y, String fill, String transform, String content);
     }
 
-    public Document createHeatMap(int ddx, int ddy) {
+    class DomCanvas extends Canvas {
+        final Document doc;
+
+        DomCanvas(Document doc) {
+            this.doc = doc;
+        }
+
+        @Override
+        void rect(int x, int y, int width, int height, String fill) {
+            Element rectangle = doc.createElementNS(svgNS, "rect");
+            rectangle.setAttributeNS(null, "x", Integer.toString(x));
+            rectangle.setAttributeNS(null, "y", Integer.toString(y));
+            rectangle.setAttributeNS(null, "width", Integer.toString(width));
+            rectangle.setAttributeNS(null, "height", Integer.toString(height));
+            rectangle.setAttributeNS(null, "fill", fill);
+            doc.getDocumentElement().appendChild(rectangle);
+        }
+
+        @Override
+        void line(int x1, int y1, int x2, int y2, String stroke, int strokeWidth) {
+            Element line = doc.createElementNS(svgNS, "line");
+            line.setAttributeNS(null, "x1", Integer.toString(x1));
+            line.setAttributeNS(null, "y1", Integer.toString(y1));
+            line.setAttributeNS(null, "x2", Integer.toString(x2));
+            line.setAttributeNS(null, "y2", Integer.toString(y2));
+            line.setAttributeNS(null, "stroke", stroke);
+            line.setAttributeNS(null, "stroke-width", Integer.toString(strokeWidth));
+            doc.getDocumentElement().appendChild(line);
+        }
+
+        @Override
+        void text(int x, int y, String fill, String transform, String content) {
+            Element text = doc.createElementNS(svgNS, "text");
+            text.setAttributeNS(null, "x", Integer.toString(x));
+            text.setAttributeNS(null, "y", Integer.toString(y));
+            text.setAttributeNS(null, "font", fontXML);
+            text.setAttributeNS(null, "fill", fill);
+            if (transform != null) {
+                text.setAttributeNS(null, "transform", transform);
+            }
+            text.setTextContent(content);
+            doc.getDocumentElement().appendChild(text);
+        }
+    }
+
+    class StreamCanvas extends Canvas {
+        final PrintWriter out;
+
+        StreamCanvas(PrintWriter out) {
+            this.out = out;
+        }
+
+        @Override
+        void rect(int x, int y, int width, int height, String fill) {
+            out.print("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\"" + height
+                    + "\" fill=\"" + escape(fill) + "\"/>\n");
+        }
+
+        @Override
+        void line(int x1, int y1, int x2, int y2, String stroke, int strokeWidth) {
+            out.print("<line x1=\"" + x1 + "\" y1=\"" + y1 + "\" x2=\"" + x2 + "\" y2=\"" + y2
+                    + "\" stroke=\"" + escape(stroke) + "\" stroke-width=\"" + strokeWidth + "\"/>\n");
+        }
+
+        @Override
+        void text(int x, int y, String fill, String transform, String content) {
+            out.print("<text x=\"" + x + "\" y=\"" + y + "\" font=\"" + fontXML + "\" fill=\"" + escape(fill) + "\""
+                    + (transform != null ? " transform=\"" + transform + "\"" : "")
+                    + ">" + escape(content) + "</text>\n");
+        }
+    }
+
+    static String escape(String s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String r = (c == '&') ? "&amp;" : (c == '<') ? "&lt;" : (c == '>') ? "&gt;" : (c == '"') ? "&quot;" : null;
+            if (r != null && sb == null) {
+                sb = new StringBuilder(s.substring(0, i));
+            }
+            if (sb != null) {
+                sb.append(r != null ? r : String.valueOf(c));
+            }
+        }
+        return sb == null ? s : sb.toString();
+    }
+
+    Document createDocument(int width, int height) {
         DOMImplementation impl = SVGDOMImplementation.getDOMImplementation();
         Document doc = impl.createDocument(svgNS, "svg", null);
 
         Element svgRoot = doc.getDocumentElement();
-        svgRoot.setAttributeNS(null, "width", Integer.toString(gridSize));
-        svgRoot.setAttributeNS(null, "height", Integer.toString(gridSize));
+        svgRoot.setAttributeNS(null, "width", Integer.toString(width));
+        svgRoot.setAttributeNS(null, "height", Integer.toString(height));
+        return doc;
+    }
 
-        { // background
-            Element rectangle = doc.createElementNS(svgNS, "rect");
-            rectangle.setAttributeNS(null, "x", Integer.toString(ddx));
-            rectangle.setAttributeNS(null, "y", Integer.toString(ddy));
-            rectangle.setAttributeNS(null, "width", Integer.toString(gridSize));
-            rectangle.setAttributeNS(null, "height", Integer.toString(gridSize));
-            rectangle.setAttributeNS(null, "fill", "white");
-            svgRoot.appendChild(rectangle);
-        }
 
-        { // border lines
+    // ==========================   Drawing heat map   ============================
+
+    public Document createHeatMap() {
+        return createHeatMap(0, 0);
+    }
+
+    public Document createHeatMap(int ddx, int ddy) {
+        Document doc = createDocument(gridSize, gridSize);
+        paintHeatMap(new DomCanvas(doc), ddx, ddy);
+        return doc;
+    }
+
+    void paintHeatMap(Canvas canvas, int ddx, int ddy) {
+        // background
+        canvas.rect(ddx, ddy, gridSize, gridSize, "white");
+
+        if (borderLineSize > 0) { // border lines
             int left = borderLineSize / 2;
-            int right = n * (cellSize + borderLineSize) + borderLineSize / 2;
-
-            Element border_1 = doc.createElementNS(svgNS, "line");
-            border_1.setAttributeNS(null, "x1", Integer.toString(ddx));
-            border_1.setAttributeNS(null, "y1", Integer.toString(left + ddy));
-            border_1.setAttributeNS(null, "x2", Integer.toString(gridSize + ddx));
-            border_1.setAttributeNS(null, "y2", Integer.toString(left + ddy));
-            border_1.setAttributeNS(null, "stroke", "gray");
-            border_1.setAttributeNS(null, "stroke-width", Integer.toString(borderLineSize));
-            svgRoot.appendChild(border_1);
-
-            Element border_2 = doc.createElementNS(svgNS, "line");
-            border_2.setAttributeNS(null, "x1", Integer.toString(left + ddx));
-            border_2.setAttributeNS(null, "y1", Integer.toString(ddy));
-            border_2.setAttributeNS(null, "x2", Integer.toString(left + ddx));
-            border_2.setAttributeNS(null, "y2", Integer.toString(gridSize + ddy));
-            border_2.setAttributeNS(null, "stroke", "gray");
-            border_2.setAttributeNS(null, "stroke-width", Integer.toString(borderLineSize));
-            svgRoot.appendChild(border_2);
-
-            Element border_3 = doc.createElementNS(svgNS, "line");
-            border_3.setAttributeNS(null, "x1", Integer.toString(ddx));
-            border_3.setAttributeNS(null, "y1", Integer.toString(right + ddy));
-            border_3.setAttributeNS(null, "x2", Integer.toString(gridSize + ddx));
-            border_3.setAttributeNS(null, "y2", Integer.toString(right + ddy));
-            border_3.setAttributeNS(null, "stroke", "gray");
-            border_3.setAttributeNS(null, "stroke-width", Integer.toString(borderLineSize));
-            svgRoot.appendChild(border_3);
-
-            Element border_4 = doc.createElementNS(svgNS, "line");
-            border_4.setAttributeNS(null, "x1", Integer.toString(right + ddx));
-            border_4.setAttributeNS(null, "y1", Integer.toString(ddy));
-            border_4.setAttributeNS(null, "x2", Integer.toString(right + ddx));
-            border_4.setAttributeNS(null, "y2", Integer.toString(gridSize + ddy));
-            border_4.setAttributeNS(null, "stroke", "gray");
-            border_4.setAttributeNS(null, "stroke-width", Integer.toString(borderLineSize));
-            svgRoot.appendChild(border_4);
+            int right = cells * (cellSize + borderLineSize) + borderLineSize / 2;
+
+            canvas.line(ddx, left + ddy, gridSize + ddx, left + ddy, "gray", borderLineSize);
+            canvas.line(left + ddx, ddy, left + ddx, gridSize + ddy, "gray", borderLineSize);
+            canvas.line(ddx, right + ddy, gridSize + ddx, right + ddy, "gray", borderLineSize);
+            canvas.line(right + ddx, ddy, right + ddx, gridSize + ddy, "gray", borderLineSize);
         }
 
-        if (drawInnerLines) { // grid
-            for (int i = 1; i < n; i++) {
+        if (drawInnerLines && borderLineSize > 0) { // grid
+            for (int i = 1; i < cells; i++) {
                 int coord = i * (cellSize + borderLineSize) + borderLineSize / 2;
 
-                Element inner_line_1 = doc.createElementNS(svgNS, "line");
-                inner_line_1.setAttributeNS(null, "x1", Integer.toString(borderLineSize + ddx));
-                inner_line_1.setAttributeNS(null, "y1", Integer.toString(coord + ddy));
-                inner_line_1.setAttributeNS(null, "x2", Integer.toString(gridSize - borderLineSize + ddx));
-                inner_line_1.setAttributeNS(null, "y2", Integer.toString(coord + ddy));
-                inner_line_1.setAttributeNS(null, "stroke", "gray");
-                inner_line_1.setAttributeNS(null, "stroke-width", Integer.toString(borderLineSize));
-                svgRoot.appendChild(inner_line_1);
-
-                Element inner_line_2 = doc.createElementNS(svgNS, "line");
-                inner_line_2.setAttributeNS(null, "x1", Integer.toString(coord + ddx));
-                inner_line_2.setAttributeNS(null, "y1", Integer.toString(borderLineSize + ddy));
-                inner_line_2.setAttributeNS(null, "x2", Integer.toString(coord + ddx));
-                inner_line_2.setAttributeNS(null, "y2", Integer.toString(gridSize - borderLineSize + ddy));
-                inner_line_2.setAttributeNS(null, "stroke", "gray");
-                inner_line_2.setAttributeNS(null, "stroke-width", Integer.toString(borderLineSize));
-                svgRoot.appendChild(inner_line_2);
+                canvas.line(borderLineSize + ddx, coord + ddy, gridSize - borderLineSize + ddx, coord + ddy,
+                        "gray", borderLineSize);
+                canvas.line(coord + ddx, borderLineSize + ddy, coord + ddx, gridSize - borderLineSize + ddy,
+                        "gray", borderLineSize);
             }
         }
 
         // filling
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                Element rectangle = doc.createElementNS(svgNS, "rect");
-                rectangle.setAttributeNS(null, "x", 
-                        Integer.toString(ddx + i * cellSize + (i + 1) * borderLineSize));
-                rectangle.setAttributeNS(null, "y",
-                        Integer.toString(ddy + j * cellSize + (j + 1) * borderLineSize));
-                rectangle.setAttributeNS(null, "width", Integer.toString(cellSize));
-                rectangle.setAttributeNS(null, "height", Integer.toString(cellSize));
-                rectangle.setAttributeNS(null, "fill", getColorXML(distMatrix[perm[j]][perm[i]]));
-                svgRoot.appendChild(rectangle);
+        for (int i = 0; i < cells; i++) {
+            for (int j = 0; j < cells; j++) {
+                canvas.rect(ddx + i * cellSize + (i + 1) * borderLineSize,
+                        ddy + j * cellSize + (j + 1) * borderLineSize,
+                        cellSize, cellSize,
+                        getColorXML(FullHeatMap.getCellValue(distMatrix, perm, group, j, i)));
             }
         }
-
-        return doc;
     }
 
     public Document createHeatMapWithNames(Document doc, int ddx, int ddy) {
-        int width = gridSize + dx_for_names; // +dx for row names
-        int height = gridSize + dy_for_names;
-
-        Element svgRoot = doc.getDocumentElement();
+        paintHeatMapWithNames(new DomCanvas(doc), ddx, ddy);
+        return doc;
+    }
 
+    void paintHeatMapWithNames(Canvas canvas, int ddx, int ddy) {
         // drawing heat map itself
-        Document heatMap = createHeatMap(ddx, ddy + dy_for_names);
-        NodeList nodes = heatMap.getDocumentElement().getChildNodes();
-        for (int i = 0; i < nodes.getLength(); i++) {
-            org.w3c.dom.Node node = doc.importNode(nodes.item(i), false);
-            svgRoot.appendChild(node);
-        }
+        paintHeatMap(canvas, ddx, ddy + dy_for_names);
 
+        if (!drawNames) {
+            return;
+        }
         double theta = -90;
         double anchorx = ddx + gridSize / 2.0;
         double anchory = ddy + dy_for_names + gridSize / 2.0;
@@ -236,25 +338,9 @@ public class FullHeatMapXML {
         // drawing row and column names
         for (int i = 0; i < n; i++) {
             int yc = dy_for_names + (i + 1) * (cellSize + borderLineSize) - cellSize / 3;
-            Element rowName = doc.createElementNS(svgNS, "text");
-            rowName.setAttributeNS(null, "x", Integer.toString(ddx + gridSize + 10));
-            rowName.setAttributeNS(null, "y", Integer.toString(ddy + yc));
-            rowName.setAttributeNS(null, "font", fontXML);
-            rowName.setAttributeNS(null, "fill", colors[perm[i]]);
-            rowName.setTextContent(names[perm[i]]);
-            svgRoot.appendChild(rowName);
-
-            Element columnName = doc.createElementNS(svgNS, "text");
-            columnName.setAttributeNS(null, "x", Integer.toString(ddx + gridSize + 10));
-            columnName.setAttributeNS(null, "y", Integer.toString(ddy + yc));
-            columnName.setAttributeNS(null, "font", fontXML);
-            columnName.setAttributeNS(null, "fill", colors[perm[i]]);
-            columnName.setAttributeNS(null, "transform", transform);
-            columnName.setTextContent(names[perm[i]]);
-            svgRoot.appendChild(columnName);
+            canvas.text(ddx + gridSize + 10, ddy + yc, colors[perm[i]], null, names[perm[i]]);      // row name
+            canvas.text(ddx + gridSize + 10, ddy + yc, colors[perm[i]], transform, names[perm[i]]); // column name
         }
-
-        return doc;
     }
 
     private String getColorXML(double value) {
@@ -283,7 +369,7 @@ public class FullHeatMapXML {
 
 
     /**
-     * Clusters objects, works in O(n^3) time.
+     * Clusters objects with average linkage, works in O(n^2) time on typical data.
      * @return the resulting root node.
      */
     public Node clusterObjects() {
@@ -293,48 +379,19 @@ public class FullHeatMapXML {
             Node c = new Node();
             c.no = i;
             c.dx = 0;
-            c.dy = (i + 1) * borderLineSize + i * cellSize + cellSize / 2;
+            c.dy = getCellCenter(i);
             nodes[i] = c;
         }
 
-        double[][] dist = new double[n][n];
-        int[] g1 = new int[n];
-        int[] g2 = new int[n];
-
-        for (int i = 0; i < n; i++) {
-            getGroup(nodes[i], g1, 0);
-            dist[i][i] = 0;
-            for (int j = i + 1; j < n; j++) {
-                getGroup(nodes[j], g2, 0);
-                dist[i][j] = dist[j][i] = distanceBetweenGroups(g1, 1, g2, 1);
-            }
-        }
-
         // clustering
-        int count = n;
+        HierarchicalClustering clustering = new HierarchicalClustering(distMatrix);
         Node root = (n > 0) ? nodes[0] : null;
-        while (count > 1) {
-//            System.out.println("Count = " + count);
-
-            double minDist = Double.MAX_VALUE;
-            int i = -1, j = -1;
-
-            for (int ii = 0; ii < n; ii++) {
-                for (int jj = ii + 1; jj < n; jj++) {
-                    if (nodes[ii] != null && nodes[jj] != null && dist[ii][jj] < minDist) {
-                        minDist = dist[ii][jj];
-                        i = ii;
-                        j = jj;
-                    }
-                }
-            }
-
-            if (i == -1 || minDist < 0) {
-                throw new RuntimeException("Internal error. Wrong minDist index.");
-            }
+        for (int step = 0; step < clustering.mergeDist.length; step++) {
+            int i = clustering.mergeI[step];
+            int j = clustering.mergeJ[step];
+            double minDist = clustering.mergeDist[step];
 
             // merging node i and j
-//            System.out.println("Merging " + i + " and " + j + ", min dist = " + minDist);
             root = new Node();
             root.left = nodes[i];
             root.right = nodes[j];
@@ -344,55 +401,18 @@ public class FullHeatMapXML {
             root.dy = (root.left.dy + root.right.dy) / 2;
             root.dx = (int) (minDist / high * dx_for_dendrogram);
 
-            // updating
             nodes[i] = root;
             nodes[j] = null;
-            int g1n = getGroup(root, g1, 0);
-            for (int ii = 0; ii < n; ii++) {
-                dist[ii][j] = dist[j][ii] = -1;
-                if (ii != i) {
-                    int g2n = getGroup(nodes[ii], g2, 0);
-                    dist[ii][i] = dist[i][ii] = distanceBetweenGroups(g1, g1n, g2, g2n);
-                }
-            }
-            count--;
         }
 
-//        System.out.println("Done");
         return root;
     }
 
-    protected double distanceBetweenGroups(int[] g1, int g1n, int[] g2, int g2n) {
-        if (g1n == 0 || g2n == 0) {
-            return -1;
-        }
-        double sum = 0;
-        for (int i = 0; i < g1n; i++) {
-            for (int j = 0; j < g2n; j++) {
-                sum += distMatrix[g1[i]][g2[j]];
-            }
-        }
-        return sum / g1n / g2n;
-    }
-
-    int getGroup(Node n, int[] e, int first) {
-        if (n == null) {
-            return 0;
-        }
-        if (n.no >= 0) {
-            e[first] = n.no;
-            return 1;
-        }
-        int c = getGroup(n.left,  e, first);
-        c    += getGroup(n.right, e, first + c);
-        return c;
-    }
-
     protected void renumber(Node node, int first) {
         if (node.no >= 0) {
             // node is leaf
             perm[first] = node.no;
-            node.dy = (first + 1) * borderLineSize + first * cellSize + cellSize / 2;
+            node.dy = getCellCenter(first);
             return;
         }
 
@@ -403,55 +423,41 @@ public class FullHeatMapXML {
 
 
     public Document createLeftDendrogram(Document doc, boolean shouldRenumber, int ddx, int ddy) {
-        int width = dx_before_dendrogram + dx_for_dendrogram;
-        int height = gridSize;
-
-        Element svgRoot = doc.getDocumentElement();
+        paintLeftDendrogram(new DomCanvas(doc), prepareDendrogram(shouldRenumber), ddx, ddy);
+        return doc;
+    }
 
+    /**
+     * Clusters objects and renumbers them if needed.
+     * @return root of the dendrogram.
+     */
+    Node prepareDendrogram(boolean shouldRenumber) {
         Node root = clusterObjects();
         if (shouldRenumber) {
             renumber(root, 0);
         }
+        return root;
+    }
 
-        drawClusterNode(root, doc, width, ddx, ddy);
-        
-        return doc;
+    void paintLeftDendrogram(Canvas canvas, Node root, int ddx, int ddy) {
+        int width = dx_before_dendrogram + dx_for_dendrogram;
+        drawClusterNode(root, canvas, width, ddx, ddy);
     }
 
-    void drawClusterNode(Node n, Document doc, int width, int ddx, int ddy) {
+    void drawClusterNode(Node n, Canvas canvas, int width, int ddx, int ddy) {
         if (n == null || n.no >= 0) {
             return;
         }
 
-        Element line_1 = doc.createElementNS(svgNS, "line");
-        line_1.setAttributeNS(null, "x1", Integer.toString(ddx + width - n.left.dx));
-        line_1.setAttributeNS(null, "y1", Integer.toString(ddy + n.left.dy));
-        line_1.setAttributeNS(null, "x2", Integer.toString(ddx + width - n.dx));
-        line_1.setAttributeNS(null, "y2", Integer.toString(ddy + n.left.dy));
-        line_1.setAttributeNS(null, "stroke", "black");
-        line_1.setAttributeNS(null, "stroke-width", Integer.toString(borderLineSize));
-        doc.getDocumentElement().appendChild(line_1);
-
-        Element line_2 = doc.createElementNS(svgNS, "line");
-        line_2.setAttributeNS(null, "x1", Integer.toString(ddx + width - n.right.dx));
-        line_2.setAttributeNS(null, "y1", Integer.toString(ddy + n.right.dy));
-        line_2.setAttributeNS(null, "x2", Integer.toString(ddx + width - n.dx));
-        line_2.setAttributeNS(null, "y2", Integer.toString(ddy + n.right.dy));
-        line_2.setAttributeNS(null, "stroke", "black");
-        line_2.setAttributeNS(null, "stroke-width", Integer.toString(borderLineSize));
-        doc.getDocumentElement().appendChild(line_2);
+        canvas.line(ddx + width - n.left.dx, ddy + n.left.dy, ddx + width - n.dx, ddy + n.left.dy,
+                "black", Math.max(1, borderLineSize));
+        canvas.line(ddx + width - n.right.dx, ddy + n.right.dy, ddx + width - n.dx, ddy + n.right.dy,
+                "black", Math.max(1, borderLineSize));
+        canvas.line(ddx + width - n.dx, ddy + n.left.dy, ddx + width - n.dx, ddy + n.right.dy,
+                "black", Math.max(1, borderLineSize));
 
-        Element line_3 = doc.createElementNS(svgNS, "line");
-        line_3.setAttributeNS(null, "x1", Integer.toString(ddx + width - n.dx));
-        line_3.setAttributeNS(null, "y1", Integer.toString(ddy + n.left.dy));
-        line_3.setAttributeNS(null, "x2", Integer.toString(ddx + width - n.dx));
-        line_3.setAttributeNS(null, "y2", Integer.toString(ddy + n.right.dy));
-        line_3.setAttributeNS(null, "stroke", "black");
-        line_3.setAttributeNS(null, "stroke-width", Integer.toString(borderLineSize));
-        doc.getDocumentElement().appendChild(line_3);
-
-        drawClusterNode(n.left, doc, width, ddx, ddy);
-        drawClusterNode(n.right, doc, width, ddx, ddy);
+        drawClusterNode(n.left, canvas, width, ddx, ddy);
+        drawClusterNode(n.right, canvas, width, ddx, ddy);
 
     }
 
@@ -460,87 +466,72 @@ public class FullHeatMapXML {
     // ===========================   Drawing full heat map   ================================
 
     public Document createColorScale(Document doc, int ddx, int ddy) {
-        int dy_before = 20;
-        int dy_after = 30;
+        paintColorScale(new DomCanvas(doc), ddx, ddy);
+        return doc;
+    }
 
-        Element svgRoot = doc.getDocumentElement();
+    void paintColorScale(Canvas canvas, int ddx, int ddy) {
+        int dy_before = 20;
 
         int dy_dist = dy_before + dy_scale + 20;
-        { // color distance
-            Element text_1 = doc.createElementNS(svgNS, "text");
-            text_1.setAttributeNS(null, "x", Integer.toString(ddx + 10));
-            text_1.setAttributeNS(null, "y", Integer.toString(ddy + dy_before + dy_scale / 2 + 10));
-            text_1.setAttributeNS(null, "font", fontXML);
-            text_1.setAttributeNS(null, "fill", "black");
-            text_1.setTextContent("Color");
-            svgRoot.appendChild(text_1);
-
-            Element text_2 = doc.createElementNS(svgNS, "text");
-            text_2.setAttributeNS(null, "x", Integer.toString(ddx + 10));
-            text_2.setAttributeNS(null, "y", Integer.toString(ddy + dy_dist));
-            text_2.setAttributeNS(null, "font", fontXML);
-            text_2.setAttributeNS(null, "fill", "black");
-            text_2.setTextContent("Distance");
-            svgRoot.appendChild(text_2);
-        }
+        // color distance
+        canvas.text(ddx + 10, ddy + dy_before + dy_scale / 2 + 10, "black", null, "Color");
+        canvas.text(ddx + 10, ddy + dy_dist, "black", null, "Distance");
 
         // colors and labels
         int cellSize = dx_scale / 6;
         for (int i = 0; i <= 5; i++) {
             double v = low + (high - low) * i / 5.0;
-
-            Element rectangle = doc.createElementNS(svgNS, "rect");
-            rectangle.setAttributeNS(null, "x", Integer.toString(ddx + dx_scale_text + i * cellSize));
-            rectangle.setAttributeNS(null, "y", Integer.toString(ddy + dy_before));
-            rectangle.setAttributeNS(null, "width", Integer.toString(cellSize));
-            rectangle.setAttributeNS(null, "height", Integer.toString(dy_scale));
-            rectangle.setAttributeNS(null, "fill", getColorXML(v));
-            svgRoot.appendChild(rectangle);
-
-            Element text = doc.createElementNS(svgNS, "text");
-            text.setAttributeNS(null, "x", Integer.toString(ddx + dx_scale_text + i * cellSize + cellSize / 5));
-            text.setAttributeNS(null, "y", Integer.toString(ddy + dy_dist));
-            text.setAttributeNS(null, "font", fontXML);
-            text.setAttributeNS(null, "fill", "black");
-            text.setTextContent(String.format("%.1f", v));
-            svgRoot.appendChild(text);
+            canvas.rect(ddx + dx_scale_text + i * cellSize, ddy + dy_before, cellSize, dy_scale, getColorXML(v));
+            canvas.text(ddx + dx_scale_text + i * cellSize + cellSize / 5, ddy + dy_dist, "black", null,
+                    String.format("%.1f", v));
         }
-
-        return doc;
     }
 
-    public Document createFullHeatMap(boolean shouldRenumber) {
-        int width = dx_before_dendrogram + dx_for_dendrogram + gridSize + dx_for_names;
-        int height = dy_for_names + gridSize + dy_before_color + dy_scale + dy_after_color;
-
-        DOMImplementation impl = SVGDOMImplementation.getDOMImplementation();
-        Document doc = impl.createDocument(svgNS, "svg", null);
+    int getFullWidth() {
+        return dx_before_dendrogram + dx_for_dendrogram + gridSize + dx_for_names;
+    }
 
-        Element svgRoot = doc.getDocumentElement();
-        svgRoot.setAttributeNS(null, "width", Integer.toString(width));
-        svgRoot.setAttributeNS(null, "height", Integer.toString(height));
+    int getFullHeight() {
+        return dy_for_names + gridSize + dy_before_color + dy_scale + dy_after_color;
+    }
 
-        { // background
-            Element rectangle = doc.createElementNS(svgNS, "rect");
-            rectangle.setAttributeNS(null, "x", Integer.toString(0));
-            rectangle.setAttributeNS(null, "y", Integer.toString(0));
-            rectangle.setAttributeNS(null, "width", Integer.toString(width));
-            rectangle.setAttributeNS(null, "height", Integer.toString(height));
-            rectangle.setAttributeNS(null, "fill", "white");
-            svgRoot.appendChild(rectangle);
-        }
+    void paintFullHeatMap(Canvas canvas, boolean shouldRenumber) {
+        // background
+        canvas.rect(0, 0, getFullWidth(), getFullHeight(), "white");
 
         if (n >= 2) {
-            createLeftDendrogram(doc, shouldRenumber, 0, dy_for_names);
+            paintLeftDendrogram(canvas, prepareDendrogram(shouldRenumber), 0, dy_for_names);
         }
 
-        createHeatMapWithNames(doc, dx_before_dendrogram + dx_for_dendrogram, 0);
+        paintHeatMapWithNames(canvas, dx_before_dendrogram + dx_for_dendrogram, 0);
 
-        createColorScale(doc, dx_before_dendrogram + dx_for_dendrogram - 120,
+        paintColorScale(canvas, dx_before_dendrogram + dx_for_dendrogram - 120,
                 dy_for_names + gridSize + dy_before_color);
+    }
 
+    public Document createFullHeatMap(boolean shouldRenumber) {
+        Document doc = createDocument(getFullWidth(), getFullHeight());
+        paintFullHeatMap(new DomCanvas(doc), shouldRenumber);
         return doc;
     }
 
+    /**
+     * Writes full heat map to SVG file element by element, without building the DOM document.
+     */
+    public void writeFullHeatMap(boolean shouldRenumber, File file) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 20));   // 1 Mb buffer
+        out.print("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.print("<svg xmlns=\"" + svgNS + "\" width=\"" + getFullWidth() + "\" height=\"" + getFullHeight()
+                + "\" version=\"1.0\">\n");
+        paintFullHeatMap(new StreamCanvas(out), shouldRenumber);
+        out.print("</svg>\n");
+        out.close();
+        if (out.checkError()) {
+            throw new IOException("Can't write heat map to file " + file);
+        }
+    }
+
 
 }
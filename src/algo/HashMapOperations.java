@@ -1,16 +1,22 @@
 package algo;
 
 import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.structures.map.*;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
 
 public class HashMapOperations {
 
-    public static byte getLeftNucleotide(BigLong2ShortHashMap hm, ShortKmer kmer, int freqThreshold) {
+    public static byte getLeftNucleotide(Long2ShortHashMapInterface hm, ShortKmer kmer, int freqThreshold) {
         byte rightNuc = kmer.nucAt(kmer.length() - 1);
         byte ansNuc = -1;
         for (byte nuc = 0; nuc <= 3; nuc++) {
@@ -28,7 +34,7 @@ public class HashMapOperations {
         return ansNuc;
     }
 
-    public static byte getRightNucleotide(BigLong2ShortHashMap hm, ShortKmer kmer, int freqThreshold) {
+    public static byte getRightNucleotide(Long2ShortHashMapInterface hm, ShortKmer kmer, int freqThreshold) {
         byte leftNuc = kmer.nucAt(0);
         byte ansNuc = -1;
         for (byte nuc = 0; nuc <= 3; nuc++) {
@@ -81,4 +87,61 @@ public class HashMapOperations {
         logger.info("Total k-mers under threshold = " + totalUnderThreshold + ", unique = " + uniqueUnderThreshold);
         logger.info("Total k-mers banned = " + totalBanned + ", unique = " + uniqueBanned);
     }
+
+    /**
+     * Parallel version of {@link #banBranchingKmers(BigLong2ShortHashMap, int, int, Logger)}.
+     * Branching k-mers are found for the whole graph first (small maps are processed in parallel)
+     * and banned afterwards, so the result doesn't depend on the order of k-mers.
+     */
+    public static void banBranchingKmers(final BigLong2ShortHashMap hm,
+                                         final int freqThreshold,
+                                         final int k,
+                                         int availableProcessors,
+                                         Logger logger) throws ExecutionFailedException {
+        final short BAN_VALUE = -1;
+        ExecutorService executor = Executors.newFixedThreadPool(availableProcessors);
+        List<Future<LongArrayList>> results = new ArrayList<Future<LongArrayList>>();
+        for (final Long2ShortHashMap map : hm.maps) {
+            results.add(executor.submit(new Callable<LongArrayList>() {
+                @Override
+                public LongArrayList call() {
+                    LongArrayList branching = new LongArrayList();
+                    Iterator<MutableLongShortEntry> it = map.entryIterator();
+                    while (it.hasNext()) {
+                        MutableLongShortEntry entry = it.next();
+                        if (entry.getValue() <= freqThreshold) {
+                            continue;
+                        }
+                        ShortKmer kmer = new ShortKmer(entry.getKey(), k);
+                        if (getLeftNucleotide(hm, kmer, freqThreshold) == -2 ||
+                                getRightNucleotide(hm, kmer, freqThreshold) == -2) {
+                            branching.add(entry.getKey());
+                        }
+                    }
+                    return branching;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        long totalBanned = 0, uniqueBanned = 0;
+        try {
+            for (Future<LongArrayList> result : results) {
+                LongArrayList branching = result.get();
+                for (int i = 0; i < branching.size(); i++) {
+                    long key = branching.getLong(i);
+                    totalBanned += hm.put(key, BAN_VALUE);
+                    uniqueBanned++;
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new ExecutionFailedException("Can't find branching k-mers", e.getCause());
+        }
+
+        Tool.info(logger, "Total k-mers banned = " + totalBanned + ", unique = " + uniqueBanned);
+    }
 }
@@ -0,0 +1,152 @@
+package algo;
+
+/**
+ * Average-linkage (UPGMA) agglomerative clustering of n objects.
+ * <p>
+ * Group distances are updated by the Lance-Williams formula (kept as sums of pairwise distances, averages
+ * are computed from them when needed, so only one triangular matrix is stored), and for every row
+ * the nearest neighbour among the following rows is cached, so one merge costs O(n) amortized instead of
+ * rescanning the whole matrix and recomputing group distances over all pairs of leaves.
+ * <p>
+ * Merge order is the same as for the naive algorithm: on every step the pair (i, j), i &lt; j,
+ * with minimal distance is merged, ties are resolved in favour of the first pair in row-major order,
+ * the result is stored at slot i and slot j is removed. Sums of distances are added in other order than
+ * in the naive algorithm, so if they are rounded (e.g. for distances like 0.1), groups with mathematically
+ * equal distances may compare differently in the last bits and be merged in other order.
+ */
+public class HierarchicalClustering {
+
+    public final int n;
+
+    /**
+     * Slots merged on step s: mergeI[s] &lt; mergeJ[s], result is stored in slot mergeI[s].
+     */
+    public final int[] mergeI, mergeJ;
+    public final double[] mergeDist;
+
+
+    public HierarchicalClustering(double[][] distMatrix) {
+        n = distMatrix.length;
+        int steps = Math.max(n - 1, 0);
+        mergeI = new int[steps];
+        mergeJ = new int[steps];
+        mergeDist = new double[steps];
+        run(distMatrix);
+    }
+
+
+    // sum[i][j - i - 1] - sum of distances between leaves of slots i and j, i < j (upper triangle only),
+    // average distance is computed from it when needed, see dist()
+    private double[][] sum;
+    private boolean[] active;
+    private int[] size;
+    private int[] mergedOn;     // step on which slot i was merged into last, -1 for a leaf
+    private int[] nn;           // nearest neighbour of row i among active j > i, or -1
+    private double[] nnDist;
+
+    private int index(int i, int j) {
+        return (i < j) ? j - i - 1 : i - j - 1;
+    }
+
+    /**
+     * @return average distance between slots i and j, i &lt; j; the sum is divided by the size of the slot
+     * merged into last first, as the naive algorithm does, so the rounding is the same
+     */
+    private double dist(int i, int j) {
+        double s = sum[i][j - i - 1];
+        return (mergedOn[j] > mergedOn[i]) ? s / size[j] / size[i] : s / size[i] / size[j];
+    }
+
+    private void updateNearest(int i) {
+        double minDist = Double.MAX_VALUE;
+        int best = -1;
+        for (int j = i + 1; j < n; j++) {
+            if (active[j]) {
+                double d = dist(i, j);
+                if (d < minDist) {
+                    minDist = d;
+                    best = j;
+                }
+            }
+        }
+        nn[i] = best;
+        nnDist[i] = minDist;
+    }
+
+    private void run(double[][] distMatrix) {
+        sum = new double[n][];
+        active = new boolean[n];
+        size = new int[n];
+        mergedOn = new int[n];
+        nn = new int[n];
+        nnDist = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            sum[i] = new double[n - i - 1];
+            for (int j = i + 1; j < n; j++) {
+                sum[i][j - i - 1] = distMatrix[i][j];
+            }
+            active[i] = true;
+            size[i] = 1;
+            mergedOn[i] = -1;
+        }
+        for (int i = 0; i < n; i++) {
+            updateNearest(i);
+        }
+
+        for (int step = 0; step < n - 1; step++) {
+            // finding minimal pair, the first one in row-major order
+            double minDist = Double.MAX_VALUE;
+            int i = -1;
+            for (int ii = 0; ii < n; ii++) {
+                if (active[ii] && nn[ii] != -1 && nnDist[ii] < minDist) {
+                    minDist = nnDist[ii];
+                    i = ii;
+                }
+            }
+            if (i == -1 || minDist < 0) {
+                throw new RuntimeException("Internal error. Wrong minDist index.");
+            }
+            int j = nn[i];
+
+            mergeI[step] = i;
+            mergeJ[step] = j;
+            mergeDist[step] = minDist;
+
+            // merging j into i, Lance-Williams update for average linkage
+            active[j] = false;
+            size[i] += size[j];
+            mergedOn[i] = step;
+            for (int k = 0; k < n; k++) {
+                if (active[k] && k != i) {
+                    sum[Math.min(i, k)][index(i, k)] += sum[Math.min(j, k)][index(j, k)];
+                }
+            }
+            sum[j] = null;
+
+            // updating cached nearest neighbours
+            updateNearest(i);
+            for (int k = 0; k < j; k++) {
+                if (!active[k] || k == i) {
+                    continue;
+                }
+                if (nn[k] == i || nn[k] == j) {
+                    updateNearest(k);
+                } else if (k < i) {
+                    double d = dist(k, i);
+                    if (d < nnDist[k] || (d == nnDist[k] && i < nn[k])) {
+                        nn[k] = i;
+                        nnDist[k] = d;
+                    }
+                }
+            }
+        }
+
+        sum = null;
+        active = null;
+        size = null;
+        mergedOn = null;
+        nn = null;
+        nnDist = null;
+    }
+}
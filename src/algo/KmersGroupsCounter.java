@@ -0,0 +1,161 @@
+package algo;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.dna.kmers.ShortKmer;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counts for every target k-mer the number of samples containing it, separately for every group of samples.<br></br>
+ * <br></br>
+ * Target k-mers are loaded once into an index (a hash map that isn't modified afterwards),
+ * counters are aligned with positions of the index: one int counter per group for every position,
+ * they are stored in chunks, so their number isn't limited by the maximal array size.
+ * Samples' k-mers files are streamed in parallel (one file per thread), every k-mer is looked up
+ * in the index and the counter of sample's group is atomically incremented, so no map is built for a sample.
+ */
+public class KmersGroupsCounter {
+
+    static final int LOG_CHUNK_SIZE = 20;
+    static final int CHUNK_SIZE = 1 << LOG_CHUNK_SIZE;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    final BigLong2ShortHashMap index;
+    final int groups;
+    final AtomicIntegerArray[] counts;      // counter of (position, group) is cell position * groups + group
+
+    /**
+     * @param index target k-mers, it mustn't be modified after creation of the counter
+     */
+    public KmersGroupsCounter(BigLong2ShortHashMap index, int groups) {
+        this.index = index;
+        this.groups = groups;
+        index.prepare();
+        long cells = (index.maxPosition() + 1) * groups;
+        counts = new AtomicIntegerArray[(int) ((cells + CHUNK_SIZE - 1) >>> LOG_CHUNK_SIZE)];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new AtomicIntegerArray((int) Math.min(CHUNK_SIZE, cells - ((long) i << LOG_CHUNK_SIZE)));
+        }
+    }
+
+    private void increment(long pos, int group) {
+        long cell = pos * groups + group;
+        counts[(int) (cell >>> LOG_CHUNK_SIZE)].incrementAndGet((int) (cell & CHUNK_MASK));
+    }
+
+    private int count(long pos, int group) {
+        long cell = pos * groups + group;
+        return counts[(int) (cell >>> LOG_CHUNK_SIZE)].get((int) (cell & CHUNK_MASK));
+    }
+
+
+    /**
+     * Processes all samples, <code>samples[g]</code> are k-mers files of samples from group <code>g</code>.
+     * A sample contains a k-mer if k-mer's frequency in it is greater than <code>freqThreshold</code>.
+     */
+    public void countSamples(File[][] samples, final int freqThreshold, int availableProcessors, final Logger logger)
+            throws ExecutionFailedException {
+        if (samples.length != groups) {
+            throw new IllegalArgumentException("Expected " + groups + " groups of samples, got " + samples.length);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(availableProcessors);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (int g = 0; g < groups; g++) {
+            for (final File file : samples[g]) {
+                final int group = g;
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        long found = countSample(file, group, freqThreshold);
+                        Tool.debug(logger, "Sample " + file.getName() + " contains " +
+                                NumUtils.groupDigits(found) + " target k-mers");
+                        return found;
+                    }
+                }));
+            }
+        }
+        executor.shutdown();
+
+        try {
+            for (Future<Long> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new ExecutionFailedException("Can't process k-mers file: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Streams k-mers file and increments counters of the group for target k-mers present in the sample.
+     *
+     * @return number of target k-mers found in the sample
+     */
+    long countSample(File file, int group, int freqThreshold) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+        long records = file.length() / 10;      // long k-mer + short frequency
+        long found = 0;
+        try {
+            for (long i = 0; i < records; i++) {
+                long kmer = in.readLong();
+                short freq = in.readShort();
+                if (freq <= freqThreshold) {
+                    continue;
+                }
+                long pos = index.getPosition(kmer);
+                if (pos >= 0) {
+                    increment(pos, group);
+                    found++;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return found;
+    }
+
+
+    /**
+     * @return number of samples from the group containing the k-mer
+     */
+    public int get(long kmer, int group) {
+        long pos = index.getPosition(kmer);
+        return (pos < 0) ? 0 : count(pos, group);
+    }
+
+    /**
+     * Prints all target k-mers with counters for every group as a tab-separated table.
+     */
+    public void print(PrintWriter out, String[] groupNames, int k) {
+        StringBuilder header = new StringBuilder("Kmer");
+        for (String name : groupNames) {
+            header.append('\t').append(name).append("_count");
+        }
+        out.println(header);
+
+        StringBuilder sb = new StringBuilder();
+        for (long pos = 0, maxPos = index.maxPosition(); pos <= maxPos; pos++) {
+            if (!index.containsAt(pos)) {
+                continue;
+            }
+            sb.setLength(0);
+            sb.append(new ShortKmer(index.keyAt(pos), k));
+            for (int g = 0; g < groups; g++) {
+                sb.append('\t').append(count(pos, g));
+            }
+            out.println(sb);
+        }
+    }
+}
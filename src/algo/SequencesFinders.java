@@ -1,5 +1,7 @@
 package algo;
 
+import io.Metrics;
+import io.Tracer;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import ru.ifmo.genetics.executors.BlockingThreadPoolExecutor;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
@@ -21,8 +23,21 @@ public class SequencesFinders {
         BlockingThreadPoolExecutor executor = new BlockingThreadPoolExecutor(availableProcessors);
 
         for (int i = 0; i < hm.maps.length; ++i) {
-            executor.blockingExecute(new
-                    AddSequencesShiftingRightTask(hm, hm.maps[i], k, freqThreshold, lenThreshold, ans, used));
+            final Runnable task = new
+                    AddSequencesShiftingRightTask(hm, hm.maps[i], k, freqThreshold, lenThreshold, ans, used);
+            Metrics.SEQUENCES_FINDER_QUEUED.inc();
+            executor.blockingExecute(new Runnable() {
+                @Override
+                public void run() {
+                    Metrics.SEQUENCES_FINDER_QUEUED.dec();
+                    Tracer.Span span = Tracer.begin("finding sequences", "worker");
+                    try {
+                        task.run();
+                    } finally {
+                        span.end();
+                    }
+                }
+            });
         }
 
 //        System.out.println(executor.getTaskCount());
@@ -48,6 +48,7 @@ public class BytesDispatcher {
             }
 
             bytesRead += read;
+            Metrics.BYTES.add(read);
             /*
             if ((bytesRead & ((1 << 29) - 1)) == 0) { // 512 Mb
                 Tool.debug(logger, "Processed " + (bytesRead >> 20) + " Mb of data:");
@@ -26,13 +26,24 @@ public abstract class BytesWorker implements Runnable {
         if (dispatcher == null || latch == null) {
             throw new RuntimeException("Not full initialization!");
         }
-        while (!interrupted) {
-            byte[] range = dispatcher.getNewEmptyWorkRange();
-            int r = dispatcher.readWorkRange(range);
-            if (r <= 0) {
-                break;
+        Tracer.Span span = Tracer.begin("bytes-worker", "worker");
+        try {
+            while (!interrupted) {
+                long start = System.nanoTime();
+                byte[] range = dispatcher.getNewEmptyWorkRange();
+                Metrics.BYTES_DISPATCHER_WAITING.inc();
+                int r = dispatcher.readWorkRange(range);
+                Metrics.BYTES_DISPATCHER_WAITING.dec();
+                if (r <= 0) {
+                    break;
+                }
+                long fetched = System.nanoTime();
+                process(range, r);
+                Metrics.FETCH_TIME.record((fetched - start) / 1000);
+                Metrics.PROCESS_TIME.record((System.nanoTime() - fetched) / 1000);
             }
-            process(range, r);
+        } finally {
+            span.end();
         }
         latch.countDown();
     }
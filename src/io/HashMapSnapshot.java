@@ -0,0 +1,335 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Raw snapshot of {@link BigLong2ShortHashMap} tables.<br></br>
+ * <br></br>
+ * Snapshot keeps small maps exactly as they are in memory (capacity, size, keys and values arrays),
+ * so restoring is a sequential read of the file without any hashing. Small maps are saved and restored
+ * in parallel, every one in its own region of the file:
+ * <pre>
+ *   magic, version (int), small maps count (int), long[count + 1] regions' positions,
+ *   regions written by {@link Long2ShortHashMap#write}
+ * </pre>
+ */
+public class HashMapSnapshot {
+
+    static final long MAGIC = 0x4D4653484D415031L;     // "MFSHMAP1"
+    static final int VERSION = 1;
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+
+    /**
+     * Saves the map to the file, the map mustn't be modified during saving.
+     */
+    public static void save(final BigLong2ShortHashMap hm, File file, int availableProcessors, Logger logger)
+            throws IOException {
+        Tracer.Span span = Tracer.begin("saving hash map snapshot", "io", "file", file.getName());
+        final Long2ShortHashMap[] maps = hm.maps;
+        final long[] positions = new long[maps.length + 1];
+        positions[0] = 8 + 4 + 4 + 8L * positions.length;
+        for (int i = 0; i < maps.length; i++) {
+            // see Long2ShortHashMap.write
+            positions[i + 1] = positions[i] + 4 + 4 + 4 + maps[i].capacity() * 10 + 1 + 2;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(positions[maps.length]);
+            final FileChannel channel = raf.getChannel();
+
+            DataOutputStream header = new DataOutputStream(new BufferedOutputStream(new RegionOutputStream(channel, 0)));
+            header.writeLong(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(maps.length);
+            for (long position : positions) {
+                header.writeLong(position);
+            }
+            header.flush();
+
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(maps.length);
+            for (int i = 0; i < maps.length; i++) {
+                final int n = i;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                new RegionOutputStream(channel, positions[n]), BUFFER_SIZE));
+                        maps[n].write(out);
+                        out.flush();
+                        return null;
+                    }
+                });
+            }
+            runAll(tasks, availableProcessors);
+        } finally {
+            raf.close();
+            span.end();
+        }
+        Tool.debug(logger, "Hash map snapshot with " + NumUtils.groupDigits(hm.size()) + " k-mers saved to " + file +
+                " (" + NumUtils.memoryAsString(file.length()) + ")");
+    }
+
+    /**
+     * Restores the map saved by {@link #save}.
+     */
+    public static BigLong2ShortHashMap load(File file, int availableProcessors, Logger logger) throws IOException {
+        Tracer.Span span = Tracer.begin("loading hash map snapshot", "io", "file", file.getName());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            ChannelDataInput header = new ChannelDataInput(channel, 0, channel.size());
+            if (header.readLong() != MAGIC) {
+                throw new IOException("Not a hash map snapshot: " + file);
+            }
+            int version = header.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported hash map snapshot version " + version + ": " + file);
+            }
+            int count = header.readInt();
+            if (Integer.bitCount(count) != 1) {
+                throw new IOException("Bad small maps count " + count + " in snapshot " + file);
+            }
+            final long[] positions = new long[count + 1];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = header.readLong();
+            }
+            if (positions[count] != channel.size()) {
+                throw new IOException("Snapshot " + file + " is truncated");
+            }
+
+            final BigLong2ShortHashMap hm = new BigLong2ShortHashMap(Integer.numberOfTrailingZeros(count), 0);
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(count);
+            for (int i = 0; i < count; i++) {
+                final int n = i;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        Long2ShortHashMap map = new Long2ShortHashMap(0, Long2ShortHashMap.DEFAULT_MAX_LOAD_FACTOR);
+                        map.readFields(new ChannelDataInput(channel, positions[n], positions[n + 1]));
+                        hm.maps[n] = map;
+                        return null;
+                    }
+                });
+            }
+            runAll(tasks, availableProcessors);
+
+            Tool.debug(logger, "Hash map with " + NumUtils.groupDigits(hm.size()) + " k-mers restored from " + file);
+            return hm;
+        } finally {
+            raf.close();
+            span.end();
+        }
+    }
+
+
+    private static void runAll(List<Callable<Void>> tasks, int availableProcessors) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(availableProcessors);
+        try {
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Writes to the file from the given position, positional writes don't affect other regions' writers.
+     */
+    static class RegionOutputStream extends OutputStream {
+        final FileChannel channel;
+        long position;
+
+        RegionOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Reads the region of the file through a byte buffer, primitives are taken from the buffer directly.
+     */
+    static class ChannelDataInput implements DataInput {
+        final FileChannel channel;
+        final ByteBuffer buffer;
+        long position, end;
+
+        ChannelDataInput(FileChannel channel, long from, long to) {
+            this.channel = channel;
+            position = from;
+            end = to;
+            buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(to - from, 8)));
+            buffer.limit(0);
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < n) {
+                int len = (int) Math.min(buffer.remaining(), end - position);
+                if (len <= 0) {
+                    throw new EOFException();
+                }
+                int oldLimit = buffer.limit();
+                buffer.limit(buffer.position() + len);
+                int r = channel.read(buffer, position);
+                buffer.limit(oldLimit);
+                if (r < 0) {
+                    throw new EOFException();
+                }
+                position += r;
+            }
+            buffer.flip();
+        }
+
+        @Override
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ensure(1);
+                int r = Math.min(len, buffer.remaining());
+                buffer.get(b, off, r);
+                off += r;
+                len -= r;
+            }
+        }
+
+        @Override
+        public int skipBytes(int n) throws IOException {
+            readFully(new byte[n]);
+            return n;
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            ensure(1);
+            return buffer.get();
+        }
+
+        @Override
+        public int readUnsignedByte() throws IOException {
+            return readByte() & 0xff;
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            ensure(2);
+            return buffer.getShort();
+        }
+
+        @Override
+        public int readUnsignedShort() throws IOException {
+            return readShort() & 0xffff;
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            ensure(2);
+            return buffer.getChar();
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            ensure(8);
+            return buffer.getLong();
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            ensure(4);
+            return buffer.getFloat();
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            ensure(8);
+            return buffer.getDouble();
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            if (!hasRemaining()) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            while (hasRemaining()) {
+                int c = readUnsignedByte();
+                if (c == '\n') {
+                    break;
+                }
+                if (c == '\r') {
+                    if (hasRemaining()) {
+                        ensure(1);
+                        if (buffer.get(buffer.position()) == '\n') {
+                            buffer.get();
+                        }
+                    }
+                    break;
+                }
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        private boolean hasRemaining() {
+            return buffer.hasRemaining() || position < end;
+        }
+
+        @Override
+        public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+    }
+}
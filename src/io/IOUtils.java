@@ -1,5 +1,7 @@
 package io;
 
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
 import org.apache.log4j.Logger;
 import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
@@ -8,21 +10,35 @@ import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.statistics.QuickQuantitativeStatistics;
 import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.structures.set.LongHashSet;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Tool;
+import structures.CompactLong2ShortHashMap;
+import structures.HyperLogLog;
+import structures.KmersMapBackend;
+import structures.OffHeapLong2ShortHashMap;
+import structures.SortedLong2ShortMap;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class IOUtils {
 
     static final int READS_WORK_RANGE_SIZE = 1 << 15;   // 32 K reads
     static final int KMERS_WORK_RANGE_SIZE = 16777220;   // ~16 Mb of data
 
+    static final int SKETCH_P = 16;                 // 0.4% standard error of k-mers count estimation
+    public static final double PRESIZE_MARGIN = 1.02;  // for estimation error and uneven distribution among small maps
+
 
 
     public static String withP(long cur, long all) {
@@ -36,7 +52,7 @@ public class IOUtils {
 
 
 
-    public static long printKmers(BigLong2ShortHashMap hm, int threshold,
+    public static long printKmers(Long2ShortHashMapInterface hm, int threshold,
                                   File outFile, File stFile) throws IOException {
         DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
                 new FileOutputStream(outFile), 1 << 24));   // 16 Mb buffer
@@ -60,11 +76,53 @@ public class IOUtils {
         }
 
         stream.close();
+        if (stFile != null) {
+            stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
+        }
+        return good;
+    }
+
+    /**
+     * Removes k-mers with frequency not greater than <code>threshold</code> from the map
+     * (every small map is replaced with the compact one containing only good k-mers)
+     * and prints frequency statistics of all k-mers to <code>stFile</code>.
+     *
+     * @return number of good k-mers left in the map
+     */
+    public static long filterKmers(BigLong2ShortHashMap hm, int threshold, File stFile) throws IOException {
+        QuickQuantitativeStatistics<Short> stats = new QuickQuantitativeStatistics<Short>();
+        long good = 0;
+
+        for (int i = 0; i < hm.maps.length; i++) {
+            Long2ShortHashMap map = hm.maps[i];
+            int goodInMap = 0;
+            Iterator<MutableLongShortEntry> it = map.entryIterator();
+            while (it.hasNext()) {
+                short value = it.next().getValue();
+                stats.add(value);
+                if (value > threshold) {
+                    goodInMap++;
+                }
+            }
+
+            Long2ShortHashMap filtered = new Long2ShortHashMap(
+                    Math.max((int) (goodInMap / LongHashSet.DEFAULT_MAX_LOAD_FACTOR) + 1, 1 << 4));
+            it = map.entryIterator();
+            while (it.hasNext()) {
+                MutableLongShortEntry entry = it.next();
+                if (entry.getValue() > threshold) {
+                    filtered.put(entry.getKey(), entry.getValue());
+                }
+            }
+            hm.maps[i] = filtered;
+            good += goodInMap;
+        }
+
         stats.printToFile(stFile, "# k-mer frequency\tnumber of such k-mers");
         return good;
     }
 
-    public static long filterAndPrintKmers(BigLong2ShortHashMap hm, BigLong2ShortHashMap filter_hm,
+    public static long filterAndPrintKmers(Long2ShortHashMapInterface hm, Long2ShortHashMapInterface filter_hm,
                                            int threshold, int filter_threshold, File out) throws IOException {
         DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
                 new FileOutputStream(out), 1 << 24));   // 16 Mb buffer
@@ -88,10 +146,10 @@ public class IOUtils {
         return good;
     }
 
-    public static long MultipleFiltersAndPrintKmers(BigLong2ShortHashMap hm,
-                                                    BigLong2ShortHashMap cd_filter_hm,
-                                                    BigLong2ShortHashMap uc_filter_hm,
-                                                    BigLong2ShortHashMap nonibd_filter_hm,
+    public static long MultipleFiltersAndPrintKmers(Long2ShortHashMapInterface hm,
+                                                    Long2ShortHashMapInterface cd_filter_hm,
+                                                    Long2ShortHashMapInterface uc_filter_hm,
+                                                    Long2ShortHashMapInterface nonibd_filter_hm,
                                                     int threshold, File out, File stFile) throws IOException {
         DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
                 new FileOutputStream(out), 1 << 24));   // 16 Mb buffer
@@ -201,16 +259,23 @@ public class IOUtils {
     // ---------------------------- for loading kmers ----------------------------------
 
     static class Kmers2HMWorker extends KmersLoadWorker {
-        Kmers2HMWorker(BigLong2ShortHashMap hm, int freqThreshold) {
+        Kmers2HMWorker(Long2ShortHashMapInterface hm, int freqThreshold) {
             this.hm = hm;
             this.freqThreshold = freqThreshold;
         }
 
-        final BigLong2ShortHashMap hm;
+        final Long2ShortHashMapInterface hm;
         final int freqThreshold;
         long kmers = 0, kmersAdded = 0;
         long freqSum = 0, freqSumAdded = 0;
 
+        @Override
+        public void process(byte[] range, int len) {
+            long kmersAddedBefore = kmersAdded;
+            super.process(range, len);
+            Metrics.KMERS_INSERTED.add(kmersAdded - kmersAddedBefore);
+        }
+
         @Override
         public void processKmer(long kmer, short freq) {
             kmers++;
@@ -223,18 +288,105 @@ public class IOUtils {
         }
     }
 
+    static class KmersCardinalityWorker extends KmersLoadWorker {
+        KmersCardinalityWorker(int freqThreshold) {
+            this.freqThreshold = freqThreshold;
+        }
+
+        final int freqThreshold;
+        final HyperLogLog sketch = new HyperLogLog(SKETCH_P);
+        long kmersPassed = 0;
+
+        @Override
+        public void processKmer(long kmer, short freq) {
+            if (freq > freqThreshold) {
+                sketch.add(kmer);
+                kmersPassed++;
+            }
+        }
+    }
+
+    /**
+     * Estimates the number of distinct k-mers with frequency greater than <code>freqThreshold</code> in k-mers files.
+     * If there is only one file and nothing is filtered, the number is taken from file's size (k-mers in the file
+     * are unique), otherwise the files are pre-scanned with HyperLogLog sketches.
+     */
+    public static long estimateKmersCount(File[] files, int freqThreshold, int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        if (files.length == 1 && freqThreshold <= 0) {
+            return files[0].length() / KmersLoadWorker.KMER_RECORD_SIZE;
+        }
+
+        Tool.debug(logger, "Estimating number of distinct k-mers...");
+        Tracer.Span span = Tracer.begin("estimating k-mers count", "input");
+        try {
+            KmersCardinalityWorker[] workers = new KmersCardinalityWorker[availableProcessors];
+            for (int i = 0; i < workers.length; ++i) {
+                workers[i] = new KmersCardinalityWorker(freqThreshold);
+            }
+            run(files, workers, null, logger);
+
+            HyperLogLog sketch = new HyperLogLog(SKETCH_P);
+            long kmersPassed = 0;
+            for (KmersCardinalityWorker worker : workers) {
+                sketch.merge(worker.sketch);
+                kmersPassed += worker.kmersPassed;
+            }
+            long estimate = (files.length == 1) ? kmersPassed : Math.min(kmersPassed, sketch.estimate());
+            Tool.debug(logger, "Estimated number of distinct k-mers = " + NumUtils.groupDigits(estimate));
+            return estimate;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Logarithm of small maps' capacity, such that <code>expectedSize</code> elements can be added
+     * to the big map of 2^<code>logMapsNumber</code> small maps without resizing.
+     */
+    public static int logSmallCapacity(long expectedSize, int logMapsNumber) {
+        double perMap = expectedSize * PRESIZE_MARGIN / (1L << logMapsNumber) / LongHashSet.DEFAULT_MAX_LOAD_FACTOR;
+        int logCapacity = 12;
+        while (logCapacity < 30 && (1L << logCapacity) < perMap) {
+            logCapacity++;
+        }
+        return logCapacity;
+    }
+
+    /**
+     * Creates k-mers map for <code>expectedSize</code> k-mers, so no rehashing is needed during loading.
+     */
+    public static BigLong2ShortHashMap createKmersMap(long expectedSize, int availableProcessors) {
+        int logMapsNumber = (int) (Math.log(availableProcessors) / Math.log(2)) + 4;
+        return new BigLong2ShortHashMap(logMapsNumber, logSmallCapacity(expectedSize, logMapsNumber));
+    }
+
     public static BigLong2ShortHashMap loadKmers(File[] files, int freqThreshold, int availableProcessors, Logger logger)
             throws ExecutionFailedException {
 
-        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12);
+        long expectedSize = estimateKmersCount(files, freqThreshold, availableProcessors, logger);
+        BigLong2ShortHashMap hm = createKmersMap(expectedSize, availableProcessors);
+        loadKmers(files, freqThreshold, hm, availableProcessors, logger);
+        return hm;
+    }
 
+    /**
+     * Adds k-mers with frequency greater than <code>freqThreshold</code> to the given map,
+     * the map must support concurrent adding.
+     */
+    public static void loadKmers(File[] files, int freqThreshold, Long2ShortHashMapInterface hm,
+                                 int availableProcessors, Logger logger) throws ExecutionFailedException {
         Kmers2HMWorker[] workers = new Kmers2HMWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
             workers[i] = new Kmers2HMWorker(hm, freqThreshold);
         }
 
-        run(files, workers, hm, logger);
+        beforeLoading(hm);
+        try {
+            run(files, workers, (hm instanceof BigLong2ShortHashMap) ? (BigLong2ShortHashMap) hm : null, logger);
+        } finally {
+            afterLoading(hm, logger);
+        }
 
         // calculating statistics...
         long kmers = 0, kmersAdded = 0;
@@ -253,10 +405,241 @@ public class IOUtils {
                 "Added/All kmers frequency sum = " + NumUtils.groupDigits(freqSumAdded) + "/" + NumUtils.groupDigits(freqSum)
                         + " (" + String.format("%.1f", freqSumAdded * 100.0 / freqSum) + "%)");
         Tool.debug(logger, "k-mers HM size = " + NumUtils.groupDigits(hm.size()));
+    }
+
+    /**
+     * The same as {@link #loadKmers}, but if results cache is enabled (<code>--cache-dir</code>),
+     * the map is restored from its snapshot, which is saved to the cache after the first loading.
+     * Snapshot restoring is a sequential read of the map's tables without rehashing of k-mers.
+     */
+    public static BigLong2ShortHashMap loadKmersWithSnapshot(File[] files, int freqThreshold, int availableProcessors,
+                                                             Logger logger) throws ExecutionFailedException {
+        ResultCache cache = ResultCache.getInstance();
+        if (cache == null) {
+            return loadKmers(files, freqThreshold, availableProcessors, logger);
+        }
+
+        String key;
+        try {
+            key = cache.getKey("kmers-map-snapshot", files, "threshold=" + freqThreshold,
+                    "version=" + HashMapSnapshot.VERSION);
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't read k-mers files: " + e.getMessage(), e);
+        }
+        File snapshot = cache.get(key, 0);
+        if (snapshot != null) {
+            try {
+                BigLong2ShortHashMap hm = HashMapSnapshot.load(snapshot, availableProcessors, logger);
+                Tool.info(logger, "k-mers map restored from snapshot in cache, " +
+                        NumUtils.groupDigits(hm.size()) + " k-mers");
+                return hm;
+            } catch (IOException e) {
+                // entry could be removed by concurrent eviction
+                Tool.warn(logger, "Can't restore k-mers map from snapshot: " + e.getMessage());
+            }
+        }
+
+        BigLong2ShortHashMap hm = loadKmers(files, freqThreshold, availableProcessors, logger);
+        File tmp = new File(cache.getTmpDir(), key + ".snapshot" + ResultCache.TMP_SUFFIX);
+        try {
+            HashMapSnapshot.save(hm, tmp, availableProcessors, logger);
+            cache.storeMoving(key, tmp);
+        } catch (IOException e) {
+            Tool.warn(logger, "Can't save k-mers map snapshot: " + e.getMessage());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+        return hm;
+    }
+
+    /**
+     * Loads k-mers to the map of the backend selected by <code>--kmers-map</code> launch option.
+     * If the map is to be <code>modifiable</code> (new k-mers are added), but the selected backend
+     * doesn't support it, the heap backend is used.
+     */
+    public static Long2ShortHashMapInterface loadKmersMap(File[] files, int freqThreshold, boolean modifiable,
+                                                          int availableProcessors, Logger logger)
+            throws ExecutionFailedException {
+        return selectBackend(modifiable, logger).loadKmers(files, freqThreshold, availableProcessors, logger);
+    }
+
+    /**
+     * The same as {@link #loadKmersMap}, but for maps loaded from the same files in many runs
+     * (filters, selected k-mers): the backend may keep a snapshot of the map to restore it next time.
+     */
+    public static Long2ShortHashMapInterface loadKmersMapWithSnapshot(File[] files, int freqThreshold,
+                                                                      boolean modifiable, int availableProcessors,
+                                                                      Logger logger) throws ExecutionFailedException {
+        return selectBackend(modifiable, logger).loadKmersWithSnapshot(files, freqThreshold, availableProcessors, logger);
+    }
+
+    private static KmersMapBackend selectBackend(boolean modifiable, Logger logger) {
+        KmersMapBackend backend = KmersMapBackend.selected();
+        if (modifiable && !backend.supportsConcurrentAdd()) {
+            Tool.debug(logger, "k-mers map backend " + backend + " doesn't support adding k-mers, using " +
+                    KmersMapBackend.HEAP + " backend");
+            backend = KmersMapBackend.HEAP;
+        }
+        return backend;
+    }
+
+
+    static class KmersPartsCountWorker extends KmersLoadWorker {
+        KmersPartsCountWorker(int freqThreshold, int partsNumber) {
+            this.freqThreshold = freqThreshold;
+            counts = new long[partsNumber];
+        }
+
+        final int freqThreshold;
+        final long[] counts;
+        long kmers = 0;
+
+        @Override
+        public void processKmer(long kmer, short freq) {
+            kmers++;
+            if (freq > freqThreshold) {
+                counts[SortedLong2ShortMap.partOf(kmer, counts.length)]++;
+            }
+        }
+    }
+
+    static class KmersPartsFillWorker extends KmersLoadWorker {
+        KmersPartsFillWorker(int freqThreshold, long[][] keys, short[][] values, AtomicIntegerArray cursors) {
+            this.freqThreshold = freqThreshold;
+            this.keys = keys;
+            this.values = values;
+            this.cursors = cursors;
+        }
+
+        final int freqThreshold;
+        final long[][] keys;
+        final short[][] values;
+        final AtomicIntegerArray cursors;
+
+        @Override
+        public void processKmer(long kmer, short freq) {
+            if (freq > freqThreshold) {
+                int n = SortedLong2ShortMap.partOf(kmer, keys.length);
+                int pos = cursors.getAndIncrement(n);
+                keys[n][pos] = kmer;
+                values[n][pos] = freq;
+            }
+        }
+    }
+
+    /**
+     * Loads k-mers with frequency greater than <code>freqThreshold</code> to read-only {@link SortedLong2ShortMap}.
+     * Files are read twice: k-mers are counted for every part of the map at first, then they are written
+     * to arrays of exact size, which are sorted afterwards (frequencies of repeated k-mers are summed).
+     */
+    public static SortedLong2ShortMap loadKmersSorted(File[] files, int freqThreshold, int availableProcessors,
+                                                      Logger logger) throws ExecutionFailedException {
+        int partsNumber = 1 << ((int) (Math.log(availableProcessors) / Math.log(2)) + 4);
+
+        Tool.debug(logger, "Counting k-mers for sorted k-mers map...");
+        KmersPartsCountWorker[] countWorkers = new KmersPartsCountWorker[availableProcessors];
+        for (int i = 0; i < countWorkers.length; ++i) {
+            countWorkers[i] = new KmersPartsCountWorker(freqThreshold, partsNumber);
+        }
+        run(files, countWorkers, null, logger);
+
+        final long[][] keys = new long[partsNumber][];
+        final short[][] values = new short[partsNumber][];
+        long kmers = 0, kmersAdded = 0;
+        for (int n = 0; n < partsNumber; n++) {
+            long count = 0;
+            for (KmersPartsCountWorker worker : countWorkers) {
+                count += worker.counts[n];
+            }
+            if (count > Integer.MAX_VALUE - 8) {
+                throw new ExecutionFailedException("Too many k-mers for sorted k-mers map");
+            }
+            keys[n] = new long[(int) count];
+            values[n] = new short[(int) count];
+            kmersAdded += count;
+        }
+        for (KmersPartsCountWorker worker : countWorkers) {
+            kmers += worker.kmers;
+        }
+
+        Tool.debug(logger, "Filling sorted k-mers map...");
+        AtomicIntegerArray cursors = new AtomicIntegerArray(partsNumber);
+        KmersPartsFillWorker[] fillWorkers = new KmersPartsFillWorker[availableProcessors];
+        for (int i = 0; i < fillWorkers.length; ++i) {
+            fillWorkers[i] = new KmersPartsFillWorker(freqThreshold, keys, values, cursors);
+        }
+        run(files, fillWorkers, null, logger);
+
+        Tracer.Span span = Tracer.begin("sorting k-mers map", "input");
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(partsNumber);
+        for (int i = 0; i < partsNumber; i++) {
+            final int n = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    sortAndMergePart(keys, values, n);
+                    return null;
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(availableProcessors);
+        try {
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ExecutionFailedException("Can't sort k-mers map", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            span.end();
+        }
 
+        SortedLong2ShortMap hm = new SortedLong2ShortMap(keys, values);
+        Tool.debug(logger,
+                "Added/All kmers count = " + NumUtils.groupDigits(kmersAdded) + "/" + NumUtils.groupDigits(kmers)
+                        + " (" + String.format("%.1f", kmersAdded * 100.0 / kmers) + "%)");
+        Tool.debug(logger, "k-mers sorted map size = " + NumUtils.groupDigits(hm.size()));
         return hm;
     }
 
+    /**
+     * Sorts the part by keys and sums frequencies of repeated keys, arrays are shrunk if needed.
+     */
+    static void sortAndMergePart(long[][] keys, short[][] values, int n) {
+        final long[] k = keys[n];
+        final short[] v = values[n];
+        it.unimi.dsi.fastutil.Arrays.quickSort(0, k.length, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return Long.compare(k[a], k[b]);
+            }
+        }, new Swapper() {
+            @Override
+            public void swap(int a, int b) {
+                long tk = k[a]; k[a] = k[b]; k[b] = tk;
+                short tv = v[a]; v[a] = v[b]; v[b] = tv;
+            }
+        });
+
+        int size = 0;
+        for (int i = 0; i < k.length; i++) {
+            if (size > 0 && k[size - 1] == k[i]) {
+                v[size - 1] = NumUtils.addAndBound(v[size - 1], v[i]);
+            } else {
+                k[size] = k[i];
+                v[size] = v[i];
+                size++;
+            }
+        }
+        if (size < k.length) {
+            keys[n] = Arrays.copyOf(k, size);
+            values[n] = Arrays.copyOf(v, size);
+        }
+    }
+
 
     static class KmersPresenceWorker extends KmersLoadWorker {
         KmersPresenceWorker(BigLong2LongHashMap hm) {
@@ -283,81 +666,227 @@ public class IOUtils {
 
     public static void run(File[] files, BytesWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
             throws ExecutionFailedException {
+        String mapName = monitorMap(files, hmForMonitoring);
         try {
             for (File file : files) {
                 Tool.info(logger, "Loading file " + file.getName() + "...");
-
-                InputStream is = new FileInputStream(file);
-                BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
-                CountDownLatch latch = new CountDownLatch(workers.length);
-
-                for (int i = 0; i < workers.length; ++i) {
-                    workers[i].setDispatcher(dispatcher);
-                    workers[i].setLatch(latch);
-                    new Thread(workers[i]).start();
-                }
-
+                Tracer.Span span = Tracer.begin("loading k-mers", "input", "file", file.getName());
                 try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Tool.warn(logger, "Main thread interrupted");
-                    for (BytesWorker worker : workers) {
-                        worker.interrupt();
+                    InputStream is = new FileInputStream(file);
+                    BytesDispatcher dispatcher = new BytesDispatcher(is, KMERS_WORK_RANGE_SIZE, hmForMonitoring);
+                    CountDownLatch latch = new CountDownLatch(workers.length);
+
+                    for (int i = 0; i < workers.length; ++i) {
+                        workers[i].setDispatcher(dispatcher);
+                        workers[i].setLatch(latch);
+                        new Thread(workers[i], "bytes-worker-" + i).start();
                     }
-                    throw new ExecutionFailedException("Thread was interrupted", e);
+
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Tool.warn(logger, "Main thread interrupted");
+                        for (BytesWorker worker : workers) {
+                            worker.interrupt();
+                        }
+                        throw new ExecutionFailedException("Thread was interrupted", e);
+                    }
+                    Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
+                } finally {
+                    span.end();
                 }
-                Tool.debug(logger, NumUtils.memoryAsString(dispatcher.bytesRead) + " of data processed");
             }
         } catch (IOException e) {
             throw new ExecutionFailedException("Can't load k-mers file", e);
+        } finally {
+            Metrics.unmonitorMap(mapName);
         }
     }
 
 
     // ---------------------------- for loading reads ----------------------------------
 
+    /**
+     * Counts k-mers of one or several sizes, <code>hms[i]</code> gets k-mers of size <code>ks[i]</code>.
+     * Nucleotides of a read are taken once, k-mers of every size are rolled over the same buffer
+     * (forward and reverse complement k-mers, the smaller one is counted, as {@link ShortKmer#toLong} does).
+     */
     static class ReadsLoadWorker extends ReadsWorker {
-        ReadsLoadWorker(BigLong2ShortHashMap hm, int k, int minDnaLen) {
-            this.hm = hm;
-            this.k = k;
+        ReadsLoadWorker(Long2ShortHashMapInterface[] hms, int[] ks, int minDnaLen) {
+            this.hms = hms;
+            this.ks = ks;
             this.minDnaLen = minDnaLen;
         }
 
-        final BigLong2ShortHashMap hm;
-        final int k;
+        final Long2ShortHashMapInterface[] hms;
+        final int[] ks;
         final int minDnaLen;
+        byte[] nucs = new byte[1 << 10];
         int totalSeq = 0, goodSeq = 0;
         long totalLen = 0, goodLen = 0;
 
         @Override
         public void process(List<Dna> reads) {
+            long len = 0, kmers = 0;
             for (Dna dna : reads) {
                 totalSeq++;
-                totalLen += dna.length();
+                len += dna.length();
 
                 if (dna.length() >= minDnaLen) {
-                    for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-                        hm.addAndBound(kmer.toLong(), (short) 1);
+                    int n = dna.length();
+                    if (nucs.length < n) {
+                        nucs = new byte[Math.max(n, nucs.length * 2)];
+                    }
+                    for (int i = 0; i < n; i++) {
+                        nucs[i] = dna.nucAt(i);
+                    }
+                    for (int j = 0; j < ks.length; j++) {
+                        addKmers(j, ks[j], n);
+                        kmers += Math.max(0, n - ks[j] + 1);
                     }
                     goodSeq++;
-                    goodLen += dna.length();
+                    goodLen += n;
                 }
             }
+            totalLen += len;
+            Metrics.NUCLEOTIDES.add(len);
+            Metrics.KMERS_INSERTED.add(kmers);
+        }
+
+        private void addKmers(int j, int k, int n) {
+            long mask = (1L << (2 * k)) - 1;
+            int rcShift = 2 * k - 2;
+            long fw = 0, rc = 0;
+            for (int i = 0; i < n; i++) {
+                byte nuc = nucs[i];
+                fw = ((fw << 2) | nuc) & mask;
+                rc = (rc >> 2) | ((3L - nuc) << rcShift);
+                if (i >= k - 1) {
+                    addKmer(j, Math.min(fw, rc));
+                }
+            }
+        }
+
+        void addKmer(int j, long kmer) {
+            hms[j].addAndBound(kmer, (short) 1);
+        }
+    }
+
+    static class ReadsCardinalityWorker extends ReadsLoadWorker {
+        ReadsCardinalityWorker(int[] ks) {
+            super(null, ks, 0);
+            sketches = new HyperLogLog[ks.length];
+            for (int j = 0; j < ks.length; j++) {
+                sketches[j] = new HyperLogLog(SKETCH_P);
+            }
+        }
+
+        final HyperLogLog[] sketches;
+
+        @Override
+        void addKmer(int j, long kmer) {
+            sketches[j].add(kmer);
+        }
+    }
+
+    /**
+     * Estimates the number of distinct k-mers of every size from <code>ks</code> in reads,
+     * the reads are scanned with HyperLogLog sketches, nothing is counted.
+     */
+    public static long[] estimateReadsKmersCount(File[] files, int[] ks, int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        Tool.debug(logger, "Estimating number of distinct k-mers in reads...");
+        Tracer.Span span = Tracer.begin("estimating reads k-mers count", "input");
+        try {
+            ReadsCardinalityWorker[] workers = new ReadsCardinalityWorker[availableProcessors];
+            for (int i = 0; i < workers.length; ++i) {
+                workers[i] = new ReadsCardinalityWorker(ks);
+            }
+            run(files, workers, null, logger);
+
+            long[] estimates = new long[ks.length];
+            for (int j = 0; j < ks.length; j++) {
+                HyperLogLog sketch = new HyperLogLog(SKETCH_P);
+                for (ReadsCardinalityWorker worker : workers) {
+                    sketch.merge(worker.sketches[j]);
+                }
+                estimates[j] = sketch.estimate();
+                Tool.debug(logger, "Estimated number of distinct " + ks[j] + "-mers = " +
+                        NumUtils.groupDigits(estimates[j]));
+            }
+            return estimates;
+        } finally {
+            span.end();
         }
     }
 
     public static BigLong2ShortHashMap loadReads(File[] files, int k, int minSeqLen,
                                                  int availableProcessors, Logger logger)
             throws ExecutionFailedException, IOException {
-        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(
-                (int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, true);
+        BigLong2ShortHashMap hm = createReadsHeapMap(availableProcessors);
+        loadReads(files, k, minSeqLen, hm, availableProcessors, logger);
+        return hm;
+    }
+
+    public static BigLong2ShortHashMap createReadsHeapMap(int availableProcessors) {
+        return new BigLong2ShortHashMap((int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12, true);
+    }
+
+    /**
+     * Creates empty map for counting k-mers from reads of the backend selected by <code>--kmers-map</code>
+     * launch option (the heap backend is used if the selected one doesn't support concurrent adding).
+     */
+    public static Long2ShortHashMapInterface createReadsMap(int availableProcessors) {
+        KmersMapBackend backend = KmersMapBackend.selected();
+        if (!backend.supportsConcurrentAdd()) {
+            backend = KmersMapBackend.HEAP;
+        }
+        return backend.create(0, availableProcessors);
+    }
+
+    /**
+     * Counts k-mers from reads in the map of the backend selected by <code>--kmers-map</code> launch option
+     * (the heap backend is used if the selected one doesn't support concurrent adding).
+     * Map of off-heap backend should be released by {@link KmersMapBackend#release} after use.
+     */
+    public static Long2ShortHashMapInterface loadReadsMap(File[] files, int k, int minSeqLen,
+                                                          int availableProcessors, Logger logger)
+            throws ExecutionFailedException, IOException {
+        Long2ShortHashMapInterface hm = createReadsMap(availableProcessors);
+        loadReads(files, k, minSeqLen, hm, availableProcessors, logger);
+        return hm;
+    }
+
+    /**
+     * Adds k-mers from reads to the given map, the map must support concurrent adding.
+     */
+    public static void loadReads(File[] files, int k, int minSeqLen, Long2ShortHashMapInterface hm,
+                                 int availableProcessors, Logger logger) throws ExecutionFailedException, IOException {
+        loadReads(files, new int[]{k}, minSeqLen, new Long2ShortHashMapInterface[]{hm}, availableProcessors, logger);
+    }
 
+    /**
+     * Counts k-mers of several sizes in one pass over reads: k-mers of size <code>ks[i]</code>
+     * are added to <code>hms[i]</code>, maps must support concurrent adding.
+     */
+    public static void loadReads(File[] files, int[] ks, int minSeqLen, Long2ShortHashMapInterface[] hms,
+                                 int availableProcessors, Logger logger) throws ExecutionFailedException, IOException {
         ReadsLoadWorker[] workers = new ReadsLoadWorker[availableProcessors];
         for (int i = 0; i < workers.length; ++i) {
-            workers[i] = new ReadsLoadWorker(hm, k, minSeqLen);
+            workers[i] = new ReadsLoadWorker(hms, ks, minSeqLen);
         }
 
-        run(files, workers, hm, logger);
+        Long2ShortHashMapInterface hm = hms[0];
+        for (Long2ShortHashMapInterface map : hms) {
+            beforeLoading(map);
+        }
+        try {
+            run(files, workers, (hm instanceof BigLong2ShortHashMap) ? (BigLong2ShortHashMap) hm : null, logger);
+        } finally {
+            for (Long2ShortHashMapInterface map : hms) {
+                afterLoading(map, logger);
+            }
+        }
 
         // calculating statistics...
         int totalSeq = 0, goodSeq = 0;
@@ -374,9 +903,31 @@ public class IOUtils {
         Tool.debug(logger,
                 "Good/Total sequences length = " + NumUtils.groupDigits(goodLen) + "/" + NumUtils.groupDigits(totalLen)
                         + " (" + String.format("%.1f", goodLen * 100.0 / totalLen) + "%)");
-        Tool.debug(logger, "k-mers HM size = " + NumUtils.groupDigits(hm.size()));
+        for (int i = 0; i < ks.length; i++) {
+            Tool.debug(logger, ((ks.length > 1) ? ks[i] + "-mers" : "k-mers") + " HM size = " +
+                    NumUtils.groupDigits(hms[i].size()));
+        }
+    }
 
-        return hm;
+    /**
+     * Loading workers only add k-mers, so tables of off-heap map replaced by enlarging are released at once.
+     */
+    private static void beforeLoading(Long2ShortHashMapInterface hm) {
+        if (hm instanceof OffHeapLong2ShortHashMap) {
+            ((OffHeapLong2ShortHashMap) hm).setLockFreeReaders(false);
+        }
+    }
+
+    private static void afterLoading(Long2ShortHashMapInterface hm, Logger logger) {
+        if (hm instanceof CompactLong2ShortHashMap) {
+            Tool.debug(logger, "k-mers with values in side maps of compact map = " +
+                    NumUtils.groupDigits(((CompactLong2ShortHashMap) hm).overflowSize()));
+        }
+        if (hm instanceof OffHeapLong2ShortHashMap) {
+            ((OffHeapLong2ShortHashMap) hm).setLockFreeReaders(true);
+            Tool.debug(logger, NumUtils.memoryAsString(OffHeapLong2ShortHashMap.allocatedBytes()) +
+                    " of off-heap memory used");
+        }
     }
 
 
@@ -414,31 +965,59 @@ public class IOUtils {
 
     public static void run(File[] files, ReadsWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
             throws ExecutionFailedException, IOException {
+        String mapName = monitorMap(files, hmForMonitoring);
+        try {
+            runReads(files, workers, hmForMonitoring, logger);
+        } finally {
+            Metrics.unmonitorMap(mapName);
+        }
+    }
+
+    private static void runReads(File[] files, ReadsWorker[] workers, BigLong2ShortHashMap hmForMonitoring, Logger logger)
+            throws ExecutionFailedException, IOException {
         for (File file : files) {
             Tool.info(logger, "Loading file " + file.getName() + "...");
+            Tracer.Span span = Tracer.begin("loading reads", "input", "file", file.getName());
+            try {
+                NamedSource<Dna> reader = ReadersUtils.readDnaLazy(file);
 
-            NamedSource<Dna> reader = ReadersUtils.readDnaLazy(file);
-
-            ReadsDispatcher dispatcher = new ReadsDispatcher(reader, READS_WORK_RANGE_SIZE, hmForMonitoring);
-            CountDownLatch latch = new CountDownLatch(workers.length);
+                ReadsDispatcher dispatcher = new ReadsDispatcher(reader, READS_WORK_RANGE_SIZE, hmForMonitoring);
+                CountDownLatch latch = new CountDownLatch(workers.length);
 
-            for (int i = 0; i < workers.length; ++i) {
-                workers[i].setDispatcher(dispatcher);
-                workers[i].setLatch(latch);
-                new Thread(workers[i]).start();
-            }
+                for (int i = 0; i < workers.length; ++i) {
+                    workers[i].setDispatcher(dispatcher);
+                    workers[i].setLatch(latch);
+                    new Thread(workers[i], "reads-worker-" + i).start();
+                }
 
-            try {
-                latch.await();
-            } catch (InterruptedException e) {
-                Tool.warn(logger, "Main thread interrupted");
-                for (ReadsWorker worker : workers) {
-                    worker.interrupt();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Tool.warn(logger, "Main thread interrupted");
+                    for (ReadsWorker worker : workers) {
+                        worker.interrupt();
+                    }
+                    throw new ExecutionFailedException("Thread was interrupted", e);
                 }
-                throw new ExecutionFailedException("Thread was interrupted", e);
+                Tool.info(logger, NumUtils.groupDigits(dispatcher.reads) + " reads added");
+            } finally {
+                span.end();
             }
-            Tool.info(logger, NumUtils.groupDigits(dispatcher.reads) + " reads added");
         }
     }
 
+    /**
+     * Adds the map to metrics snapshots under the name of the first file.
+     *
+     * @return map name in metrics or null if there is nothing to monitor
+     */
+    private static String monitorMap(File[] files, BigLong2ShortHashMap hm) {
+        if (hm == null || files.length == 0) {
+            return null;
+        }
+        String name = files[0].getName() + "@" + Integer.toHexString(System.identityHashCode(hm));
+        Metrics.monitorMap(name, hm);
+        return name;
+    }
+
 }
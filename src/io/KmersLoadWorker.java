@@ -1,8 +1,6 @@
 package io;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public abstract class KmersLoadWorker extends BytesWorker {
 
@@ -17,19 +15,16 @@ public abstract class KmersLoadWorker extends BytesWorker {
         if (len % KMER_RECORD_SIZE != 0) {
             throw new RuntimeException("BAD division by work range");
         }
-        try {
-            DataInputStream is = new DataInputStream(new ByteArrayInputStream(range, 0, len));
-            int c = len / KMER_RECORD_SIZE;
-            for (int i = 0; i < c; i++) {
-                long kmer = is.readLong();
-                short freq = is.readShort();
-                processKmer(kmer, freq);
-            }
-            if (is.available() > 0) {
-                throw new RuntimeException("Bad KMER_RECORD_SIZE!");
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Can't load kmers from file", e);
+        // big-endian as DataInputStream, but primitives are taken from the array directly
+        ByteBuffer buffer = ByteBuffer.wrap(range, 0, len);
+        int c = len / KMER_RECORD_SIZE;
+        for (int i = 0; i < c; i++) {
+            long kmer = buffer.getLong();
+            short freq = buffer.getShort();
+            processKmer(kmer, freq);
+        }
+        if (buffer.hasRemaining()) {
+            throw new RuntimeException("Bad KMER_RECORD_SIZE!");
         }
     }
 }
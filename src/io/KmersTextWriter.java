@@ -0,0 +1,191 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+/**
+ * Converts binary k-mers file to text without loading it to memory.<br></br>
+ * <br></br>
+ * The file is read sequentially by chunks, chunks are decoded and formatted to text in parallel
+ * and written back in the order of the file. Chunks' byte and char buffers are reused,
+ * no objects are created per k-mer.
+ */
+public class KmersTextWriter {
+
+    static final int CHUNK_RECORDS = 1 << 16;     // 640 Kb of binary data
+
+    /**
+     * Formats one record of k-mers file, <code>number</code> is the 0-based number of the record in the file.
+     * Must be thread-safe.
+     */
+    public interface RecordFormatter {
+        void format(long kmer, short freq, long number, TextChunk out);
+    }
+
+
+    /**
+     * Prints all records of the k-mers file to <code>out</code>, it isn't closed afterwards.
+     *
+     * @return number of printed records
+     */
+    public static long print(File kmersFile, Writer out, RecordFormatter formatter,
+                             int availableProcessors, Logger logger) throws ExecutionFailedException {
+        Tracer.Span span = Tracer.begin("printing k-mers", "output", "file", kmersFile.getName());
+        ExecutorService executor = Executors.newFixedThreadPool(availableProcessors);
+        ArrayDeque<Future<TextChunk>> inFlight = new ArrayDeque<Future<TextChunk>>();
+        ArrayDeque<TextChunk> free = new ArrayDeque<TextChunk>();
+        int maxInFlight = 2 * availableProcessors;
+
+        long records = 0;
+        try {
+            InputStream in = new FileInputStream(kmersFile);
+            try {
+                while (true) {
+                    final TextChunk chunk = free.isEmpty() ? new TextChunk() : free.poll();
+                    chunk.dataLen = readFully(in, chunk.data);
+                    if (chunk.dataLen == 0) {
+                        break;
+                    }
+                    if (chunk.dataLen % KmersLoadWorker.KMER_RECORD_SIZE != 0) {
+                        throw new ExecutionFailedException("Bad k-mers file " + kmersFile +
+                                ", its length isn't divisible by " + KmersLoadWorker.KMER_RECORD_SIZE);
+                    }
+                    chunk.firstNumber = records;
+                    records += chunk.dataLen / KmersLoadWorker.KMER_RECORD_SIZE;
+
+                    inFlight.add(executor.submit(new Callable<TextChunk>() {
+                        @Override
+                        public TextChunk call() {
+                            chunk.format(formatter);
+                            return chunk;
+                        }
+                    }));
+                    if (inFlight.size() >= maxInFlight) {
+                        free.add(writeChunk(inFlight.poll(), out));
+                    }
+                }
+                while (!inFlight.isEmpty()) {
+                    writeChunk(inFlight.poll(), out);
+                }
+                out.flush();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't print k-mers from file " + kmersFile, e);
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ExecutionFailedException("Can't format k-mers from file " + kmersFile, e.getCause());
+        } finally {
+            executor.shutdownNow();
+            span.end();
+        }
+
+        Tool.debug(logger, NumUtils.groupDigits(records) + " k-mers printed from " + kmersFile.getName());
+        return records;
+    }
+
+    private static TextChunk writeChunk(Future<TextChunk> future, Writer out)
+            throws InterruptedException, ExecutionException, IOException {
+        TextChunk chunk = future.get();
+        out.write(chunk.text, 0, chunk.textLen);
+        return chunk;
+    }
+
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int len = 0;
+        while (len < buf.length) {
+            int r = in.read(buf, len, buf.length - len);
+            if (r == -1) {
+                break;
+            }
+            len += r;
+        }
+        return len;
+    }
+
+
+    /**
+     * Binary records of a chunk and the text they are formatted to.
+     */
+    public static class TextChunk {
+        private static final char[] NUCLEOTIDES = {'A', 'G', 'C', 'T'};     // the same as in ShortKmer.toString()
+
+        final byte[] data = new byte[CHUNK_RECORDS * KmersLoadWorker.KMER_RECORD_SIZE];
+        int dataLen;
+        long firstNumber;
+
+        char[] text = new char[CHUNK_RECORDS * 48];
+        int textLen;
+
+        void format(RecordFormatter formatter) {
+            textLen = 0;
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, dataLen);
+            int c = dataLen / KmersLoadWorker.KMER_RECORD_SIZE;
+            for (int i = 0; i < c; i++) {
+                long kmer = buffer.getLong();
+                short freq = buffer.getShort();
+                formatter.format(kmer, freq, firstNumber + i, this);
+            }
+        }
+
+        private void ensureCapacity(int add) {
+            if (textLen + add > text.length) {
+                char[] newText = new char[Math.max(text.length * 2, textLen + add)];
+                System.arraycopy(text, 0, newText, 0, textLen);
+                text = newText;
+            }
+        }
+
+        public TextChunk appendKmer(long kmer, int k) {
+            ensureCapacity(k);
+            for (int i = k - 1; i >= 0; i--) {
+                text[textLen++] = NUCLEOTIDES[(int) (kmer >> (2 * i)) & 3];
+            }
+            return this;
+        }
+
+        public TextChunk append(char ch) {
+            ensureCapacity(1);
+            text[textLen++] = ch;
+            return this;
+        }
+
+        public TextChunk append(long value) {
+            if (value == Long.MIN_VALUE) {
+                return append(Long.toString(value));
+            }
+            ensureCapacity(20);
+            if (value < 0) {
+                text[textLen++] = '-';
+                value = -value;
+            }
+            int start = textLen;
+            do {
+                text[textLen++] = (char) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            for (int i = start, j = textLen - 1; i < j; i++, j--) {
+                char t = text[i];
+                text[i] = text[j];
+                text[j] = t;
+            }
+            return this;
+        }
+
+        public TextChunk append(String s) {
+            ensureCapacity(s.length());
+            s.getChars(0, s.length(), text, textLen);
+            textLen += s.length();
+            return this;
+        }
+    }
+}
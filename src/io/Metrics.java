@@ -0,0 +1,412 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
+import structures.OffHeapLong2ShortHashMap;
+
+import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of runtime metrics: counters, levels (gauges that are increased and decreased by workers),
+ * histograms and monitored k-mers hash maps. Metrics are updated from the hot paths once per work range,
+ * so they are always collected.<br></br>
+ * <br></br>
+ * If <code>--metrics-interval</code> launch option is set, snapshots are periodically appended
+ * to <code>workDir/metrics.jsonl</code> (one JSON object per line, with rates per second since the previous
+ * snapshot, GC, heap and direct memory usage), and the latest snapshot is written to <code>workDir/metrics.prom</code>
+ * in Prometheus text format.
+ */
+public class Metrics {
+    static final Logger logger = Logger.getLogger("metrics");
+
+    public static final Parameter<Integer> intervalParameter = new Parameter<Integer>(new IntParameterBuilder("metrics-interval")
+            .withDescription("dump runtime metrics (throughput, hash maps load, GC, heap and direct memory) to workDir/metrics.jsonl " +
+                    "and workDir/metrics.prom every given number of seconds")
+            .create());
+
+    static final String JSON_FILENAME = "metrics.jsonl";
+    static final String PROMETHEUS_FILENAME = "metrics.prom";
+    static final String PROMETHEUS_PREFIX = "metafast_";
+
+
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private static final Map<String, Level> levels = new ConcurrentHashMap<String, Level>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private static final Map<String, BigLong2ShortHashMap> maps = new ConcurrentHashMap<String, BigLong2ShortHashMap>();
+
+
+    public static Counter counter(String name) {
+        synchronized (counters) {
+            Counter c = counters.get(name);
+            if (c == null) {
+                c = new Counter();
+                counters.put(name, c);
+            }
+            return c;
+        }
+    }
+
+    public static Level level(String name) {
+        synchronized (levels) {
+            Level l = levels.get(name);
+            if (l == null) {
+                l = new Level();
+                levels.put(name, l);
+            }
+            return l;
+        }
+    }
+
+    public static Histogram histogram(String name) {
+        synchronized (histograms) {
+            Histogram h = histograms.get(name);
+            if (h == null) {
+                h = new Histogram();
+                histograms.put(name, h);
+            }
+            return h;
+        }
+    }
+
+    /**
+     * Adds the map to snapshots (total size, capacity and sizes of small maps) until {@link #unmonitorMap}.
+     */
+    public static void monitorMap(String name, BigLong2ShortHashMap hm) {
+        maps.put(name, hm);
+    }
+
+    public static void unmonitorMap(String name) {
+        if (name != null) {
+            maps.remove(name);
+        }
+    }
+
+
+    // metrics updated from dispatchers and workers
+    public static final Counter READS = counter("reads");
+    public static final Counter NUCLEOTIDES = counter("reads.nucleotides");
+    public static final Counter BYTES = counter("kmers-files.bytes");
+    public static final Counter KMERS_INSERTED = counter("kmers.inserted");
+
+    public static final Level READS_DISPATCHER_WAITING = level("reads-dispatcher.waiting-workers");
+    public static final Level BYTES_DISPATCHER_WAITING = level("bytes-dispatcher.waiting-workers");
+    public static final Level SEQUENCES_FINDER_QUEUED = level("sequences-finder.queued-tasks");
+
+    public static final Histogram FETCH_TIME = histogram("workers.fetch-us");
+    public static final Histogram PROCESS_TIME = histogram("workers.process-us");
+
+
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void add(long x) {
+            value.add(x);
+        }
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static class Level {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+        public void dec() {
+            value.decrementAndGet();
+        }
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Histogram of non-negative values with power-of-2 buckets.
+     */
+    public static class Histogram {
+        static final int BUCKETS = 64;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];     // bucket i contains values in [2^(i-1), 2^i)
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long x) {
+            if (x < 0) {
+                x = 0;
+            }
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(x))].increment();
+            count.increment();
+            sum.add(x);
+            long curMax = max.get();
+            while (x > curMax && !max.compareAndSet(curMax, x)) {
+                curMax = max.get();
+            }
+        }
+
+        static long upperBound(int bucket) {
+            return (bucket == 0) ? 0 : (bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1);
+        }
+
+        /**
+         * @return upper bound of the bucket containing the given quantile
+         */
+        long quantile(long[] counts, long total, double q) {
+            long need = (long) Math.ceil(total * q);
+            long cur = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cur += counts[i];
+                if (cur >= need && cur > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+
+
+    // ---------------------------------  Reporting  ---------------------------------
+
+    private static File jsonFile, prometheusFile;
+    private static long startTime;
+    private static long prevTime;
+    private static final Map<String, Long> prevCounters = new HashMap<String, Long>();
+    private static long prevGcCount, prevGcTime;
+
+    /**
+     * Starts periodical dumping of metrics to the given directory.
+     */
+    public static synchronized void start(File dir, int intervalSeconds) {
+        if (jsonFile != null) {
+            return;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        jsonFile = new File(dir, JSON_FILENAME);
+        prometheusFile = new File(dir, PROMETHEUS_FILENAME);
+        startTime = prevTime = System.currentTimeMillis();
+
+        final long interval = Math.max(1, intervalSeconds) * 1000L;
+        Thread reporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    dump();
+                }
+            }
+        }, "metrics-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dump();
+            }
+        }));
+    }
+
+    static synchronized void dump() {
+        try {
+            Snapshot s = takeSnapshot();
+            PrintWriter out = new PrintWriter(new FileWriter(jsonFile, true));
+            out.println(s.toJson());
+            out.close();
+
+            File tmp = new File(prometheusFile.getPath() + ".tmp");
+            out = new PrintWriter(tmp);
+            out.print(s.toPrometheus());
+            out.close();
+            if (!tmp.renameTo(prometheusFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                prometheusFile.delete();
+                //noinspection ResultOfMethodCallIgnored
+                tmp.renameTo(prometheusFile);
+            }
+        } catch (IOException e) {
+            Tool.warn(logger, "Can't dump metrics: " + e.getMessage());
+        }
+    }
+
+    private static Snapshot takeSnapshot() {
+        Snapshot s = new Snapshot();
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(now - prevTime, 1) / 1000.0;
+        s.time = now;
+        s.elapsed = (now - startTime) / 1000.0;
+
+        for (String name : new TreeSet<String>(counters.keySet())) {
+            long value = counters.get(name).get();
+            Long prev = prevCounters.get(name);
+            s.values.put(name + ".total", (double) value);
+            s.values.put(name + ".per-second", (value - (prev == null ? 0 : prev)) / seconds);
+            prevCounters.put(name, value);
+        }
+        for (String name : new TreeSet<String>(levels.keySet())) {
+            s.values.put(name, (double) levels.get(name).get());
+        }
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        s.values.put("heap.used-bytes", (double) heap.getUsed());
+        s.values.put("heap.committed-bytes", (double) heap.getCommitted());
+        s.values.put("heap.max-bytes", (double) heap.getMax());
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                s.values.put("direct-memory.used-bytes", (double) pool.getMemoryUsed());
+            }
+        }
+        s.values.put("off-heap-maps.allocated-bytes", (double) OffHeapLong2ShortHashMap.allocatedBytes());
+        long gcCount = 0, gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(gc.getCollectionCount(), 0);
+            gcTime += Math.max(gc.getCollectionTime(), 0);
+        }
+        s.values.put("gc.collections.total", (double) gcCount);
+        s.values.put("gc.time-ms.total", (double) gcTime);
+        s.values.put("gc.time-fraction", (gcTime - prevGcTime) / 1000.0 / seconds);
+        s.values.put("gc.collections.per-second", (gcCount - prevGcCount) / seconds);
+        prevGcCount = gcCount;
+        prevGcTime = gcTime;
+
+        for (String name : new TreeSet<String>(histograms.keySet())) {
+            Histogram h = histograms.get(name);
+            long[] counts = new long[Histogram.BUCKETS];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = h.buckets[i].sum();
+                total += counts[i];
+            }
+            s.histograms.put(name, counts);
+            s.values.put(name + ".count", (double) total);
+            s.values.put(name + ".sum", (double) h.sum.sum());
+            s.values.put(name + ".p50", (double) h.quantile(counts, total, 0.5));
+            s.values.put(name + ".p99", (double) h.quantile(counts, total, 0.99));
+            s.values.put(name + ".max", (double) h.max.get());
+        }
+
+        for (String name : new TreeSet<String>(maps.keySet())) {
+            BigLong2ShortHashMap hm = maps.get(name);
+            if (hm == null) {
+                continue;
+            }
+            long total = 0, capacity = 0, min = Long.MAX_VALUE, max = 0;
+            for (int i = 0; i < hm.maps.length; i++) {
+                long size = hm.maps[i].size();
+                total += size;
+                capacity += hm.maps[i].capacity();
+                min = Math.min(min, size);
+                max = Math.max(max, size);
+            }
+            s.maps.put(name, new double[]{total, capacity, hm.maps.length, min, max,
+                    total / (double) hm.maps.length, capacity == 0 ? 0 : total / (double) capacity});
+        }
+
+        prevTime = now;
+        return s;
+    }
+
+
+    private static class Snapshot {
+        static final String[] MAP_FIELDS = {"size", "capacity", "small-maps", "small-map-min-size",
+                "small-map-max-size", "small-map-mean-size", "load-factor"};
+
+        long time;
+        double elapsed;
+        final Map<String, Double> values = new LinkedHashMap<String, Double>();
+        final Map<String, long[]> histograms = new LinkedHashMap<String, long[]>();
+        final Map<String, double[]> maps = new LinkedHashMap<String, double[]>();
+
+        String toJson() {
+            StringBuilder sb = new StringBuilder("{");
+            sb.append("\"time\":\"").append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date(time)))
+                    .append("\",\"elapsed-seconds\":").append(number(elapsed));
+            for (Map.Entry<String, Double> e : values.entrySet()) {
+                sb.append(",\"").append(e.getKey()).append("\":").append(number(e.getValue()));
+            }
+            sb.append(",\"maps\":{");
+            boolean first = true;
+            for (Map.Entry<String, double[]> e : maps.entrySet()) {
+                sb.append(first ? "" : ",").append('"').append(escape(e.getKey())).append("\":{");
+                for (int i = 0; i < MAP_FIELDS.length; i++) {
+                    sb.append(i == 0 ? "" : ",").append('"').append(MAP_FIELDS[i]).append("\":")
+                            .append(number(e.getValue()[i]));
+                }
+                sb.append('}');
+                first = false;
+            }
+            sb.append("}}");
+            return sb.toString();
+        }
+
+        String toPrometheus() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Double> e : values.entrySet()) {
+                sb.append(PROMETHEUS_PREFIX).append(prometheusName(e.getKey())).append(' ')
+                        .append(number(e.getValue())).append('\n');
+            }
+            for (Map.Entry<String, long[]> e : histograms.entrySet()) {
+                String name = PROMETHEUS_PREFIX + prometheusName(e.getKey()) + "_bucket";
+                long cumulative = 0;
+                long[] counts = e.getValue();
+                for (int i = 0; i < counts.length - 1; i++) {
+                    cumulative += counts[i];
+                    if (counts[i] > 0 || i == 0) {
+                        sb.append(name).append("{le=\"").append(Histogram.upperBound(i)).append("\"} ")
+                                .append(cumulative).append('\n');
+                    }
+                }
+                cumulative += counts[counts.length - 1];
+                sb.append(name).append("{le=\"+Inf\"} ").append(cumulative).append('\n');
+            }
+            for (Map.Entry<String, double[]> e : maps.entrySet()) {
+                for (int i = 0; i < MAP_FIELDS.length; i++) {
+                    sb.append(PROMETHEUS_PREFIX).append("map_").append(prometheusName(MAP_FIELDS[i]))
+                            .append("{map=\"").append(escape(e.getKey())).append("\"} ")
+                            .append(number(e.getValue()[i])).append('\n');
+                }
+            }
+            return sb.toString();
+        }
+
+        static String prometheusName(String name) {
+            return name.replaceAll("[^a-zA-Z0-9]", "_");
+        }
+
+        static String escape(String s) {
+            return s.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
+
+        static String number(double x) {
+            if (x == Math.rint(x) && Math.abs(x) < 1e15) {
+                return String.valueOf((long) x);
+            }
+            return String.format(Locale.US, "%.3f", x);
+        }
+    }
+}
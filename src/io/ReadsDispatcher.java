@@ -49,6 +49,7 @@ public class ReadsDispatcher {
                 Tool.debug(logger, "Available memory (without running GC) = " + Misc.availableMemoryWithoutRunningGCAsString());
             }
         }
+        Metrics.READS.add(list.size());
         return list.isEmpty() ? null : list;
     }
 }
@@ -30,12 +30,23 @@ public abstract class ReadsWorker implements Runnable {
         if (dispatcher == null || latch == null) {
             throw new RuntimeException("Not full initialization!");
         }
-        while (!interrupted) {
-            List<Dna> list = dispatcher.getWorkRange();
-            if (list == null) {
-                break;
+        Tracer.Span span = Tracer.begin("reads-worker", "worker");
+        try {
+            while (!interrupted) {
+                long start = System.nanoTime();
+                Metrics.READS_DISPATCHER_WAITING.inc();
+                List<Dna> list = dispatcher.getWorkRange();
+                Metrics.READS_DISPATCHER_WAITING.dec();
+                if (list == null) {
+                    break;
+                }
+                long fetched = System.nanoTime();
+                process(list);
+                Metrics.FETCH_TIME.record((fetched - start) / 1000);
+                Metrics.PROCESS_TIME.record((System.nanoTime() - fetched) / 1000);
             }
-            process(list);
+        } finally {
+            span.end();
         }
         latch.countDown();
     }
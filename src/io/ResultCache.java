@@ -0,0 +1,379 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.StringParameterBuilder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Local cache of tools' results, shared between runs.<br></br>
+ * <br></br>
+ * Entry key is a hash of tool name, relevant parameters and contents of input files,
+ * so results are reused even if input files were moved or copied. Content hashes are memorized
+ * by (path, size, modification time), so every input file is hashed only once.<br></br>
+ * Every entry is a directory with copies of output files. Entries that weren't used for the longest time
+ * are removed when the total cache size exceeds the disk budget.<br></br>
+ * <br></br>
+ * Cache is enabled by <code>--cache-dir</code> launch option.
+ */
+public class ResultCache {
+    static final Logger logger = Logger.getLogger("result-cache");
+
+    public static final Parameter<String> cacheDirParameter = new Parameter<String>(new StringParameterBuilder("cache-dir")
+            .withDescription("directory to cache results of k-mer counting, sequences building and components cutting " +
+                    "between runs (caching is disabled if not set)")
+            .create());
+
+    public static final Parameter<String> cacheSizeParameter = new Parameter<String>(new StringParameterBuilder("cache-size")
+            .withDescription("disk space for cached results (for example: 500M, 20G, etc.)")
+            .withDefaultValue("20G")
+            .create());
+
+
+    static final String FINGERPRINTS_FILENAME = "fingerprints.txt";
+    static final String LAST_USED_FILENAME = "last-used";
+    static final String TMP_SUFFIX = ".tmp";
+
+    private static ResultCache instance = null;
+
+    /**
+     * @return cache set by launch options or null if caching is disabled
+     */
+    public static synchronized ResultCache getInstance() {
+        String dir = cacheDirParameter.get();
+        if (dir == null) {
+            return null;
+        }
+        if (instance == null || !instance.dir.equals(new File(dir))) {
+            instance = new ResultCache(new File(dir), parseSize(cacheSizeParameter.get()));
+        }
+        return instance;
+    }
+
+
+    final File dir;
+    final long diskBudget;
+
+    private final Map<String, String> fingerprints = new HashMap<String, String>();
+    private final Random random = new Random();
+
+
+    public ResultCache(File dir, long diskBudget) {
+        this.dir = dir;
+        this.diskBudget = diskBudget;
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        loadFingerprints();
+    }
+
+
+    /**
+     * Calculates entry key for the tool run.
+     *
+     * @param params all tool's parameters that affect the result (in the fixed order)
+     */
+    public String getKey(String toolName, File[] inputFiles, Object... params) throws IOException {
+        StringBuilder sb = new StringBuilder(toolName);
+        for (Object param : params) {
+            sb.append('\n').append(param);
+        }
+        for (File file : inputFiles) {
+            sb.append('\n').append(getContentHash(file));
+        }
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Copies cached output files to <code>outputs</code>.
+     *
+     * @return true if entry was found and restored, false otherwise
+     */
+    public boolean restore(String key, File... outputs) {
+        File entry = new File(dir, key);
+        if (!entry.isDirectory()) {
+            Tool.debug(logger, "No cached result " + key);
+            return false;
+        }
+        try {
+            for (int i = 0; i < outputs.length; i++) {
+                File cached = new File(entry, String.valueOf(i));
+                if (!cached.isFile()) {
+                    return false;
+                }
+                //noinspection ResultOfMethodCallIgnored
+                outputs[i].getAbsoluteFile().getParentFile().mkdirs();
+                Files.copy(cached.toPath(), outputs[i].toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            touch(entry);
+        } catch (IOException e) {
+            // entry could be removed by concurrent eviction
+            Tool.warn(logger, "Can't restore cached result " + key + ": " + e.getMessage());
+            return false;
+        }
+        Tool.debug(logger, "Restored cached result " + key);
+        return true;
+    }
+
+    /**
+     * Returns cached output file to be read in place, without copying it.
+     *
+     * @return file with <code>i</code>-th output of the entry or null if there is no such entry
+     */
+    public File get(String key, int i) {
+        File entry = new File(dir, key);
+        File cached = new File(entry, String.valueOf(i));
+        if (!cached.isFile()) {
+            Tool.debug(logger, "No cached result " + key);
+            return null;
+        }
+        try {
+            touch(entry);
+        } catch (IOException e) {
+            return null;
+        }
+        Tool.debug(logger, "Using cached result " + key);
+        return cached;
+    }
+
+    /**
+     * Puts copies of <code>outputs</code> to the cache and evicts old entries if needed.
+     * Failures are reported as warnings and don't affect the run.
+     */
+    public void store(String key, File... outputs) {
+        store(key, false, outputs);
+    }
+
+    /**
+     * The same as {@link #store}, but <code>outputs</code> are moved to the cache, not copied.
+     * It should be used for big temporary files created in {@link #getTmpDir}.
+     */
+    public void storeMoving(String key, File... outputs) {
+        store(key, true, outputs);
+    }
+
+    /**
+     * @return directory for temporary files on the same disk as the cache
+     */
+    public File getTmpDir() {
+        return dir;
+    }
+
+    private void store(String key, boolean move, File... outputs) {
+        File tmp = new File(dir, key + "." + Math.abs(random.nextLong()) + TMP_SUFFIX);
+        try {
+            if (!tmp.mkdir()) {
+                throw new IOException("Can't create directory " + tmp);
+            }
+            for (int i = 0; i < outputs.length; i++) {
+                if (move) {
+                    Files.move(outputs[i].toPath(), new File(tmp, String.valueOf(i)).toPath());
+                } else {
+                    Files.copy(outputs[i].toPath(), new File(tmp, String.valueOf(i)).toPath());
+                }
+            }
+            touch(tmp);
+
+            synchronized (this) {
+                File entry = new File(dir, key);
+                if (entry.exists() || !tmp.renameTo(entry)) {
+                    deleteDir(tmp);
+                }
+                evict();
+            }
+            Tool.debug(logger, "Stored result " + key + " in cache");
+        } catch (IOException e) {
+            Tool.warn(logger, "Can't store result in cache: " + e.getMessage());
+            deleteDir(tmp);
+        }
+    }
+
+
+    private void evict() {
+        File[] entries = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isDirectory() && !f.getName().endsWith(TMP_SUFFIX);
+            }
+        });
+        if (entries == null) {
+            return;
+        }
+
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        long totalSize = 0;
+        for (File entry : entries) {
+            lastUsed.put(entry, new File(entry, LAST_USED_FILENAME).lastModified());
+            totalSize += dirSize(entry);
+        }
+        if (totalSize <= diskBudget) {
+            return;
+        }
+
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return NumUtils.compare(lastUsed.get(a), lastUsed.get(b));
+            }
+        });
+        for (File entry : entries) {
+            if (totalSize <= diskBudget) {
+                break;
+            }
+            long size = dirSize(entry);
+            deleteDir(entry);
+            totalSize -= size;
+            Tool.debug(logger, "Evicted cached result " + entry.getName() + " (" + NumUtils.memoryAsString(size) + ")");
+        }
+    }
+
+    private static void touch(File entry) throws IOException {
+        File lastUsed = new File(entry, LAST_USED_FILENAME);
+        if (!lastUsed.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            lastUsed.createNewFile();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        lastUsed.setLastModified(System.currentTimeMillis());
+    }
+
+    private static long dirSize(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                size += f.length();
+            }
+        }
+        return size;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+
+
+    // ---------------------------------  Content hashes  ---------------------------------
+
+    String getContentHash(File file) throws IOException {
+        file = file.getAbsoluteFile();
+        String fingerprint = file.getPath() + "\t" + file.length() + "\t" + file.lastModified();
+        synchronized (fingerprints) {
+            String hash = fingerprints.get(fingerprint);
+            if (hash != null) {
+                return hash;
+            }
+        }
+
+        Tool.debug(logger, "Calculating content hash of " + file.getPath() + "...");
+        String hash = calculateContentHash(file);
+        synchronized (fingerprints) {
+            fingerprints.put(fingerprint, hash);
+            try {
+                PrintWriter out = new PrintWriter(new FileWriter(new File(dir, FINGERPRINTS_FILENAME), true));
+                out.println(hash + "\t" + fingerprint);
+                out.close();
+            } catch (IOException e) {
+                Tool.warn(logger, "Can't save content hash: " + e.getMessage());
+            }
+        }
+        return hash;
+    }
+
+    static String calculateContentHash(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        InputStream in = new DigestInputStream(new FileInputStream(file), md);
+        byte[] buffer = new byte[1 << 20];
+        try {
+            while (in.read(buffer) != -1) {
+                // only digest is needed
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(md.digest());
+    }
+
+    private void loadFingerprints() {
+        File file = new File(dir, FINGERPRINTS_FILENAME);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    fingerprints.put(line.substring(tab + 1), line.substring(0, tab));
+                }
+            }
+            reader.close();
+        } catch (IOException e) {
+            Tool.warn(logger, "Can't load content hashes: " + e.getMessage());
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Parses size like 500M, 20G, etc.
+     */
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase();
+        long multiplier = 1;
+        if (s.endsWith("B")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        if (s.endsWith("K")) {
+            multiplier = 1L << 10;
+        } else if (s.endsWith("M")) {
+            multiplier = 1L << 20;
+        } else if (s.endsWith("G")) {
+            multiplier = 1L << 30;
+        } else if (s.endsWith("T")) {
+            multiplier = 1L << 40;
+        }
+        if (multiplier != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        try {
+            return (long) (Double.parseDouble(s) * multiplier);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Can't parse cache size '" + size + "'");
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package io;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.parameters.OutputParameter;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a tool of a sample as a step: input parameters, output parameters and SUCCESS file are kept in tool's
+ * working directory in the same format as {@link Tool} does, so a finished sample is skipped on
+ * <code>--continue</code> if its input parameters haven't changed.<br></br>
+ * <br></br>
+ * Unlike steps added by {@link Tool#addStep}, the tool itself is run by {@link Tool#simpleRun()}, that doesn't change
+ * Tool's (static) nesting of log messages, so samples can be run concurrently.
+ * Tool's <code>postprocessing()</code> isn't called, tools of samples shouldn't rely on it.
+ */
+class SampleStep {
+    final Tool tool;
+    final File workDir, successFile, inParamFile, outParamFile;
+
+    SampleStep(Tool tool) {
+        this.tool = tool;
+        workDir = tool.workDir.get();
+        successFile = new File(workDir, Tool.SUCCESS_FILE);
+        inParamFile = new File(workDir, Tool.IN_PARAM_FILE);
+        outParamFile = new File(workDir, Tool.OUT_PARAM_FILE);
+    }
+
+
+    /**
+     * Runs the tool or loads its results, the step is traced on the current thread's track.
+     *
+     * @return true, if the tool was run, false if its results were loaded from the previous run
+     */
+    boolean run(Logger logger) throws ExecutionFailedException {
+        Tracer.Span span = Tracer.begin(tool.name, "sample", "work dir", workDir.getPath());
+        String result = "failed";
+        try {
+            boolean ran = runOrLoad(logger);
+            result = ran ? "run" : "loaded from SUCCESS file";
+            return ran;
+        } finally {
+            span.end("result", result);
+        }
+    }
+
+    private boolean runOrLoad(Logger logger) throws ExecutionFailedException {
+        //noinspection ResultOfMethodCallIgnored
+        workDir.mkdirs();
+
+        boolean shouldContinue = Boolean.TRUE.equals(Tool.continueParameter.get()) &&
+                !Boolean.TRUE.equals(Tool.forceParameter.get());
+        if (shouldContinue && successFile.exists() && inputParametersAreSame(logger) && loadOutputParameters()) {
+            Tool.info(logger, "SUCCESS file found for tool " + tool.name + " in " + workDir + " - results are loaded");
+            return false;
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        successFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        outParamFile.delete();
+        PropertiesConfiguration in = newProperties();
+        for (Parameter<?> parameter : tool.inputParameters) {
+            addProperty(in, parameter.description.name, parameter.get());
+        }
+        save(in, inParamFile);
+
+        tool.simpleRun();
+
+        PropertiesConfiguration out = newProperties();
+        for (OutputParameter<?> parameter : tool.outputParameters) {
+            addProperty(out, parameter.name, parameter.get());
+        }
+        save(out, outParamFile);
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            successFile.createNewFile();
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't create file " + successFile, e);
+        }
+        return true;
+    }
+
+
+    private boolean inputParametersAreSame(Logger logger) {
+        PropertiesConfiguration in = load(inParamFile);
+        if (in == null) {
+            return false;
+        }
+        for (Parameter<?> parameter : tool.inputParameters) {
+            String name = parameter.description.name;
+            List<String> cur = Arrays.asList(toStrings(parameter.get()));
+            List<String> last = Arrays.asList(in.getStringArray(name));
+            if (!cur.equals(last)) {
+                Tool.debug(logger, "Parameter " + name + " of tool " + tool.name + " changed from last run, " +
+                        "last value = " + last + ", cur value = " + cur);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean loadOutputParameters() {
+        PropertiesConfiguration out = load(outParamFile);
+        if (out == null) {
+            return false;
+        }
+        try {
+            for (OutputParameter<?> parameter : tool.outputParameters) {
+                setParsed(parameter, out.getStringArray(parameter.name));
+            }
+        } catch (IllegalArgumentException e) {
+            return false;       // unsupported or corrupted value, running the tool again
+        }
+        return true;
+    }
+
+
+    /**
+     * The same representation as Tool uses: values of arrays are added one by one, <code>null</code> isn't added.
+     */
+    private static void addProperty(PropertiesConfiguration properties, String name, Object value) {
+        for (String s : toStrings(value)) {
+            properties.addProperty(name, s);
+        }
+    }
+
+    private static String[] toStrings(Object value) {
+        if (value == null) {
+            return new String[0];
+        }
+        if (value.getClass().isArray()) {
+            Object[] values = (Object[]) value;
+            String[] res = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                res[i] = Tool.objectToString(values[i]);
+            }
+            return res;
+        }
+        return new String[]{Tool.objectToString(value)};
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void setParsed(OutputParameter<T> parameter, String[] values) {
+        Class<T> tClass = parameter.tClass;
+        if (tClass.isArray()) {
+            Object array = Array.newInstance(tClass.getComponentType(), values.length);
+            for (int i = 0; i < values.length; i++) {
+                Array.set(array, i, parse(values[i], tClass.getComponentType()));
+            }
+            parameter.set((T) array);
+        } else {
+            parameter.set((values.length == 0) ? null : (T) parse(values[0], tClass));
+        }
+    }
+
+    private static Object parse(String s, Class<?> tClass) {
+        if (tClass == File.class) {
+            return new File(s);
+        }
+        if (tClass == String.class) {
+            return s;
+        }
+        if (tClass == Integer.class) {
+            return Integer.valueOf(s);
+        }
+        if (tClass == Long.class) {
+            return Long.valueOf(s);
+        }
+        if (tClass == Double.class) {
+            return Double.valueOf(s);
+        }
+        if (tClass == Boolean.class) {
+            return Boolean.valueOf(s);
+        }
+        throw new IllegalArgumentException("Unsupported type of output parameter " + tClass.getName());
+    }
+
+
+    private static PropertiesConfiguration newProperties() {
+        PropertiesConfiguration properties = new PropertiesConfiguration();
+        properties.setDelimiterParsingDisabled(true);
+        return properties;
+    }
+
+    private static PropertiesConfiguration load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        PropertiesConfiguration properties = newProperties();
+        try {
+            Reader reader = new BufferedReader(new FileReader(file));
+            try {
+                properties.load(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (ConfigurationException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+        return properties;
+    }
+
+    private static void save(PropertiesConfiguration properties, File file) throws ExecutionFailedException {
+        try {
+            PrintWriter out = new PrintWriter(file);
+            try {
+                properties.save(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't save parameters to " + file, e);
+        } catch (ConfigurationException e) {
+            throw new ExecutionFailedException("Can't save parameters to " + file, e);
+        }
+    }
+}
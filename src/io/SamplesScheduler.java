@@ -0,0 +1,264 @@
+package io;
+
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+import ru.ifmo.genetics.utils.Misc;
+import ru.ifmo.genetics.utils.NumUtils;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Tool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Runs independent per-sample tools concurrently.<br></br>
+ * <br></br>
+ * Every sample is added with an estimation of memory it needs (mostly the size of k-mers hash map).
+ * A sample is started only if its estimation fits in the memory that is not reserved by already running samples,
+ * samples are taken in the order they were added, but smaller samples may overtake the one that doesn't fit.
+ * If a sample doesn't fit even in the whole memory, it is started alone.
+ * At most <code>maxParallel</code> samples are running at the same time.<br></br>
+ * <br></br>
+ * Processors are shared between samples started at the same moment and already running ones,
+ * so a sample that runs alone (e.g. because of memory) uses all of them.
+ * Tools are run as steps by {@link SampleStep}, so finished samples are skipped on <code>--continue</code>.
+ */
+public class SamplesScheduler {
+    final Logger logger;
+
+    /**
+     * Bytes per element in Long2ShortHashMap filled up to its load factor: 10 bytes per cell.
+     */
+    public static final double MAP_BYTES_PER_KMER = 10 / LongHashSet.DEFAULT_MAX_LOAD_FACTOR;
+
+    /**
+     * Maps for counting k-mers from reads aren't presized and grow while k-mers are added,
+     * capacity of their small maps is a power of two, so they may have up to twice more cells than needed.
+     */
+    static final double GROWING_MAP_FACTOR = 2;
+
+    /**
+     * Part of the available memory left for GC, I/O buffers and other structures.
+     */
+    static final double MEMORY_RESERVE = 0.1;
+
+    final long memoryBudget;
+    final int maxParallel;
+    final int availableProcessors;
+
+    private final LinkedList<Sample> queue = new LinkedList<Sample>();
+    private final List<Sample> samples = new ArrayList<Sample>();
+
+    private long reservedMemory = 0;
+    private int running = 0;
+    private Throwable failure = null;
+
+
+    public SamplesScheduler(int maxParallel, int availableProcessors, Logger logger) {
+        this((long) (Misc.availableMemory() * (1 - MEMORY_RESERVE)), maxParallel, availableProcessors, logger);
+    }
+
+    public SamplesScheduler(long memoryBudget, int maxParallel, int availableProcessors, Logger logger) {
+        if (maxParallel <= 0) {
+            throw new IllegalArgumentException("Number of samples processed in parallel must be positive");
+        }
+        this.memoryBudget = memoryBudget;
+        this.maxParallel = maxParallel;
+        this.availableProcessors = Math.max(1, availableProcessors);
+        this.logger = logger;
+    }
+
+
+    public void add(Tool tool, long estimatedMemory) {
+        Sample sample = new Sample(tool, estimatedMemory);
+        queue.add(sample);
+        samples.add(sample);
+    }
+
+    /**
+     * Runs all added tools as steps and waits for them to finish.
+     * After the first failure no new samples are started.
+     */
+    public void run() throws ExecutionFailedException {
+        Tool.debug(logger, "Running " + samples.size() + " samples, at most " + maxParallel + " in parallel, " +
+                "memory budget = " + NumUtils.memoryAsString(memoryBudget));
+
+        try {
+            synchronized (this) {
+                while (!queue.isEmpty() && failure == null && !Tool.isInterrupted) {
+                    List<Sample> toStart = new ArrayList<Sample>();
+                    Sample sample;
+                    while ((sample = nextToStart()) != null) {
+                        toStart.add(sample);
+                        running++;
+                        reservedMemory += sample.estimatedMemory;
+                    }
+                    if (toStart.isEmpty()) {
+                        wait();
+                        continue;
+                    }
+                    int threads = Math.max(1, (availableProcessors + running - 1) / running);
+                    for (Sample s : toStart) {
+                        start(s, threads);
+                    }
+                }
+                while (running > 0) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted!", e);
+        }
+
+        if (failure != null) {
+            if (failure instanceof ExecutionFailedException) {
+                throw (ExecutionFailedException) failure;
+            }
+            throw new ExecutionFailedException(failure);
+        }
+        if (Tool.isInterrupted) {
+            throw new ExecutionFailedException("Thread was interrupted!");
+        }
+    }
+
+    private Sample nextToStart() {
+        if (running >= maxParallel) {
+            return null;
+        }
+        if (running == 0) {
+            return queue.removeFirst();     // starting it even if it doesn't fit
+        }
+        for (Sample sample : queue) {
+            if (reservedMemory + sample.estimatedMemory <= memoryBudget) {
+                queue.remove(sample);
+                return sample;
+            }
+        }
+        return null;
+    }
+
+    private void start(final Sample sample, int threads) {
+        sample.tool.availableProcessors.set(threads);
+        Tool.debug(logger, "Starting " + sample.tool.name + " for sample #" + (samples.indexOf(sample) + 1) +
+                " using " + threads + " threads" +
+                ", estimated memory = " + NumUtils.memoryAsString(sample.estimatedMemory) +
+                ", running = " + running + ", reserved memory = " + NumUtils.memoryAsString(reservedMemory));
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Throwable error = null;
+                try {
+                    new SampleStep(sample.tool).run(logger);
+                } catch (Throwable e) {
+                    error = e;
+                }
+                finished(sample, error);
+            }
+        }, "sample-" + (samples.indexOf(sample) + 1));
+        thread.start();
+    }
+
+    private synchronized void finished(Sample sample, Throwable error) {
+        running--;
+        reservedMemory -= sample.estimatedMemory;
+        if (error != null && failure == null) {
+            failure = error;
+        }
+        notifyAll();
+    }
+
+
+    // ---------------------------------  Memory estimations  ---------------------------------
+
+    /**
+     * Upper bound on memory needed to count k-mers in reads files:
+     * the number of distinct k-mers is bounded by the total reads length (estimated from files' sizes)
+     * and by the number of all possible canonical k-mers. As every read position is taken as a distinct k-mer,
+     * the bound is usually several times greater than the real map, see {@link IOUtils#estimateReadsKmersCount}.
+     */
+    public static long estimateReadsMapMemory(File[] files, int k, int availableProcessors) {
+        double nucleotides = 0;
+        for (File file : files) {
+            nucleotides += file.length() * nucleotidesPerByte(file.getName().toLowerCase());
+        }
+        return readsMapMemory((long) Math.min(nucleotides, (1L << (2 * k)) / 2), availableProcessors);   // (4^k)/2
+    }
+
+    /**
+     * Memory needed to count the given number of distinct k-mers from reads,
+     * but not less than the initial capacity of map's small maps (see {@link IOUtils#createReadsHeapMap}).
+     */
+    public static long readsMapMemory(long kmers, int availableProcessors) {
+        return Math.max((long) (kmers * MAP_BYTES_PER_KMER * GROWING_MAP_FACTOR),
+                mapMemory(logMapsNumber(availableProcessors), 12));
+    }
+
+    static double nucleotidesPerByte(String fileName) {
+        double compression = 1;
+        if (fileName.endsWith(".gz")) {
+            compression = 4;
+            fileName = fileName.substring(0, fileName.length() - 3);
+        } else if (fileName.endsWith(".bz2")) {
+            compression = 5;
+            fileName = fileName.substring(0, fileName.length() - 4);
+        }
+        if (fileName.endsWith(".fastq") || fileName.endsWith(".fq")) {
+            return compression * 0.5;       // header, nucleotides, separator and qualities
+        }
+        return compression;     // FASTA and BINQ
+    }
+
+    /**
+     * Memory needed to load k-mers from binary k-mers files (10 bytes per k-mer) and to build sequences from them.
+     * The map is presized by {@link IOUtils#createKmersMap}, so its capacity is calculated the same way.
+     */
+    public static long estimateKmersMapMemory(File[] files, int availableProcessors) {
+        long kmers = 0;
+        for (File file : files) {
+            kmers += file.length() / 10;
+        }
+        int logMapsNumber = logMapsNumber(availableProcessors);
+        return (long) (mapMemory(logMapsNumber, IOUtils.logSmallCapacity(kmers, logMapsNumber)) * 1.25);  // + sequences
+    }
+
+    static int logMapsNumber(int availableProcessors) {
+        return (int) (Math.log(availableProcessors) / Math.log(2)) + 4;
+    }
+
+    /**
+     * Memory of BigLong2ShortHashMap of 2^<code>logMapsNumber</code> small maps with the given capacity,
+     * 10 bytes per cell.
+     */
+    static long mapMemory(int logMapsNumber, int logSmallCapacity) {
+        return 10L << (logMapsNumber + logSmallCapacity);
+    }
+
+    /**
+     * @return true, if the largest <code>maxParallel</code> estimations fit in the memory budget together,
+     * i.e. memory doesn't limit the number of samples running in parallel
+     */
+    public boolean fitInParallel(long[] estimations) {
+        long[] sorted = estimations.clone();
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (int i = sorted.length - 1; i >= Math.max(0, sorted.length - maxParallel); i--) {
+            sum += sorted[i];
+        }
+        return sum <= memoryBudget;
+    }
+
+
+    private static class Sample {
+        final Tool tool;
+        final long estimatedMemory;
+
+        Sample(Tool tool, long estimatedMemory) {
+            this.tool = tool;
+            this.estimatedMemory = estimatedMemory;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package io;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.StringParameterBuilder;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records timeline of the run in Chrome trace format (can be opened in chrome://tracing or ui.perfetto.dev).<br></br>
+ * <br></br>
+ * Spans are recorded for tool steps, samples, input files and worker threads.
+ * Samples are traced by {@link SampleStep} on their own threads. Steps run by {@link Tool} itself can be seen only
+ * in its log messages ("Running tool ..." and "SUCCESS file found for tool ..."), they are recorded on a separate
+ * "tools" track of the logging thread: a step lasts until the next step at the same or upper level starts,
+ * or until the end of the run.<br></br>
+ * <br></br>
+ * Tracing is enabled by <code>--trace-file</code> launch option, the trace is written when the program exits.
+ * If tracing is disabled, {@link #begin} returns a no-op span.
+ */
+public class Tracer {
+    static final Logger logger = Logger.getLogger("tracer");
+
+    public static final Parameter<String> traceFileParameter = new Parameter<String>(new StringParameterBuilder("trace-file")
+            .withDescription("write timeline of tool steps, input files and worker threads to the given file " +
+                    "in Chrome trace format (open it in chrome://tracing or ui.perfetto.dev)")
+            .create());
+
+    /**
+     * Tools tracks get ids after all threads' ones, the first one is for the main thread.
+     */
+    static final long TOOLS_TRACK = 1L << 32;
+
+    private static volatile boolean enabled = false;
+    private static File traceFile;
+    private static long startNanos;
+
+    private static final Queue<Event> events = new ConcurrentLinkedQueue<Event>();
+    private static final Map<Long, String> threadNames = new HashMap<Long, String>();
+
+
+    /**
+     * Starts recording, the trace will be written to <code>file</code> on exit.
+     */
+    public static synchronized void start(File file) {
+        if (enabled) {
+            return;
+        }
+        traceFile = file;
+        startNanos = System.nanoTime();
+        enabled = true;
+
+        Logger.getRootLogger().addAppender(new StepsAppender());
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }));
+    }
+
+    /**
+     * Starts a span in the current thread, it should be finished by {@link Span#end()} in the same thread.
+     *
+     * @param args pairs of argument names and values shown with the span, e.g. "file", file.getName()
+     */
+    public static Span begin(String name, String category, Object... args) {
+        if (!enabled) {
+            return Span.NO_OP;
+        }
+        Thread thread = Thread.currentThread();
+        registerThread(thread.getId(), thread.getName());
+        return new Span(name, category, thread.getId(), now(), args);
+    }
+
+
+    public static class Span {
+        static final Span NO_OP = new Span(null, null, 0, 0, null);
+
+        final String name, category;
+        final long track;
+        final long start;
+        final Object[] args;
+
+        Span(String name, String category, long track, long start, Object[] args) {
+            this.name = name;
+            this.category = category;
+            this.track = track;
+            this.start = start;
+            this.args = args;
+        }
+
+        public void end() {
+            if (this == NO_OP) {
+                return;
+            }
+            events.add(new Event(name, category, track, start, now() - start, args));
+        }
+
+        /**
+         * Finishes the span with more arguments, e.g. with a result known only at the end.
+         */
+        public void end(Object... moreArgs) {
+            if (this == NO_OP) {
+                return;
+            }
+            Object[] all = new Object[args.length + moreArgs.length];
+            System.arraycopy(args, 0, all, 0, args.length);
+            System.arraycopy(moreArgs, 0, all, args.length, moreArgs.length);
+            events.add(new Event(name, category, track, start, now() - start, all));
+        }
+    }
+
+
+    private static long now() {
+        return (System.nanoTime() - startNanos) / 1000;     // microseconds
+    }
+
+    private static void registerThread(long id, String name) {
+        synchronized (threadNames) {
+            if (!threadNames.containsKey(id)) {
+                threadNames.put(id, name);
+            }
+        }
+    }
+
+
+
+    // ---------------------------------  Tool steps  ---------------------------------
+
+    static final Pattern STEP_PATTERN = Pattern.compile("^((?:\\|  )*)(?:\\S+: )?" +
+            "(?:Running tool (\\S+)|SUCCESS file found for tool (\\S+) - loading results\\.\\.\\.)$");
+
+    /**
+     * Converts Tool's step messages to spans on tools tracks, every logging thread has its own track.
+     */
+    private static class StepsAppender extends AppenderSkeleton {
+        private final Map<String, ThreadSteps> threads = new HashMap<String, ThreadSteps>();
+
+        @Override
+        protected synchronized void append(LoggingEvent event) {
+            Object message = event.getMessage();
+            if (!(message instanceof String) ||
+                    !((String) message).contains("Running tool ") && !((String) message).contains("SUCCESS file")) {
+                return;
+            }
+            Matcher m = STEP_PATTERN.matcher((String) message);
+            if (!m.matches()) {
+                return;
+            }
+            ThreadSteps steps = threads.get(event.getThreadName());
+            if (steps == null) {
+                steps = new ThreadSteps(TOOLS_TRACK + threads.size());
+                threads.put(event.getThreadName(), steps);
+                registerThread(steps.track, (threads.size() == 1) ? "tools" : "tools: " + event.getThreadName());
+            }
+            int level = m.group(1).length() / 3;
+            long time = now();
+            steps.close(level, time);
+            if (m.group(2) != null) {
+                steps.open(new Span(m.group(2), "tool", steps.track, time, null), level);
+            } else {
+                steps.open(new Span(m.group(3), "tool", steps.track, time,
+                        new Object[]{"result", "loaded from SUCCESS file"}), level);
+            }
+        }
+
+        synchronized void closeSteps(long time) {
+            for (ThreadSteps steps : threads.values()) {
+                steps.close(0, time);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+
+    private static class ThreadSteps {
+        final long track;
+        private final Deque<Span> openSteps = new ArrayDeque<Span>();
+        private final Deque<Integer> openLevels = new ArrayDeque<Integer>();
+
+        ThreadSteps(long track) {
+            this.track = track;
+        }
+
+        void open(Span span, int level) {
+            openSteps.push(span);
+            openLevels.push(level);
+        }
+
+        void close(int level, long time) {
+            while (!openLevels.isEmpty() && openLevels.peek() >= level) {
+                Span span = openSteps.pop();
+                openLevels.pop();
+                events.add(new Event(span.name, span.category, span.track, span.start, time - span.start, span.args));
+            }
+        }
+    }
+
+
+
+    // ---------------------------------  Writing  ---------------------------------
+
+    private static class Event {
+        final String name, category;
+        final long track;
+        final long start, duration;
+        final Object[] args;
+
+        Event(String name, String category, long track, long start, long duration, Object[] args) {
+            this.name = name;
+            this.category = category;
+            this.track = track;
+            this.start = start;
+            this.duration = duration;
+            this.args = args;
+        }
+    }
+
+    static synchronized void write() {
+        long end = now();
+        Enumeration<?> appenders = Logger.getRootLogger().getAllAppenders();
+        while (appenders.hasMoreElements()) {
+            Object appender = appenders.nextElement();
+            if (appender instanceof StepsAppender) {
+                ((StepsAppender) appender).closeSteps(end);
+            }
+        }
+
+        try {
+            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(traceFile)));
+            out.println("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            synchronized (threadNames) {
+                for (Map.Entry<Long, String> e : threadNames.entrySet()) {
+                    out.print("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + e.getKey() +
+                            ",\"args\":{\"name\":\"" + escape(e.getValue()) + "\"}},\n");
+                }
+            }
+            for (Event e : events) {
+                out.print("{\"name\":\"" + escape(e.name) + "\",\"cat\":\"" + e.category + "\",\"ph\":\"X\"" +
+                        ",\"pid\":1,\"tid\":" + e.track + ",\"ts\":" + e.start + ",\"dur\":" + e.duration);
+                if (e.args != null && e.args.length > 0) {
+                    out.print(",\"args\":{");
+                    for (int i = 0; i + 1 < e.args.length; i += 2) {
+                        out.print((i == 0 ? "" : ",") + "\"" + escape(String.valueOf(e.args[i])) + "\":\"" +
+                                escape(String.valueOf(e.args[i + 1])) + "\"");
+                    }
+                    out.print("}");
+                }
+                out.print("},\n");
+            }
+            out.println("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"metafast\"}}");
+            out.println("]}");
+            out.close();
+            if (out.checkError()) {
+                throw new IOException("Can't write trace to file " + traceFile);
+            }
+            Tool.info(logger, "Trace saved to " + traceFile);
+        } catch (IOException e) {
+            Tool.warn(logger, "Can't write trace: " + e.getMessage());
+        }
+    }
+
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,192 @@
+package io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reading and writing features vectors (<code>.vec</code> and <code>.breadth</code> files).
+ * <p>
+ * Vectors are stored either in text format (one value per line) or in compact binary format:
+ * <pre>
+ *   int    magic ("MFVB")
+ *   byte   version
+ *   byte   encoding    (0 - dense, 1 - sparse)
+ *   byte   value type  (0 - float, 1 - double)
+ *   int    vector length
+ *   dense:  length values
+ *   sparse: int nonzero count, then nonzero count (int index, value) pairs, indices are increasing
+ * </pre>
+ * The smallest encoding is chosen for every vector, float values are used only if all values are
+ * exactly representable as floats. Readers detect the format automatically.
+ */
+public class VectorsIO {
+
+    static final int MAGIC = 0x4D465642;   // "MFVB"
+    static final byte VERSION = 1;
+
+    static final byte DENSE = 0;
+    static final byte SPARSE = 1;
+
+    static final byte FLOAT = 0;
+    static final byte DOUBLE = 1;
+
+    static final int HEADER_SIZE = 4 + 3 + 4;
+
+
+
+    public static void printVector(long[] vector, File file, boolean binary) throws IOException {
+        if (binary) {
+            double[] values = new double[vector.length];
+            for (int i = 0; i < vector.length; i++) {
+                values[i] = vector[i];
+            }
+            printBinaryVector(values, file);
+            return;
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file)), 1 << 20));   // 1 Mb buffer
+        for (long value : vector) {
+            out.println(value);
+        }
+        out.close();
+        if (out.checkError()) {
+            throw new IOException("Can't write vector to file " + file);
+        }
+    }
+
+    public static void printVector(double[] vector, File file, boolean binary) throws IOException {
+        if (binary) {
+            printBinaryVector(vector, file);
+            return;
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file)), 1 << 20));   // 1 Mb buffer
+        for (double value : vector) {
+            out.println(value);
+        }
+        out.close();
+        if (out.checkError()) {
+            throw new IOException("Can't write vector to file " + file);
+        }
+    }
+
+    static void printBinaryVector(double[] vector, File file) throws IOException {
+        int nonzero = 0;
+        boolean floatsOnly = true;
+        for (double value : vector) {
+            if (value != 0) {
+                nonzero++;
+            }
+            if ((double) (float) value != value && !Double.isNaN(value)) {
+                floatsOnly = false;
+            }
+        }
+        int valueSize = floatsOnly ? 4 : 8;
+        boolean sparse = (long) nonzero * (4 + valueSize) + 4 < (long) vector.length * valueSize;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 20));   // 1 Mb buffer
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(sparse ? SPARSE : DENSE);
+        out.writeByte(floatsOnly ? FLOAT : DOUBLE);
+        out.writeInt(vector.length);
+        if (sparse) {
+            out.writeInt(nonzero);
+        }
+        for (int i = 0; i < vector.length; i++) {
+            if (sparse && vector[i] == 0) {
+                continue;
+            }
+            if (sparse) {
+                out.writeInt(i);
+            }
+            if (floatsOnly) {
+                out.writeFloat((float) vector[i]);
+            } else {
+                out.writeDouble(vector[i]);
+            }
+        }
+        out.close();
+    }
+
+
+
+    public static boolean isBinaryVector(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return file.length() >= HEADER_SIZE && in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads vector from file in any supported format.
+     */
+    public static double[] readVector(File file) throws IOException {
+        if (isBinaryVector(file)) {
+            return readBinaryVector(file);
+        }
+
+        List<Double> ans = new ArrayList<Double>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                ans.add(Double.parseDouble(line));
+            }
+        }
+        reader.close();
+
+        double[] vector = new double[ans.size()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = ans.get(i);
+        }
+        return vector;
+    }
+
+    static double[] readBinaryVector(File file) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));   // big-endian, as DataOutputStream
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("Wrong binary vector format in file " + file);
+        }
+        byte version = buf.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary vector version " + version + " in file " + file);
+        }
+        byte encoding = buf.get();
+        byte valueType = buf.get();
+        double[] vector = new double[buf.getInt()];
+
+        try {
+            if (encoding == DENSE) {
+                if (valueType == FLOAT) {
+                    FloatBuffer values = buf.asFloatBuffer();
+                    for (int i = 0; i < vector.length; i++) {
+                        vector[i] = values.get(i);
+                    }
+                } else {
+                    DoubleBuffer values = buf.asDoubleBuffer();
+                    values.get(vector);
+                }
+            } else if (encoding == SPARSE) {
+                int nonzero = buf.getInt();
+                for (int i = 0; i < nonzero; i++) {
+                    int index = buf.getInt();
+                    vector[index] = (valueType == FLOAT) ? buf.getFloat() : buf.getDouble();
+                }
+            } else {
+                throw new IOException("Unknown vector encoding " + encoding + " in file " + file);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Can't read binary vector from file " + file, e);
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,150 @@
+package structures;
+
+import it.unimi.dsi.fastutil.longs.Long2ShortOpenHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Sharded long -> short hash map (see {@link ShardedLong2ShortHashMap}) with one-byte values, 9 bytes per cell
+ * instead of 10 in {@link ru.ifmo.genetics.structures.map.BigLong2ShortHashMap}.<br></br>
+ * <br></br>
+ * Values from -128 to 126 are stored in the table, so are small frequencies and their negations (marks of visited
+ * k-mers). Other values are stored in a small side map of the same small map, and the table cell keeps
+ * {@link #OVERFLOW} mark; the side entry is removed when the value gets back to the table's range.
+ * Most k-mers have small frequencies, so side maps are small. Semantics of all operations,
+ * including saturating {@link #addAndBound}, is the same as of the map with short values.<br></br>
+ * <br></br>
+ * Lookups are lock-free except for values in side maps.
+ */
+public class CompactLong2ShortHashMap extends ShardedLong2ShortHashMap {
+    static final int MAX_LOG_CAPACITY = 30;
+
+    public static final byte OVERFLOW = Byte.MAX_VALUE;
+
+
+    public CompactLong2ShortHashMap(long expectedSize, int availableProcessors) {
+        super(availableProcessors);
+        int logCapacity = logCapacity(expectedSize, MAX_LOG_CAPACITY);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new CompactShard(logCapacity);
+        }
+    }
+
+
+    /**
+     * Keys and one-byte values of a small map.
+     */
+    static class CompactTable extends Table {
+        final long[] keys;
+        final byte[] values;
+
+        CompactTable(int logCapacity) {
+            super(logCapacity);
+            keys = new long[capacity];
+            values = new byte[capacity];
+            if (FREE != 0) {
+                Arrays.fill(keys, FREE);
+            }
+        }
+
+        @Override
+        long key(int pos) {
+            return keys[pos];
+        }
+
+        @Override
+        void setKey(int pos, long key) {
+            keys[pos] = key;
+        }
+    }
+
+    static class CompactShard extends Shard {
+        Long2ShortOpenHashMap overflow;     // guarded by the shard's lock
+
+        CompactShard(int logCapacity) {
+            table = newTable(logCapacity);
+        }
+
+        @Override
+        Table newTable(int logCapacity) {
+            if (logCapacity > MAX_LOG_CAPACITY) {
+                throw new RuntimeException("Can't enlarge compact map (can't create array of 2^31 elements)!");
+            }
+            return new CompactTable(logCapacity);
+        }
+
+        @Override
+        short value(Table t, int pos, long key) {
+            byte b = ((CompactTable) t).values[pos];
+            return (b == OVERFLOW) ? overflowValue((CompactTable) t, pos, key) : b;
+        }
+
+        /**
+         * If the value was concurrently moved back to the table, it is read from the table again.
+         */
+        synchronized short overflowValue(CompactTable t, int pos, long key) {
+            if (overflow != null && overflow.containsKey(key)) {
+                return overflow.get(key);
+            }
+            byte b = t.values[pos];
+            return (b == OVERFLOW) ? 0 : b;     // mark without side entry only if values were reset concurrently
+        }
+
+        /**
+         * Value is written before the key or the mark, so lock-free readers see either old or new value.
+         */
+        @Override
+        void setValue(Table t, int pos, long key, short value) {
+            byte[] values = ((CompactTable) t).values;
+            if (value >= Byte.MIN_VALUE && value < OVERFLOW) {
+                boolean wasOverflow = values[pos] == OVERFLOW;
+                values[pos] = (byte) value;
+                if (wasOverflow) {
+                    overflow.remove(key);
+                }
+            } else {
+                if (overflow == null) {
+                    overflow = new Long2ShortOpenHashMap();
+                }
+                overflow.put(key, value);
+                values[pos] = OVERFLOW;
+            }
+        }
+
+        @Override
+        void moveValue(Table from, int fromPos, Table to, int toPos) {
+            // mark stays valid, side map is keyed by k-mer
+            ((CompactTable) to).values[toPos] = ((CompactTable) from).values[fromPos];
+        }
+
+        @Override
+        void replaced(Table old) {
+        }
+
+        @Override
+        void clear(Table t, boolean keysToo) {
+            CompactTable table = (CompactTable) t;
+            Arrays.fill(table.values, (byte) 0);
+            if (keysToo) {
+                Arrays.fill(table.keys, FREE);
+            }
+            overflow = null;
+        }
+
+        synchronized long overflowSize() {
+            return (overflow == null) ? 0 : overflow.size();
+        }
+    }
+
+
+    /**
+     * @return number of values stored in side maps
+     */
+    public long overflowSize() {
+        long size = 0;
+        for (Shard shard : shards) {
+            size += ((CompactShard) shard).overflowSize();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,308 @@
+package structures;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Columnar components file (format version 2), all numbers are big-endian:
+ * <pre>
+ *   header (64 bytes):  magic, version (int), flags (int), components count,
+ *                       k-mers position, total k-mers, offsets position, weights position, sizes position
+ *   k-mers:             long[total k-mers], k-mers of all components one after another
+ *   offsets:            long[count + 1], index of the first k-mer of every component in k-mers array
+ *   weights (optional): long[count]
+ *   sizes (optional):   long[count]
+ * </pre>
+ * Positions are in bytes from the beginning of the file, zero position means that the column is absent.<br></br>
+ * <br></br>
+ * The file is memory-mapped on open, components are accessed lazily as {@link LongBuffer} views
+ * of the k-mers array, so only used components are read from disk.
+ */
+public class ComponentsFile implements Closeable {
+
+    public static final long MAGIC = 0x4D45544146434D50L;     // "METAFCMP"
+    public static final int VERSION = 2;
+
+    public static final int WEIGHTS_FLAG = 1;
+    public static final int SIZES_FLAG = 2;
+
+    static final int HEADER_SIZE = 64;
+    static final long SEGMENT_KMERS = 1L << 27;    // k-mers array is mapped by segments of 1 Gb
+
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int count;
+    private final long kmersPos, totalKmers;
+    private final LongBuffer offsets, weights, sizes;
+    private final LongBuffer[] segments;
+
+
+    private ComponentsFile(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+        }
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getLong() != MAGIC) {
+            throw new IOException("Not a components file of version " + VERSION + ": " + file);
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported components file version " + version + ": " + file);
+        }
+        int flags = header.getInt();
+        count = (int) header.getLong();
+        kmersPos = header.getLong();
+        totalKmers = header.getLong();
+        long offsetsPos = header.getLong();
+        long weightsPos = header.getLong();
+        long sizesPos = header.getLong();
+
+        offsets = mapColumn(offsetsPos, count + 1);
+        weights = ((flags & WEIGHTS_FLAG) != 0) ? mapColumn(weightsPos, count) : null;
+        sizes = ((flags & SIZES_FLAG) != 0) ? mapColumn(sizesPos, count) : null;
+        segments = new LongBuffer[(int) ((totalKmers + SEGMENT_KMERS - 1) / SEGMENT_KMERS)];
+    }
+
+    private LongBuffer mapColumn(long pos, long len) throws IOException {
+        if (len * 8 > Integer.MAX_VALUE) {
+            throw new IOException("Too many components in file " + file);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, len * 8).asLongBuffer();
+    }
+
+    /**
+     * Opens components file of version 2, nothing but header and tables is read.
+     */
+    public static ComponentsFile open(File file) throws ExecutionFailedException {
+        try {
+            return new ComponentsFile(file);
+        } catch (FileNotFoundException e) {
+            throw new ExecutionFailedException("Can't load components: file not found", e);
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't load components: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return true if the file starts with components file version 2 magic
+     */
+    public static boolean isColumnar(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readLong() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * @return number of components in the file
+     */
+    public int count() {
+        return count;
+    }
+
+    public long totalKmers() {
+        return totalKmers;
+    }
+
+    /**
+     * @return number of k-mers stored for the component, <code>i</code> is 0-based
+     */
+    public long kmersCount(int i) {
+        return offsets.get(i + 1) - offsets.get(i);
+    }
+
+    public boolean hasWeights() {
+        return weights != null;
+    }
+
+    public boolean hasSizes() {
+        return sizes != null;
+    }
+
+    /**
+     * @return weight of the component or 0 if weights aren't stored
+     */
+    public long weight(int i) {
+        return (weights != null) ? weights.get(i) : 0;
+    }
+
+    /**
+     * @return size of the component or number of its k-mers if sizes aren't stored
+     */
+    public long size(int i) {
+        return (sizes != null) ? sizes.get(i) : kmersCount(i);
+    }
+
+    /**
+     * Returns read-only view of component's k-mers, it can be used from any thread.
+     */
+    public LongBuffer kmers(int i) throws IOException {
+        long from = offsets.get(i), to = offsets.get(i + 1);
+        int seg = (int) (from / SEGMENT_KMERS);
+        if (from == to || to <= (seg + 1) * SEGMENT_KMERS) {
+            LongBuffer view = segment(seg).duplicate();
+            view.position((int) (from - seg * SEGMENT_KMERS));
+            view.limit((int) (to - seg * SEGMENT_KMERS));
+            return view.slice();
+        }
+        // component crosses the segments' border
+        return channel.map(FileChannel.MapMode.READ_ONLY, kmersPos + from * 8, (to - from) * 8).asLongBuffer();
+    }
+
+    private synchronized LongBuffer segment(int seg) throws IOException {
+        if (segments.length == 0) {
+            return LongBuffer.allocate(0);
+        }
+        if (segments[seg] == null) {
+            long from = seg * SEGMENT_KMERS;
+            long len = Math.min(SEGMENT_KMERS, totalKmers - from);
+            segments[seg] = channel.map(FileChannel.MapMode.READ_ONLY, kmersPos + from * 8, len * 8).asLongBuffer();
+        }
+        return segments[seg];
+    }
+
+    /**
+     * Loads the component to memory, <code>i</code> is 0-based, component's number is <code>i + 1</code>.
+     */
+    public ConnectedComponent get(int i) throws IOException {
+        ConnectedComponent component = new ConnectedComponent();
+        LongBuffer kmers = kmers(i);
+        LongArrayList list = new LongArrayList(kmers.remaining());
+        while (kmers.hasRemaining()) {
+            list.add(kmers.get());
+        }
+        component.kmers = list;
+        component.size = size(i);
+        component.weight = weight(i);
+        component.no = i + 1;
+        return component;
+    }
+
+    public List<ConnectedComponent> getAll() throws IOException {
+        List<ConnectedComponent> res = new ArrayList<ConnectedComponent>(count);
+        for (int i = 0; i < count; i++) {
+            res.add(get(i));
+        }
+        return res;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+
+    public static void save(Collection<ConnectedComponent> components, File file) throws IOException {
+        Writer writer = new Writer(file, WEIGHTS_FLAG | SIZES_FLAG);
+        try {
+            for (ConnectedComponent component : components) {
+                writer.write(component.kmers, component.weight, component.size);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes components one by one, tables are written and header is filled on close.
+     */
+    public static class Writer implements Closeable {
+        private final File file;
+        private final int flags;
+        private final DataOutputStream out;
+        private final LongArrayList offsets = new LongArrayList();
+        private final LongArrayList weights = new LongArrayList();
+        private final LongArrayList sizes = new LongArrayList();
+        private long kmers = 0;
+
+        public Writer(File file, int flags) throws IOException {
+            this.file = file;
+            this.flags = flags;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+            out.write(new byte[HEADER_SIZE]);
+            offsets.add(0);
+        }
+
+        public void write(Iterable<Long> componentKmers, long weight, long size) throws IOException {
+            if (componentKmers instanceof LongArrayList) {
+                LongArrayList list = (LongArrayList) componentKmers;
+                for (int i = 0; i < list.size(); i++) {
+                    out.writeLong(list.getLong(i));
+                }
+                kmers += list.size();
+            } else {
+                for (long kmer : componentKmers) {
+                    out.writeLong(kmer);
+                    kmers++;
+                }
+            }
+            offsets.add(kmers);
+            weights.add(weight);
+            sizes.add(size);
+        }
+
+        public int count() {
+            return offsets.size() - 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long offsetsPos = HEADER_SIZE + kmers * 8;
+            writeColumn(offsets);
+            long weightsPos = 0, sizesPos = 0;
+            long pos = offsetsPos + offsets.size() * 8L;
+            if ((flags & WEIGHTS_FLAG) != 0) {
+                weightsPos = pos;
+                writeColumn(weights);
+                pos += weights.size() * 8L;
+            }
+            if ((flags & SIZES_FLAG) != 0) {
+                sizesPos = pos;
+                writeColumn(sizes);
+            }
+            out.close();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.writeLong(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(flags);
+                raf.writeLong(count());
+                raf.writeLong(HEADER_SIZE);
+                raf.writeLong(kmers);
+                raf.writeLong(offsetsPos);
+                raf.writeLong(weightsPos);
+                raf.writeLong(sizesPos);
+            } finally {
+                raf.close();
+            }
+        }
+
+        private void writeColumn(LongArrayList column) throws IOException {
+            for (int i = 0; i < column.size(); i++) {
+                out.writeLong(column.getLong(i));
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package structures;
 
 import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 
@@ -8,6 +9,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.TreeSet;
 
 public class ConnectedComponent implements Comparable<ConnectedComponent> {
 
@@ -48,8 +50,12 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
     }
 
     public ConnectedComponent(SequenceComponent component) {
-        kmers = new LongArrayList();
-        kmers.addAll(component.kmers);
+        LongArrayList list = new LongArrayList(component.kmers.size());
+        LongIterator it = component.kmers.iterator();
+        while (it.hasNext()) {
+            list.add(it.nextLong());
+        }
+        kmers = list;
         size = component.size;
         weight = component.weight;
     }
@@ -82,7 +88,37 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
         outputStream.close();
     }
 
+    /**
+     * Saves components in the given format: 1 is the plain stream of components,
+     * 2 is the columnar memory-mappable format of {@link ComponentsFile}.
+     */
+    public static void saveComponents(Collection<ConnectedComponent> components, String fp, int format)
+            throws IOException {
+        if (format == ComponentsFile.VERSION) {
+            ComponentsFile.save(components, new File(fp));
+        } else if (format == 1) {
+            saveComponents(components, fp);
+        } else {
+            throw new IllegalArgumentException("Unknown components file format " + format);
+        }
+    }
+
+    /**
+     * Loads all components from the file of any format.
+     */
     public static List<ConnectedComponent> loadComponents(File file) throws ExecutionFailedException {
+        if (ComponentsFile.isColumnar(file)) {
+            ComponentsFile cf = ComponentsFile.open(file);
+            try {
+                try {
+                    return cf.getAll();
+                } finally {
+                    cf.close();
+                }
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Can't load components: " + e.getMessage(), e);
+            }
+        }
         try {
             DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
             int cnt = inputStream.readInt();
@@ -111,6 +147,77 @@ public class ConnectedComponent implements Comparable<ConnectedComponent> {
         }
     }
 
+    /**
+     * Loads only components with given numbers (1-based), in the order of increasing numbers.
+     * Components file of version 2 is read lazily, other components of version 1 file are skipped.
+     */
+    public static List<ConnectedComponent> loadComponents(File file, Collection<Integer> numbers)
+            throws ExecutionFailedException {
+        List<Integer> sorted = new ArrayList<Integer>(new TreeSet<Integer>(numbers));
+        List<ConnectedComponent> res = new ArrayList<ConnectedComponent>(sorted.size());
+        try {
+            if (ComponentsFile.isColumnar(file)) {
+                ComponentsFile cf = ComponentsFile.open(file);
+                try {
+                    for (int no : sorted) {
+                        if (no < 1 || no > cf.count()) {
+                            throw new ExecutionFailedException("No component " + no + " in file " + file);
+                        }
+                        res.add(cf.get(no - 1));
+                    }
+                } finally {
+                    cf.close();
+                }
+                return res;
+            }
+
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                int cnt = inputStream.readInt();
+                int next = 0;
+                for (int i = 0; i < cnt && next < sorted.size(); i++) {
+                    int componentSize = inputStream.readInt();
+                    long weight = inputStream.readLong();
+                    if (sorted.get(next) != i + 1) {
+                        long toSkip = componentSize * 8L;
+                        while (toSkip > 0) {
+                            int skipped = inputStream.skipBytes((int) Math.min(toSkip, Integer.MAX_VALUE));
+                            if (skipped == 0) {
+                                if (inputStream.read() == -1) {
+                                    throw new EOFException("Unexpected end of file " + file);
+                                }
+                                skipped = 1;
+                            }
+                            toSkip -= skipped;
+                        }
+                        continue;
+                    }
+                    ConnectedComponent component = new ConnectedComponent();
+                    component.weight = weight;
+                    for (int j = 0; j < componentSize; j++) {
+                        component.add(inputStream.readLong());
+                    }
+                    component.no = i + 1;
+                    res.add(component);
+                    next++;
+                }
+                if (next < sorted.size()) {
+                    throw new ExecutionFailedException("No component " + sorted.get(next) + " in file " + file);
+                }
+            } finally {
+                inputStream.close();
+            }
+            return res;
+        } catch (FileNotFoundException e) {
+            throw new ExecutionFailedException("Can't load components: file not found", e);
+        } catch (EOFException e) {
+            throw new ExecutionFailedException("Can't load components: file corrupted or format mismatch! " +
+                    "Do you set a wrong file?", e);
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't load components: " + e.getMessage(), e);
+        }
+    }
+
 
     @Override
     public int compareTo(ConnectedComponent o) {
@@ -0,0 +1,182 @@
+package structures;
+
+import io.IOUtils;
+import org.apache.log4j.Logger;
+import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
+import ru.ifmo.genetics.utils.tool.Parameter;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.StringParameterBuilder;
+
+import java.io.File;
+
+/**
+ * Implementation of k-mers maps (long k-mer -> short frequency) used by tools written against
+ * {@link Long2ShortHashMapInterface}.<br></br>
+ * <br></br>
+ * Backend is selected by <code>--kmers-map</code> launch option, tools ask for a map via
+ * {@link IOUtils#loadKmersMap} and check backend's capabilities if they need something beyond lookups.
+ * Algorithms working with small maps directly (sequences building, components cutting) still use
+ * {@link BigLong2ShortHashMap}, i.e. the heap backend.
+ */
+public abstract class KmersMapBackend {
+
+    /**
+     * {@link BigLong2ShortHashMap}, snapshots of shared maps are cached (see {@link IOUtils#loadKmersWithSnapshot}).
+     */
+    public static final KmersMapBackend HEAP = new KmersMapBackend("heap", true, true, true) {
+        @Override
+        public Long2ShortHashMapInterface create(long expectedSize, int availableProcessors) {
+            return IOUtils.createKmersMap(expectedSize, availableProcessors);
+        }
+
+        @Override
+        public Long2ShortHashMapInterface loadKmersWithSnapshot(File[] files, int freqThreshold,
+                                                                int availableProcessors, Logger logger)
+                throws ExecutionFailedException {
+            return IOUtils.loadKmersWithSnapshot(files, freqThreshold, availableProcessors, logger);
+        }
+    };
+
+    /**
+     * {@link OffHeapLong2ShortHashMap}, tables are stored outside of Java heap.
+     */
+    public static final KmersMapBackend OFF_HEAP = new KmersMapBackend("off-heap", true, true, true) {
+        @Override
+        public Long2ShortHashMapInterface create(long expectedSize, int availableProcessors) {
+            return new OffHeapLong2ShortHashMap(expectedSize, availableProcessors);
+        }
+    };
+
+    /**
+     * {@link CompactLong2ShortHashMap}, heap tables with one-byte values, large values are stored in side maps.
+     */
+    public static final KmersMapBackend COMPACT = new KmersMapBackend("compact", true, true, true) {
+        @Override
+        public Long2ShortHashMapInterface create(long expectedSize, int availableProcessors) {
+            return new CompactLong2ShortHashMap(expectedSize, availableProcessors);
+        }
+    };
+
+    /**
+     * {@link SortedLong2ShortMap}, compact read-only map (10 bytes per k-mer).
+     */
+    public static final KmersMapBackend SORTED_ARRAY = new KmersMapBackend("sorted-array", false, true, true) {
+        @Override
+        public Long2ShortHashMapInterface create(long expectedSize, int availableProcessors) {
+            throw new UnsupportedOperationException("Backend " + name + " doesn't support adding k-mers");
+        }
+
+        @Override
+        public Long2ShortHashMapInterface loadKmers(File[] files, int freqThreshold, int availableProcessors,
+                                                    Logger logger) throws ExecutionFailedException {
+            return IOUtils.loadKmersSorted(files, freqThreshold, availableProcessors, logger);
+        }
+    };
+
+    static final KmersMapBackend[] BACKENDS = {HEAP, OFF_HEAP, COMPACT, SORTED_ARRAY};
+
+
+    public static final Parameter<String> backendParameter = new Parameter<String>(new StringParameterBuilder("kmers-map")
+            .withDescription("k-mers map implementation: heap, off-heap (tables outside of Java heap), " +
+                    "compact (one-byte counters, larger ones in side maps) or " +
+                    "sorted-array (compact read-only map, used only where k-mers aren't modified)")
+            .withDefaultValue(HEAP.name)
+            .create());
+
+    /**
+     * @return backend set by launch options
+     */
+    public static KmersMapBackend selected() {
+        String name = backendParameter.get();
+        return (name == null) ? HEAP : get(name);
+    }
+
+    /**
+     * Releases memory of the map which isn't used anymore, makes sense for off-heap maps only
+     * (memory of other maps is collected by garbage collector).
+     */
+    public static void release(Long2ShortHashMapInterface hm) {
+        if (hm instanceof OffHeapLong2ShortHashMap) {
+            ((OffHeapLong2ShortHashMap) hm).free();
+        }
+    }
+
+    public static KmersMapBackend get(String name) {
+        for (KmersMapBackend backend : BACKENDS) {
+            if (backend.name.equals(name)) {
+                return backend;
+            }
+        }
+        throw new IllegalArgumentException("Unknown k-mers map backend '" + name + "'");
+    }
+
+
+    protected final String name;
+    private final boolean concurrentAdd, iteration, resetValues;
+
+    protected KmersMapBackend(String name, boolean concurrentAdd, boolean iteration, boolean resetValues) {
+        this.name = name;
+        this.concurrentAdd = concurrentAdd;
+        this.iteration = iteration;
+        this.resetValues = resetValues;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if k-mers can be added (and values changed) from several threads concurrently
+     */
+    public boolean supportsConcurrentAdd() {
+        return concurrentAdd;
+    }
+
+    /**
+     * @return true if {@link Long2ShortHashMapInterface#entryIterator} is supported
+     */
+    public boolean supportsIteration() {
+        return iteration;
+    }
+
+    /**
+     * @return true if {@link Long2ShortHashMapInterface#resetValues} is supported
+     */
+    public boolean supportsResetValues() {
+        return resetValues;
+    }
+
+
+    /**
+     * Creates empty map for about <code>expectedSize</code> k-mers,
+     * only for backends supporting concurrent adding.
+     */
+    public abstract Long2ShortHashMapInterface create(long expectedSize, int availableProcessors);
+
+    /**
+     * Loads k-mers with frequency greater than <code>freqThreshold</code> from binary k-mers files,
+     * frequencies of the same k-mer in different files are summed.
+     */
+    public Long2ShortHashMapInterface loadKmers(File[] files, int freqThreshold, int availableProcessors,
+                                                Logger logger) throws ExecutionFailedException {
+        long expectedSize = IOUtils.estimateKmersCount(files, freqThreshold, availableProcessors, logger);
+        Long2ShortHashMapInterface hm = create(expectedSize, availableProcessors);
+        IOUtils.loadKmers(files, freqThreshold, hm, availableProcessors, logger);
+        return hm;
+    }
+
+    /**
+     * The same as {@link #loadKmers}, but a snapshot of the map may be cached to restore it on next loads
+     * of the same files (only the heap backend does it).
+     */
+    public Long2ShortHashMapInterface loadKmersWithSnapshot(File[] files, int freqThreshold, int availableProcessors,
+                                                            Logger logger) throws ExecutionFailedException {
+        return loadKmers(files, freqThreshold, availableProcessors, logger);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
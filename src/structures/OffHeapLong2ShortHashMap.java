@@ -0,0 +1,223 @@
+package structures;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sharded long -> short hash map (see {@link ShardedLong2ShortHashMap}) with tables in direct buffers
+ * (outside of Java heap), so the tables aren't scanned or moved by garbage collector.<br></br>
+ * <br></br>
+ * Memory isn't left to garbage collector: tables replaced by enlarging are kept until
+ * {@link #freeRetiredTables} (lock-free readers can still use them) or released at once if there are
+ * no such readers (see {@link #setLockFreeReaders}), all tables are released by {@link #free}.
+ * Direct memory is limited by <code>-XX:MaxDirectMemorySize</code> (equal to <code>-Xmx</code> by default).
+ */
+public class OffHeapLong2ShortHashMap extends ShardedLong2ShortHashMap {
+    static final int MAX_LOG_CAPACITY = 27;    // 1 Gb of keys in a direct buffer
+
+    static final AtomicLong allocatedBytes = new AtomicLong();
+
+    final List<OffHeapTable> retired = new ArrayList<OffHeapTable>();
+    volatile boolean lockFreeReaders = true;
+
+
+    public OffHeapLong2ShortHashMap(long expectedSize, int availableProcessors) {
+        super(availableProcessors);
+        int logCapacity = logCapacity(expectedSize, MAX_LOG_CAPACITY);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new OffHeapShard(this, logCapacity);
+        }
+    }
+
+
+    /**
+     * Keys and values of a small map in direct buffers.
+     */
+    static class OffHeapTable extends Table {
+        final ByteBuffer keysBuffer, valuesBuffer;
+        final LongBuffer keys;
+        final ShortBuffer values;
+
+        OffHeapTable(int logCapacity) {
+            super(logCapacity);
+            // direct buffers are zeroed, i.e. filled with FREE keys
+            keysBuffer = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder());
+            valuesBuffer = ByteBuffer.allocateDirect(capacity * 2).order(ByteOrder.nativeOrder());
+            keys = keysBuffer.asLongBuffer();
+            values = valuesBuffer.asShortBuffer();
+            allocatedBytes.addAndGet(bytes());
+        }
+
+        @Override
+        long key(int pos) {
+            return keys.get(pos);
+        }
+
+        @Override
+        void setKey(int pos, long key) {
+            keys.put(pos, key);
+        }
+
+        long bytes() {
+            return capacity * 10L;
+        }
+
+        void free() {
+            DirectMemory.release(keysBuffer);
+            DirectMemory.release(valuesBuffer);
+            allocatedBytes.addAndGet(-bytes());
+        }
+    }
+
+    static class OffHeapShard extends Shard {
+        final OffHeapLong2ShortHashMap owner;
+
+        OffHeapShard(OffHeapLong2ShortHashMap owner, int logCapacity) {
+            this.owner = owner;
+            table = newTable(logCapacity);
+        }
+
+        @Override
+        Table newTable(int logCapacity) {
+            if (logCapacity > MAX_LOG_CAPACITY) {
+                throw new RuntimeException("Can't enlarge off-heap map (can't create direct buffer of 2^31 bytes)!");
+            }
+            return new OffHeapTable(logCapacity);
+        }
+
+        @Override
+        short value(Table t, int pos, long key) {
+            return ((OffHeapTable) t).values.get(pos);
+        }
+
+        @Override
+        void setValue(Table t, int pos, long key, short value) {
+            ((OffHeapTable) t).values.put(pos, value);
+        }
+
+        @Override
+        void moveValue(Table from, int fromPos, Table to, int toPos) {
+            ((OffHeapTable) to).values.put(toPos, ((OffHeapTable) from).values.get(fromPos));
+        }
+
+        @Override
+        void replaced(Table old) {
+            if (owner.lockFreeReaders) {
+                synchronized (owner.retired) {
+                    owner.retired.add((OffHeapTable) old);
+                }
+            } else {
+                ((OffHeapTable) old).free();     // other writers of the shard wait for its lock
+            }
+        }
+
+        @Override
+        void clear(Table t, boolean keysToo) {
+            OffHeapTable table = (OffHeapTable) t;
+            for (int i = 0; i < table.capacity; i++) {
+                table.values.put(i, (short) 0);
+                if (keysToo) {
+                    table.keys.put(i, FREE);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Sets whether the map can be read concurrently with modifications. If not (e.g. while k-mers are added
+     * by loading workers only), tables replaced by enlarging are released at once, so memory peak
+     * isn't doubled by old tables.
+     */
+    public void setLockFreeReaders(boolean lockFreeReaders) {
+        this.lockFreeReaders = lockFreeReaders;
+    }
+
+    /**
+     * Releases tables replaced by enlarging, there must be no concurrent lookups or modifications.
+     *
+     * @return number of released bytes
+     */
+    public long freeRetiredTables() {
+        long bytes = 0;
+        synchronized (retired) {
+            for (OffHeapTable t : retired) {
+                bytes += t.bytes();
+                t.free();
+            }
+            retired.clear();
+        }
+        return bytes;
+    }
+
+    /**
+     * Releases all memory of the map, the map mustn't be used after it.
+     */
+    public void free() {
+        freeRetiredTables();
+        for (Shard shard : shards) {
+            OffHeapTable t = (OffHeapTable) shard.table;
+            if (t != null) {
+                shard.table = null;
+                t.free();
+            }
+        }
+    }
+
+    /**
+     * @return direct memory currently allocated by all off-heap maps
+     */
+    public static long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+
+    /**
+     * Explicit release of direct buffers: <code>Unsafe.invokeCleaner</code> since Java 9,
+     * buffer's cleaner in Java 8. If neither is available, memory is released by garbage collector.
+     */
+    static class DirectMemory {
+        static final Object unsafe;
+        static final Method invokeCleaner;
+
+        static {
+            Object u = null;
+            Method m = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field f = unsafeClass.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                u = f.get(null);
+                m = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (Exception e) {
+                m = null;
+            }
+            unsafe = u;
+            invokeCleaner = m;
+        }
+
+        static void release(ByteBuffer buffer) {
+            try {
+                if (invokeCleaner != null) {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } else {
+                    Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (Exception e) {
+                // left to garbage collector
+            }
+        }
+    }
+}
@@ -1,26 +1,32 @@
 package structures;
 
-import it.unimi.dsi.fastutil.longs.LongArraySet;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Created by -- on 04.02.2020.
  */
 public class SequenceComponent implements Comparable<SequenceComponent> {
 
-    public Set<Long> kmers;
+    public LongLinkedOpenHashSet kmers;     // keeps k-mers in the order of addition
     public long size;
     public long weight;
 
 
     public SequenceComponent() {
-        kmers = new LongArraySet();
+        kmers = new LongLinkedOpenHashSet();
+        size = 0;
+        weight = 0;
+    }
+
+    public SequenceComponent(int expectedSize) {
+        kmers = new LongLinkedOpenHashSet(expectedSize);
         size = 0;
         weight = 0;
     }
@@ -39,8 +45,9 @@ public class SequenceComponent implements Comparable<SequenceComponent> {
         weight++;
     }
     public void addAll(SequenceComponent component) {
-        for (long kmer: component.kmers) {
-            add(kmer);
+        LongIterator it = component.kmers.iterator();
+        while (it.hasNext()) {
+            add(it.nextLong());
         }
     }
 
@@ -53,14 +60,56 @@ public class SequenceComponent implements Comparable<SequenceComponent> {
         for (SequenceComponent component : components) {
             outputStream.writeInt((int) component.size);
             outputStream.writeLong(component.weight);
-            for (long kmer : component.kmers) {
-                outputStream.writeLong(kmer);
+            LongIterator it = component.kmers.iterator();
+            while (it.hasNext()) {
+                outputStream.writeLong(it.nextLong());
             }
         }
 
         outputStream.close();
     }
 
+    /**
+     * Writes components one by one in the format of {@link #saveComponents},
+     * the number of components is written to the beginning of the file on close.
+     */
+    public static class ComponentsWriter implements Closeable {
+        private final File file;
+        private final DataOutputStream outputStream;
+        private int count = 0;
+
+        public ComponentsWriter(File file) throws IOException {
+            this.file = file;
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+            outputStream.writeInt(0);
+        }
+
+        public void write(SequenceComponent component) throws IOException {
+            outputStream.writeInt((int) component.size);
+            outputStream.writeLong(component.weight);
+            LongIterator it = component.kmers.iterator();
+            while (it.hasNext()) {
+                outputStream.writeLong(it.nextLong());
+            }
+            count++;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.close();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.writeInt(count);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
     public static List<ConnectedComponent> loadComponents(File file) throws ExecutionFailedException {
         try {
             DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
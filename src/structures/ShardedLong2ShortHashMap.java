@@ -0,0 +1,419 @@
+package structures;
+
+import io.IOUtils;
+import it.unimi.dsi.fastutil.HashCommon;
+import org.apache.commons.lang.mutable.MutableLong;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.structures.set.LongHashSet;
+import ru.ifmo.genetics.utils.NumUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Concurrent open-addressing long -> short hash map, subclasses differ only in storage of tables.<br></br>
+ * <br></br>
+ * Semantics is the same as of {@link ru.ifmo.genetics.structures.map.BigLong2ShortHashMap}: the map is split
+ * into small maps (shards) by k-mer's hash, every small map has its own lock for modifications,
+ * lookups are lock-free. Small map is enlarged when it is filled by 3/4, its table is replaced as a whole.
+ */
+public abstract class ShardedLong2ShortHashMap implements Long2ShortHashMapInterface {
+    static final long FREE = LongHashSet.FREE;
+    static final float MAX_LOAD_FACTOR = LongHashSet.DEFAULT_MAX_LOAD_FACTOR;
+    static final int MIN_LOG_CAPACITY = 10;
+
+    final Shard[] shards;
+    final int mask;
+
+
+    ShardedLong2ShortHashMap(int availableProcessors) {
+        int logShards = Math.max((int) (Math.log(availableProcessors) / Math.log(2)) + 4, 8);
+        shards = new Shard[1 << logShards];
+        mask = shards.length - 1;
+    }
+
+    /**
+     * @return logarithm of small maps' capacity, such that <code>expectedSize</code> elements
+     * can be added without enlarging
+     */
+    int logCapacity(long expectedSize, int maxLogCapacity) {
+        int logCapacity = MIN_LOG_CAPACITY;
+        while (logCapacity < maxLogCapacity &&
+                (1L << logCapacity) * MAX_LOAD_FACTOR < expectedSize * IOUtils.PRESIZE_MARGIN / shards.length) {
+            logCapacity++;
+        }
+        return logCapacity;
+    }
+
+    Shard shard(long key) {
+        return shards[HashCommon.murmurHash3((int) key) & mask];
+    }
+
+
+    /**
+     * Keys and values of a small map.
+     */
+    abstract static class Table {
+        final int capacity, capacityMask, maxFill;
+
+        Table(int logCapacity) {
+            capacity = 1 << logCapacity;
+            capacityMask = capacity - 1;
+            maxFill = (int) Math.ceil(capacity * MAX_LOAD_FACTOR);
+        }
+
+        abstract long key(int pos);
+
+        abstract void setKey(int pos, long key);
+
+        /**
+         * @return position of the key or of the free cell where it should be, key mustn't be FREE
+         */
+        int position(long key) {
+            int pos = (int) (HashCommon.murmurHash3(key) & capacityMask);
+            long cur;
+            while ((cur = key(pos)) != FREE && cur != key) {
+                pos = (pos + 1) & capacityMask;
+            }
+            return pos;
+        }
+    }
+
+    abstract static class Shard {
+        volatile Table table;
+        volatile int size;
+        volatile boolean containsFreeKey;
+        volatile short valueForFreeKey;
+
+        abstract Table newTable(int logCapacity);
+
+        /**
+         * @return value of the key at the given position of the table
+         */
+        abstract short value(Table t, int pos, long key);
+
+        /**
+         * Value is written before the key, so lock-free readers see either nothing or the full entry.
+         */
+        abstract void setValue(Table t, int pos, long key, short value);
+
+        /**
+         * Moves value to the enlarged table.
+         */
+        abstract void moveValue(Table from, int fromPos, Table to, int toPos);
+
+        /**
+         * Called after the table is replaced by the enlarged one.
+         */
+        abstract void replaced(Table old);
+
+        /**
+         * Fills values (and keys too, if needed) of the table with zeroes (and FREE keys).
+         */
+        abstract void clear(Table t, boolean keysToo);
+
+        short get(long key) {
+            if (key == FREE) {
+                return containsFreeKey ? valueForFreeKey : -1;
+            }
+            Table t = table;
+            int pos = t.position(key);
+            return (t.key(pos) == key) ? value(t, pos, key) : -1;
+        }
+
+        /**
+         * @return previous value, if there was no such key: -1 for put and 0 for adding
+         */
+        synchronized short update(long key, short value, boolean add) {
+            if (key == FREE) {
+                short prev = containsFreeKey ? valueForFreeKey : (short) (add ? 0 : -1);
+                valueForFreeKey = add ? NumUtils.addAndBound(valueForFreeKey, value) : value;
+                if (!containsFreeKey) {
+                    containsFreeKey = true;
+                    size++;
+                }
+                return prev;
+            }
+            Table t = table;
+            int pos = t.position(key);
+            if (t.key(pos) == key) {
+                short prev = value(t, pos, key);
+                setValue(t, pos, key, add ? NumUtils.addAndBound(prev, value) : value);
+                return prev;
+            }
+            setValue(t, pos, key, add ? NumUtils.addAndBound((short) 0, value) : value);
+            t.setKey(pos, key);
+            size++;
+            if (size - (containsFreeKey ? 1 : 0) >= t.maxFill) {
+                enlarge();
+            }
+            return (short) (add ? 0 : -1);
+        }
+
+        private void enlarge() {
+            Table old = table;
+            Table t = newTable(Integer.numberOfTrailingZeros(old.capacity) + 1);
+            for (int i = 0; i < old.capacity; i++) {
+                long key = old.key(i);
+                if (key != FREE) {
+                    int pos = t.position(key);
+                    moveValue(old, i, t, pos);
+                    t.setKey(pos, key);
+                }
+            }
+            table = t;
+            replaced(old);
+        }
+
+        synchronized void reset(boolean keysToo) {
+            clear(table, keysToo);
+            valueForFreeKey = 0;
+            if (keysToo) {
+                containsFreeKey = false;
+                size = 0;
+            }
+        }
+    }
+
+
+    @Override
+    public short put(long key, short value) {
+        return shard(key).update(key, value, false);
+    }
+
+    @Override
+    public short addAndBound(long key, short incValue) {
+        return shard(key).update(key, incValue, true);
+    }
+
+    @Override
+    public short get(long key) {
+        return shard(key).get(key);
+    }
+
+    @Override
+    public short getWithZero(long key) {
+        short value = get(key);
+        return (value == -1) ? 0 : value;
+    }
+
+    @Override
+    public boolean contains(long key) {
+        Shard shard = shard(key);
+        if (key == FREE) {
+            return shard.containsFreeKey;
+        }
+        Table t = shard.table;
+        return t.key(t.position(key)) == key;
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    @Override
+    public long capacity() {
+        long capacity = 0;
+        for (Shard shard : shards) {
+            capacity += shard.table.capacity;
+        }
+        return capacity;
+    }
+
+    @Override
+    public void reset() {
+        for (Shard shard : shards) {
+            shard.reset(true);
+        }
+    }
+
+    @Override
+    public void resetValues() {
+        for (Shard shard : shards) {
+            shard.reset(false);
+        }
+    }
+
+
+    // positions: small map's cells one after another, free key of small map is at position capacity
+
+    long[] off;
+
+    @Override
+    public void prepare() {
+        off = new long[shards.length];
+        for (int i = 1; i < shards.length; i++) {
+            off[i] = off[i - 1] + shards[i - 1].table.capacity + 1;
+        }
+    }
+
+    @Override
+    public long maxPosition() {
+        return off[shards.length - 1] + shards[shards.length - 1].table.capacity;
+    }
+
+    @Override
+    public long getPosition(long key) {
+        int n = HashCommon.murmurHash3((int) key) & mask;
+        Shard shard = shards[n];
+        Table t = shard.table;
+        if (key == FREE) {
+            return shard.containsFreeKey ? off[n] + t.capacity : -1;
+        }
+        int pos = t.position(key);
+        return (t.key(pos) == key) ? off[n] + pos : -1;
+    }
+
+    private int shardAt(long pos) {
+        int n = Arrays.binarySearch(off, pos);
+        return (n < 0) ? (-n - 1) - 1 : n;
+    }
+
+    @Override
+    public long keyAt(long pos) {
+        int n = shardAt(pos);
+        Table t = shards[n].table;
+        int p = (int) (pos - off[n]);
+        return (p == t.capacity) ? FREE : t.key(p);
+    }
+
+    @Override
+    public short valueAt(long pos) {
+        int n = shardAt(pos);
+        Shard shard = shards[n];
+        Table t = shard.table;
+        int p = (int) (pos - off[n]);
+        if (p == t.capacity) {
+            return shard.containsFreeKey ? shard.valueForFreeKey : -1;
+        }
+        long key = t.key(p);
+        return (key == FREE) ? -1 : shard.value(t, p, key);
+    }
+
+    @Override
+    public boolean containsAt(long pos) {
+        int n = shardAt(pos);
+        Shard shard = shards[n];
+        Table t = shard.table;
+        int p = (int) (pos - off[n]);
+        return (p == t.capacity) ? shard.containsFreeKey : t.key(p) != FREE;
+    }
+
+
+    @Override
+    public Iterator<MutableLongShortEntry> entryIterator() {
+        return new EntryIterator();
+    }
+
+    @Override
+    public Iterator<MutableLong> iterator() {
+        final EntryIterator it = new EntryIterator();
+        return new Iterator<MutableLong>() {
+            final MutableLong key = new MutableLong();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public MutableLong next() {
+                key.setValue(it.next().getKey());
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Iterates over all entries, returned entry object is reused.
+     */
+    class EntryIterator implements Iterator<MutableLongShortEntry> {
+        final MutableLongShortEntry entry = new MutableLongShortEntry();
+        int shard = 0;
+        int pos = -1;     // -1 for free key
+        Table table = shards[0].table;
+
+        @Override
+        public boolean hasNext() {
+            while (shard < shards.length) {
+                if (pos == -1) {
+                    if (shards[shard].containsFreeKey) {
+                        return true;
+                    }
+                    pos = 0;
+                }
+                while (pos < table.capacity) {
+                    if (table.key(pos) != FREE) {
+                        return true;
+                    }
+                    pos++;
+                }
+                shard++;
+                pos = -1;
+                if (shard < shards.length) {
+                    table = shards[shard].table;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public MutableLongShortEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (pos == -1) {
+                entry.setKey(FREE);
+                entry.setValue(shards[shard].valueForFreeKey);
+            } else {
+                long key = table.key(pos);
+                entry.setKey(key);
+                entry.setValue(shards[shard].value(table, pos, key));
+            }
+            pos++;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(size());
+        Iterator<MutableLongShortEntry> it = entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry entry = it.next();
+            out.writeLong(entry.getKey());
+            out.writeShort(entry.getValue());
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        reset();
+        long size = in.readLong();
+        for (long i = 0; i < size; i++) {
+            long key = in.readLong();
+            put(key, in.readShort());
+        }
+    }
+}
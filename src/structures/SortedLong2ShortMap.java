@@ -0,0 +1,242 @@
+package structures;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import org.apache.commons.lang.mutable.MutableLong;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
+import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only long -> short map stored as sorted arrays, 10 bytes per entry without any free cells.<br></br>
+ * <br></br>
+ * Entries are split into parts by key's hash (the same way as in
+ * {@link ru.ifmo.genetics.structures.map.BigLong2ShortHashMap}), keys of every part are sorted
+ * and looked up by binary search. Values can be reset and changed for present keys only,
+ * new keys can't be added.
+ */
+public class SortedLong2ShortMap implements Long2ShortHashMapInterface {
+
+    final long[][] keys;
+    final short[][] values;
+    final int mask;
+    final long size;
+
+
+    /**
+     * @param keys   sorted keys of every part, key must be in the part {@link #partOf(long, int)}
+     * @param values values for the keys
+     */
+    public SortedLong2ShortMap(long[][] keys, short[][] values) {
+        if (Integer.bitCount(keys.length) != 1 || keys.length != values.length) {
+            throw new IllegalArgumentException("Number of parts must be a power of two");
+        }
+        this.keys = keys;
+        this.values = values;
+        mask = keys.length - 1;
+        long s = 0;
+        for (long[] part : keys) {
+            s += part.length;
+        }
+        size = s;
+    }
+
+    public static int partOf(long key, int partsNumber) {
+        return HashCommon.murmurHash3((int) key) & (partsNumber - 1);
+    }
+
+
+    @Override
+    public short get(long key) {
+        int n = HashCommon.murmurHash3((int) key) & mask;
+        int pos = Arrays.binarySearch(keys[n], key);
+        return (pos < 0) ? -1 : values[n][pos];
+    }
+
+    @Override
+    public short getWithZero(long key) {
+        short value = get(key);
+        return (value == -1) ? 0 : value;
+    }
+
+    @Override
+    public boolean contains(long key) {
+        return Arrays.binarySearch(keys[HashCommon.murmurHash3((int) key) & mask], key) >= 0;
+    }
+
+    /**
+     * Changes value of the present key.
+     *
+     * @throws UnsupportedOperationException if there is no such key
+     */
+    @Override
+    public short put(long key, short value) {
+        int n = HashCommon.murmurHash3((int) key) & mask;
+        int pos = Arrays.binarySearch(keys[n], key);
+        if (pos < 0) {
+            throw new UnsupportedOperationException("Can't add new key to read-only map");
+        }
+        short prev = values[n][pos];
+        values[n][pos] = value;
+        return prev;
+    }
+
+    @Override
+    public short addAndBound(long key, short incValue) {
+        throw new UnsupportedOperationException("Read-only map");
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long capacity() {
+        return size;
+    }
+
+    @Override
+    public void reset() {
+        throw new UnsupportedOperationException("Read-only map");
+    }
+
+    @Override
+    public void resetValues() {
+        for (short[] part : values) {
+            Arrays.fill(part, (short) 0);
+        }
+    }
+
+
+    long[] off;
+
+    @Override
+    public void prepare() {
+        off = new long[keys.length];
+        for (int i = 1; i < keys.length; i++) {
+            off[i] = off[i - 1] + keys[i - 1].length;
+        }
+    }
+
+    @Override
+    public long maxPosition() {
+        return size - 1;
+    }
+
+    @Override
+    public long getPosition(long key) {
+        int n = HashCommon.murmurHash3((int) key) & mask;
+        int pos = Arrays.binarySearch(keys[n], key);
+        return (pos < 0) ? -1 : off[n] + pos;
+    }
+
+    private int partAt(long pos) {
+        int n = Arrays.binarySearch(off, pos);
+        if (n < 0) {
+            return (-n - 1) - 1;
+        }
+        while (n + 1 < off.length && off[n + 1] == pos) {     // skipping empty parts
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public long keyAt(long pos) {
+        int n = partAt(pos);
+        return keys[n][(int) (pos - off[n])];
+    }
+
+    @Override
+    public short valueAt(long pos) {
+        int n = partAt(pos);
+        return values[n][(int) (pos - off[n])];
+    }
+
+    @Override
+    public boolean containsAt(long pos) {
+        return pos >= 0 && pos < size;
+    }
+
+
+    @Override
+    public Iterator<MutableLongShortEntry> entryIterator() {
+        return new Iterator<MutableLongShortEntry>() {
+            final MutableLongShortEntry entry = new MutableLongShortEntry();
+            int part = 0, pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (part < keys.length && pos == keys[part].length) {
+                    part++;
+                    pos = 0;
+                }
+                return part < keys.length;
+            }
+
+            @Override
+            public MutableLongShortEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                entry.setKey(keys[part][pos]);
+                entry.setValue(values[part][pos]);
+                pos++;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<MutableLong> iterator() {
+        final Iterator<MutableLongShortEntry> it = entryIterator();
+        return new Iterator<MutableLong>() {
+            final MutableLong key = new MutableLong();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public MutableLong next() {
+                key.setValue(it.next().getKey());
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.writeInt(keys[i].length);
+            for (int j = 0; j < keys[i].length; j++) {
+                out.writeLong(keys[i][j]);
+                out.writeShort(values[i][j]);
+            }
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        throw new UnsupportedOperationException("Map is immutable, create it via constructor");
+    }
+}
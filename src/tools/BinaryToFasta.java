@@ -1,9 +1,7 @@
 package tools;
 
-import io.IOUtils;
+import io.KmersTextWriter;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
-import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
@@ -17,7 +15,6 @@ import structures.ConnectedComponent;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
-import java.util.Iterator;
 import java.util.List;
 
 
@@ -93,18 +90,14 @@ public class BinaryToFasta extends Tool {
                 throw new ExecutionFailedException("Couldn't open output file", e);
             }
 
-            BigLong2ShortHashMap kmersHM =
-                    IOUtils.loadKmers(new File[]{kmersFile.get()}, 0, availableProcessors.get(), logger);
-
             info("Printing kmers...");
-            Iterator<MutableLongShortEntry> it = kmersHM.entryIterator();
-            int i = 1;
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                out.println(">" + i);
-                out.println(new ShortKmer(entry.getKey(), k.get()));
-                i++;
-            }
+            final int _k = k.get();
+            KmersTextWriter.print(kmersFile.get(), out, new KmersTextWriter.RecordFormatter() {
+                @Override
+                public void format(long kmer, short freq, long number, KmersTextWriter.TextChunk chunk) {
+                    chunk.append('>').append(number + 1).append('\n').appendKmer(kmer, _k).append('\n');
+                }
+            }, availableProcessors.get(), logger);
             out.close();
         }
 
@@ -1,5 +1,6 @@
 package tools;
 
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import structures.ConnectedComponent;
 import ru.ifmo.genetics.dna.DnaTools;
 import ru.ifmo.genetics.dna.kmers.ShortKmer;
@@ -11,8 +12,12 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
 
 public class CompareReadsAndComponentsMain extends Tool {
     public static final String NAME = "comparison-script";
@@ -39,7 +44,7 @@ public class CompareReadsAndComponentsMain extends Tool {
     public final Parameter<File> samtoolsOutput = addParameter(new FileParameterBuilder("samtools-file")
             .mandatory()
             .withShortOpt("so")
-            .withDescription("SamTools view reads output from BAM file")
+            .withDescription("SamTools view reads output from BAM file (plain text or BGZF/gzip compressed)")
             .create());
 
     private List<String> contigsID = new ArrayList<String>();
@@ -50,6 +55,8 @@ public class CompareReadsAndComponentsMain extends Tool {
 
     private List<ConnectedComponent> components;
 
+    static final int SAM_CHUNK_SIZE = 1 << 22;  // 4 Mb of text
+
     @Override
     protected void runImpl() throws ExecutionFailedException {
         debug("Lets load components");
@@ -63,36 +70,19 @@ public class CompareReadsAndComponentsMain extends Tool {
         }
         debug("Reference loaded");
 
-        try {
-            BufferedReader br = new BufferedReader(new FileReader(samtoolsOutput.get()));
-            String line;
-            int nLines = 0;
-            while ((line = br.readLine()) != null) {
-                nLines++;
-                String[] splitted = line.split("\\s+");
-
-                String id = splitted[2];
-                int pos = Integer.parseInt(splitted[3]);
-                int readLen = Integer.parseInt(splitted[5].substring(0, splitted[5].length() - 1));
-                if (nLines % 1000000 == 0) {
-                    debug("lines cnt = " + nLines);
-                }
-
-                int idPos = contigsID.indexOf(id);
-                if (idPos > -1) {
-                    readsBegins.get(idPos)[pos]++;
-                    readsEnds.get(idPos)[Math.min(pos + readLen - 1, readsEnds.get(idPos).length - 1)]++;
-                }
-
-            }
-            br.close();
-        } catch (IOException e) {
-            throw new ExecutionFailedException("Couldn't load samtools", e);
-        }
+        loadAlignments();
+        debug("Alignments loaded");
 
         debug("Building kmer-to-component map");
-        ArrayLong2IntHashMap kmerToComponent =
-                new ArrayLong2IntHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4);
+        int logMapsNumber = (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4;
+        ArrayLong2IntHashMap kmerToComponent = new ArrayLong2IntHashMap(logMapsNumber);
+        long kmersNumber = 0;
+        for (ConnectedComponent component : components) {
+            kmersNumber += component.size;
+        }
+        for (int i = 0; i < kmerToComponent.hm.length; i++) {     // presizing to avoid rehashing
+            kmerToComponent.hm[i] = new Long2IntOpenHashMap((int) (kmersNumber >> logMapsNumber) + 1);
+        }
 
         for (int compNum = 0; compNum < components.size(); compNum++) {
             for (long kmer : components.get(compNum).kmers) {
@@ -162,6 +152,270 @@ public class CompareReadsAndComponentsMain extends Tool {
         debug("done");
     }
 
+    /**
+     * Reads samtools output by chunks of whole lines, chunks are parsed in parallel
+     * and alignments are added to <code>readsBegins</code> and <code>readsEnds</code> in the order of the file.
+     */
+    private void loadAlignments() throws ExecutionFailedException {
+        final ContigsIndex index = new ContigsIndex(contigsID);
+        ExecutorService executor = Executors.newFixedThreadPool(availableProcessors.get());
+        ArrayDeque<Future<Alignments>> inFlight = new ArrayDeque<Future<Alignments>>();
+        long[] nLines = new long[1];
+
+        try {
+            InputStream in = openSamFile(samtoolsOutput.get());
+            try {
+                byte[] buf = new byte[SAM_CHUNK_SIZE];
+                int len = 0;
+                while (true) {
+                    int r = in.read(buf, len, buf.length - len);
+                    if (r != -1) {
+                        len += r;
+                        if (len < buf.length) {
+                            continue;
+                        }
+                    }
+                    if (r == -1 && len == 0) {
+                        break;
+                    }
+
+                    int chunkEnd = len;     // whole buffer at the end of file
+                    if (r != -1) {
+                        chunkEnd = lastIndexOf(buf, len, (byte) '\n') + 1;
+                        if (chunkEnd == 0) {    // line longer than the buffer
+                            buf = Arrays.copyOf(buf, buf.length * 2);
+                            continue;
+                        }
+                    }
+
+                    final byte[] chunk = buf;
+                    final int chunkLen = chunkEnd;
+                    inFlight.add(executor.submit(new Callable<Alignments>() {
+                        @Override
+                        public Alignments call() {
+                            return parseAlignments(chunk, chunkLen, index);
+                        }
+                    }));
+                    if (inFlight.size() >= 2 * availableProcessors.get()) {
+                        addAlignments(inFlight.poll().get(), nLines);
+                    }
+
+                    buf = new byte[Math.max(SAM_CHUNK_SIZE, len - chunkEnd)];
+                    System.arraycopy(chunk, chunkEnd, buf, 0, len - chunkEnd);
+                    len -= chunkEnd;
+                    if (r == -1 && len == 0) {
+                        break;
+                    }
+                }
+                while (!inFlight.isEmpty()) {
+                    addAlignments(inFlight.poll().get(), nLines);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Couldn't load samtools", e);
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ExecutionFailedException("Couldn't parse samtools file: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        debug("lines cnt = " + nLines[0]);
+    }
+
+    private void addAlignments(Alignments alignments, long[] nLines) {
+        int[] a = alignments.data;
+        for (int i = 0; i < alignments.size; i += 3) {
+            readsBegins.get(a[i])[a[i + 1]]++;
+            readsEnds.get(a[i])[a[i + 2]]++;
+        }
+        if ((nLines[0] + alignments.lines) / 1000000 != nLines[0] / 1000000) {
+            debug("lines cnt = " + (nLines[0] + alignments.lines));
+        }
+        nLines[0] += alignments.lines;
+    }
+
+    /**
+     * Parses lines of samtools output, only reference name, position and CIGAR (fields 3, 4 and 6) are used.
+     * Length of a read is taken from CIGAR without its last char, i.e. CIGAR is expected to be like <code>100M</code>.
+     */
+    private Alignments parseAlignments(byte[] buf, int len, ContigsIndex index) {
+        Alignments res = new Alignments();
+        int[] fieldStart = new int[6], fieldEnd = new int[6];
+        int lineStart = 0;
+        while (lineStart < len) {
+            int lineEnd = lineStart;
+            while (lineEnd < len && buf[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            res.lines++;
+
+            int fields = 0;
+            int i = lineStart;
+            while (fields < 6) {
+                while (i < lineEnd && isSpace(buf[i])) {
+                    i++;
+                }
+                if (i == lineEnd) {
+                    break;
+                }
+                fieldStart[fields] = i;
+                while (i < lineEnd && !isSpace(buf[i])) {
+                    i++;
+                }
+                fieldEnd[fields++] = i;
+            }
+
+            if (fields > 0 && buf[fieldStart[0]] == '@' && fieldStart[0] == lineStart) {
+                // header line
+            } else if (fields < 6) {
+                if (fields > 0) {
+                    throw new IllegalArgumentException("Bad line '" + new String(buf, lineStart, lineEnd - lineStart) + "'");
+                }
+            } else {
+                int idPos = index.get(buf, fieldStart[2], fieldEnd[2]);
+                if (idPos > -1) {
+                    int pos = parseInt(buf, fieldStart[3], fieldEnd[3], lineStart, lineEnd);
+                    int readLen = parseInt(buf, fieldStart[5], fieldEnd[5] - 1, lineStart, lineEnd);
+                    int contigLen = readsBegins.get(idPos).length;
+                    if (pos < 0 || pos >= contigLen) {
+                        throw new IllegalArgumentException("Position " + pos + " is out of contig " +
+                                contigsID.get(idPos) + " of length " + contigLen);
+                    }
+                    res.add(idPos, pos, Math.min(pos + readLen - 1, contigLen - 1));
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return res;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == '\t' || b == ' ' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    private static int parseInt(byte[] buf, int from, int to, int lineStart, int lineEnd) {
+        int i = from;
+        boolean negative = i < to && buf[i] == '-';
+        if (negative || (i < to && buf[i] == '+')) {
+            i++;
+        }
+        if (i == to) {
+            throw new NumberFormatException("Can't parse number in line '" +
+                    new String(buf, lineStart, lineEnd - lineStart) + "'");
+        }
+        int res = 0;
+        for (; i < to; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                throw new NumberFormatException("Can't parse number in line '" +
+                        new String(buf, lineStart, lineEnd - lineStart) + "'");
+            }
+            res = res * 10 + (buf[i] - '0');
+        }
+        return negative ? -res : res;
+    }
+
+    private static int lastIndexOf(byte[] buf, int len, byte b) {
+        for (int i = len - 1; i >= 0; i--) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static InputStream openSamFile(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        in.mark(2);
+        int b1 = in.read(), b2 = in.read();
+        in.reset();
+        if (b1 == 0x1f && b2 == 0x8b) {
+            // BGZF is a series of gzip members, GZIPInputStream reads them all
+            return new GZIPInputStream(in, 1 << 16);
+        }
+        return in;
+    }
+
+
+    /**
+     * Parsed alignments of a chunk as (contig id, begin, end) triples.
+     */
+    private static class Alignments {
+        int[] data = new int[3 * 1024];
+        int size;
+        int lines;
+
+        void add(int contig, int begin, int end) {
+            if (size + 3 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = contig;
+            data[size++] = begin;
+            data[size++] = end;
+        }
+    }
+
+    /**
+     * Open addressing hash index from contig name bytes to its id, the first contig wins for equal names.
+     */
+    private static class ContigsIndex {
+        final byte[][] names;
+        final int[] table;
+        final int mask;
+
+        ContigsIndex(List<String> ids) {
+            names = new byte[ids.size()][];
+            int capacity = Integer.highestOneBit(Math.max(ids.size(), 1)) * 4;
+            table = new int[capacity];
+            mask = capacity - 1;
+            Arrays.fill(table, -1);
+            for (int id = 0; id < ids.size(); id++) {
+                names[id] = ids.get(id).getBytes();
+                if (get(names[id], 0, names[id].length) == -1) {
+                    int pos = hash(names[id], 0, names[id].length) & mask;
+                    while (table[pos] != -1) {
+                        pos = (pos + 1) & mask;
+                    }
+                    table[pos] = id;
+                }
+            }
+        }
+
+        int get(byte[] buf, int from, int to) {
+            int pos = hash(buf, from, to) & mask;
+            while (table[pos] != -1) {
+                byte[] name = names[table[pos]];
+                if (equal(name, buf, from, to)) {
+                    return table[pos];
+                }
+                pos = (pos + 1) & mask;
+            }
+            return -1;
+        }
+
+        static boolean equal(byte[] name, byte[] buf, int from, int to) {
+            if (name.length != to - from) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (name[i] != buf[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static int hash(byte[] buf, int from, int to) {
+            int h = 1;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + buf[i];
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+
     protected void readReferenceContigs() throws IOException {
         BufferedReader br = new BufferedReader(new FileReader(referenceFile.get()));
 
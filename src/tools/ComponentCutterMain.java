@@ -6,8 +6,10 @@ import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
+import structures.ComponentsFile;
 import structures.ConnectedComponent;
 import io.IOUtils;
+import io.ResultCache;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
@@ -65,6 +67,12 @@ public class ComponentCutterMain extends Tool {
             .withDefaultValue(workDir.append("components.bin"))
             .create());
 
+    public final Parameter<Integer> componentsFormat = addParameter(new IntParameterBuilder("components-format")
+            .withDescription("format of components file: 1 - stream of components, " +
+                    "2 - columnar memory-mappable file (can be read lazily)")
+            .withDefaultValue(1)
+            .create());
+
     public File[] outputDescFiles = null;
 
 
@@ -76,6 +84,25 @@ public class ComponentCutterMain extends Tool {
 
     @Override
     protected void runImpl() throws ExecutionFailedException, IOException {
+        if (componentsFormat.get() != 1 && componentsFormat.get() != ComponentsFile.VERSION) {
+            throw new IllegalArgumentException("Unknown components file format " + componentsFormat.get());
+        }
+        String statFP = workDir + File.separator + "components-stat-" +
+                minComponentSize.get() + "-" + maxComponentSize.get() + ".txt";
+
+        ResultCache cache = ResultCache.getInstance();
+        String key = null;
+        if (cache != null) {
+            key = cache.getKey(NAME, sequencesFiles.get(), "k=" + k.get(), "l=" + minLen.get(),
+                    "b1=" + minComponentSize.get(), "b2=" + maxComponentSize.get(),
+                    "format=" + componentsFormat.get());
+            if (cache.restore(key, componentsFile.get(), new File(statFP))) {
+                componentsStatPr.set(new File(statFP));
+                info("Components restored from cache to " + componentsFile.get());
+                return;
+            }
+        }
+
         Timer t = new Timer();
         debug("Loading sequences from files...");
         BigLong2ShortHashMap hm = IOUtils.loadReads(sequencesFiles.get(), k.get(), minLen.get(),
@@ -89,8 +116,6 @@ public class ComponentCutterMain extends Tool {
         info("Searching for components...");
         List<ConnectedComponent> components;
         try {
-            String statFP = workDir + File.separator + "components-stat-" +
-                    minComponentSize.get() + "-" + maxComponentSize.get() + ".txt";
             components = ComponentsBuilder.splitStrategy(hm, k.get(), minComponentSize.get(),
                     maxComponentSize.get(), statFP, logger, availableProcessors.get());
 
@@ -105,8 +130,12 @@ public class ComponentCutterMain extends Tool {
         }
 
         try {
-            ConnectedComponent.saveComponents(components, componentsFile.get().getAbsolutePath());
+            ConnectedComponent.saveComponents(components, componentsFile.get().getAbsolutePath(),
+                    componentsFormat.get());
             info("Components saved to " + componentsFile.get());
+            if (cache != null) {
+                cache.store(key, componentsFile.get(), new File(statFP));
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
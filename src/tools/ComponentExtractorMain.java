@@ -3,7 +3,7 @@ package tools;
 import algo.ComponentsBuilderAroundPivot;
 import io.IOUtils;
 import ru.ifmo.genetics.statistics.Timer;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
@@ -13,7 +13,9 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
+import structures.ComponentsFile;
 import structures.ConnectedComponent;
+import structures.KmersMapBackend;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -50,6 +52,12 @@ public class ComponentExtractorMain extends Tool {
             .withDefaultValue(workDir.append("components.bin"))
             .create());
 
+    public final Parameter<Integer> componentsFormat = addParameter(new IntParameterBuilder("components-format")
+            .withDescription("format of components file: 1 - stream of components, " +
+                    "2 - columnar memory-mappable file (can be read lazily)")
+            .withDefaultValue(1)
+            .create());
+
     /*public final Parameter<Integer> depth = addParameter(new IntParameterBuilder("depth")
             .optional()
             .withDescription("Depth of traversal from pivot k-mers")
@@ -62,38 +70,49 @@ public class ComponentExtractorMain extends Tool {
 
     @Override
     protected void runImpl() throws ExecutionFailedException, IOException {
+        if (componentsFormat.get() != 1 && componentsFormat.get() != ComponentsFile.VERSION) {
+            throw new IllegalArgumentException("Unknown components file format " + componentsFormat.get());
+        }
         Timer t = new Timer();
         debug("Loading graph from files...");
-        BigLong2ShortHashMap hm = IOUtils.loadKmers(inputFiles.get(), 0, availableProcessors.get(), logger);
+        Long2ShortHashMapInterface hm = IOUtils.loadKmersMapWithSnapshot(inputFiles.get(), 0, true,
+                availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
         debug("Loading graph from files...");
-        BigLong2ShortHashMap pivot = IOUtils.loadKmers(pivotFiles.get(), 0, availableProcessors.get(), logger);
+        Long2ShortHashMapInterface pivot = IOUtils.loadKmersMapWithSnapshot(pivotFiles.get(), 0, false,
+                availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
 
-        info("Searching for components...");
-        List<ConnectedComponent> components;
-        try {
-            String statFP = workDir + File.separator + "components-stat.txt";
-            //components = IntelligentComponentsBuilderAroundPivot.splitStrategy(hm, pivot, k.get(), depth.get(), statFP, logger);
-            components = ComponentsBuilderAroundPivot.splitStrategy(hm, k.get(), pivot, statFP, logger);
-
-            componentsStatPr.set(new File(statFP));
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return;
-        }
-        info("Total " + NumUtils.groupDigits(components.size()) + " components were found");
-        if (components.size() == 0) {
-            warn("No components were extracted!");
-        }
-
         try {
-            ConnectedComponent.saveComponents(components, componentsFile.get().getAbsolutePath());
-            info("Components saved to " + componentsFile.get());
-        } catch (IOException e) {
-            e.printStackTrace();
+            info("Searching for components...");
+            List<ConnectedComponent> components;
+            try {
+                String statFP = workDir + File.separator + "components-stat.txt";
+                //components = IntelligentComponentsBuilderAroundPivot.splitStrategy(hm, pivot, k.get(), depth.get(), statFP, logger);
+                components = ComponentsBuilderAroundPivot.splitStrategy(hm, k.get(), pivot, statFP, logger);
+
+                componentsStatPr.set(new File(statFP));
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+                return;
+            }
+            info("Total " + NumUtils.groupDigits(components.size()) + " components were found");
+            if (components.size() == 0) {
+                warn("No components were extracted!");
+            }
+
+            try {
+                ConnectedComponent.saveComponents(components, componentsFile.get().getAbsolutePath(),
+                        componentsFormat.get());
+                info("Components saved to " + componentsFile.get());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } finally {
+            KmersMapBackend.release(hm);
+            KmersMapBackend.release(pivot);
         }
         debug("Components-extractor has finished! Time = " + t);
     }
@@ -6,8 +6,7 @@ import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.statistics.Timer;
-import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
-import ru.ifmo.genetics.structures.set.LongHashSet;
+import ru.ifmo.genetics.structures.map.BigLong2IntHashMap;
 import ru.ifmo.genetics.utils.FileUtils;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
@@ -22,6 +21,7 @@ import structures.Sequence;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class ComponentPathsMain extends Tool {
     public static final String NAME = "component-paths";
@@ -89,78 +89,82 @@ public class ComponentPathsMain extends Tool {
         }
 
         debug("Loading components...");
+        Integer[] compNumbers = new LinkedHashSet<Integer>(Arrays.asList(components.get())).toArray(new Integer[0]);
         List<ConnectedComponent> allComps;
 
-        allComps = ConnectedComponent.loadComponents(componentsFile.get());
+        if (allComponents.get()) {
+            allComps = ConnectedComponent.loadComponents(componentsFile.get());
+        } else {
+            // only requested components are read
+            allComps = ConnectedComponent.loadComponents(componentsFile.get(), Arrays.asList(compNumbers));
+        }
         info(NumUtils.groupDigits(allComps.size()) + " components loaded from " + componentsFile.get());
 
 
         debug("Preparing...");
-        int n = allComponents.get() ? allComps.size() : components.get().length;
+        int n = allComponents.get() ? allComps.size() : compNumbers.length;
         if (n == 0) {
             error("No components to process!!!");
             System.exit(0);
         }
-        ConnectedComponent[] usedComps = new ConnectedComponent[n];
-        LongHashSet[] compKmers = new LongHashSet[n];
+        final ConnectedComponent[] usedComps = new ConnectedComponent[n];
         if (allComponents.get()) {
             allComps.toArray(usedComps);
         } else {
-            for (int i = 0; i < n; i++) {
-                usedComps[i] = allComps.get(components.get()[i]-1);
+            Map<Integer, ConnectedComponent> byNumber = new HashMap<Integer, ConnectedComponent>();
+            for (ConnectedComponent comp : allComps) {
+                byNumber.put(comp.no, comp);
             }
-        }
-        for (int i = 0; i < n; i++) {
-            compKmers[i] = new LongHashSet((int) (usedComps[i].size / 0.75f) +10);
-            for (long kmer : usedComps[i].kmers) {
-                compKmers[i].add(kmer);
+            for (int i = 0; i < n; i++) {
+                usedComps[i] = byNumber.get(compNumbers[i]);
             }
         }
-        List<Sequence>[] ans = new List[n];
+
+        // single k-mer -> components map, so every sequence is scanned only once
+        final ComponentSets compIds = new ComponentSets(usedComps, availableProcessors.get());
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+        List<List<Sequence>> ans = new ArrayList<List<Sequence>>(n);
         for (int i = 0; i < n; i++) {
-            ans[i] = new ArrayList<Sequence>();
+            ans.add(new ArrayList<Sequence>());
         }
-        int k = this.k.get();
 
 
 
         debug("Loading sequences and extracting paths...");
-        for (File seqFile : sequenceFiles.get()) {
-            info("Loading file " + seqFile.getName() + "...");
-
-            NamedSource<Dna> reader = ReadersUtils.readDnaLazy(seqFile);
-            Iterator<Dna> iterator = reader.iterator();
-            while (iterator.hasNext()) {
-                Dna dna = iterator.next();
+        ExecutorService executor = Executors.newFixedThreadPool(availableProcessors.get());
+        List<Future<List<List<Sequence>>>> results = new ArrayList<Future<List<List<Sequence>>>>();
+        for (final File seqFile : sequenceFiles.get()) {
+            results.add(executor.submit(new Callable<List<List<Sequence>>>() {
+                @Override
+                public List<List<Sequence>> call() throws IOException {
+                    return extractPaths(seqFile, compIds, usedComps);
+                }
+            }));
+        }
+        executor.shutdown();
 
+        // merging in the order of files to get the same paths as by sequential processing
+        try {
+            for (Future<List<List<Sequence>>> result : results) {
+                List<List<Sequence>> fileAns = result.get();
                 for (int i = 0; i < n; i++) {
-                    // checking sequence dna on component i
-                    int first = -1;
-                    int cur = 0;
-                    for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
-                        if (compKmers[i].contains(kmer.toLong())) {
-                            if (first == -1) {
-                                first = cur;
-                            } else {
-                                // continue...
-                            }
-                        } else {
-                            if (first != -1) {
-                                checkAndAddPath(dna, first, cur, ans[i], usedComps[i]);
-                                first = -1;
-                            }
-                        }
-                        cur++;
-                    }
-                    if (first != -1) {
-                        checkAndAddPath(dna, first, cur, ans[i], usedComps[i]);
+                    if (fileAns.get(i) == null) {
+                        continue;
                     }
+                    int toAdd = Math.min(fileAns.get(i).size(), MAX_PATHS_COUNT - ans.get(i).size());
+                    ans.get(i).addAll(fileAns.get(i).subList(0, toAdd));
                 }
             }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new ExecutionFailedException("Can't extract paths: " + e.getCause().getMessage(), e.getCause());
         }
 
         for (int i = 0; i < n; i++) {
-            if (ans[i].size() == MAX_PATHS_COUNT) {
+            if (ans.get(i).size() == MAX_PATHS_COUNT) {
                 warn("Too many paths in component " + usedComps[i].no + ", " +
                         "keeping only first " + MAX_PATHS_COUNT + " of them!");
             }
@@ -181,7 +185,7 @@ public class ComponentPathsMain extends Tool {
         for (int i = 0; i < n; i++) {
             File file = new File(outputDir.get(), "component-" + usedComps[i].no + ".seq.fasta");
             try {
-                Sequence.printSequences(ans[i], file);
+                Sequence.printSequences(ans.get(i), file);
             } catch (IOException e) {
                 throw new RuntimeException("Can't write sequences to file " + file, e);
             }
@@ -189,19 +193,154 @@ public class ComponentPathsMain extends Tool {
         info("Paths for " + n + " component(s) were saved in directory " + outputDir.get());
     }
 
-    private void checkAndAddPath(Dna dna, int first, int cur, List<Sequence> ans, ConnectedComponent comp) {
+    /**
+     * Scans every sequence once, a path of a component is a maximal run of k-mers from this component
+     * (runs of components sharing k-mers may overlap, as if every component was scanned independently).
+     *
+     * @return paths for every component, <code>null</code> for components without paths
+     */
+    private List<List<Sequence>> extractPaths(File seqFile, ComponentSets compIds, ConnectedComponent[] usedComps)
+            throws IOException {
+        info("Loading file " + seqFile.getName() + "...");
+        int n = usedComps.length;
+        List<List<Sequence>> ans = new ArrayList<List<Sequence>>(Collections.<List<Sequence>>nCopies(n, null));
+        int k = this.k.get();
+
+        int[] runStart = new int[n];        // start of the current run of component, -1 if there is no run
+        Arrays.fill(runStart, -1);
+        int[] active = new int[n];          // components with a run
+        int activeCount = 0;
+        boolean[] inKmer = new boolean[n];
+        int[] single = new int[1];
+
+        NamedSource<Dna> reader = ReadersUtils.readDnaLazy(seqFile);
+        Iterator<Dna> iterator = reader.iterator();
+        while (iterator.hasNext()) {
+            Dna dna = iterator.next();
+
+            int cur = 0;
+            for (ShortKmer kmer : ShortKmer.kmersOf(dna, k)) {
+                int[] comps = compIds.get(kmer.toLong(), single);
+                for (int c : comps) {
+                    inKmer[c] = true;
+                }
+                int left = 0;
+                for (int j = 0; j < activeCount; j++) {
+                    int c = active[j];
+                    if (inKmer[c]) {
+                        active[left++] = c;
+                    } else {
+                        checkAndAddPath(dna, runStart[c], cur, ans, c, usedComps);
+                        runStart[c] = -1;
+                    }
+                }
+                activeCount = left;
+                for (int c : comps) {
+                    inKmer[c] = false;
+                    if (runStart[c] == -1) {
+                        runStart[c] = cur;
+                        active[activeCount++] = c;
+                    }
+                }
+                cur++;
+            }
+            for (int j = 0; j < activeCount; j++) {
+                int c = active[j];
+                checkAndAddPath(dna, runStart[c], cur, ans, c, usedComps);
+                runStart[c] = -1;
+            }
+            activeCount = 0;
+        }
+        return ans;
+    }
+
+    private void checkAndAddPath(Dna dna, int first, int cur, List<List<Sequence>> ans, int i,
+                                 ConnectedComponent[] usedComps) {
         // possible adding from first to cur
         int len = cur - first - 1 + k.get();
         if (len >= minLen.get()) {
+            ConnectedComponent comp = usedComps[i];
             double avgKmerWeight = comp.weight / (double) comp.size;
             Sequence seq = new Sequence(
                     dna.substring(first, first + len),
                     (int) Math.round(avgKmerWeight),
                     0,0 // minWeight and maxWeight are unknown
             );
-            if (ans.size() < MAX_PATHS_COUNT) {
-                ans.add(seq);
+            if (ans.get(i) == null) {
+                ans.set(i, new ArrayList<Sequence>());
+            }
+            if (ans.get(i).size() < MAX_PATHS_COUNT) {
+                ans.get(i).add(seq);
+            }
+        }
+    }
+
+    /**
+     * K-mer -> indices of components containing it. A k-mer of a single component is mapped to
+     * (index + 1), a k-mer shared by several components is mapped to -(number of the set of indices + 2)
+     * (-1 means no value in the map), equal sets are stored once.
+     */
+    static class ComponentSets {
+        static final int[] NONE = new int[0];
+
+        final BigLong2IntHashMap ids;
+        final List<int[]> sets = new ArrayList<int[]>();
+
+        ComponentSets(ConnectedComponent[] comps, int availableProcessors) {
+            ids = new BigLong2IntHashMap((int) (Math.log(availableProcessors) / Math.log(2)) + 4, 12);
+            // set number and new component index -> number of the extended set
+            Map<Long, Integer> extended = new HashMap<Long, Integer>();
+            for (int i = 0; i < comps.length; i++) {
+                for (long kmer : comps[i].kmers) {
+                    int id = ids.getWithZero(kmer);
+                    if (id == 0) {
+                        ids.put(kmer, i + 1);
+                    } else if (id > 0) {
+                        if (id != i + 1) {
+                            ids.put(kmer, -(setOf(extended, -1, id - 1, i) + 2));
+                        }
+                    } else {
+                        int[] set = sets.get(-id - 2);
+                        if (set[set.length - 1] != i) {
+                            ids.put(kmer, -(setOf(extended, -id - 2, -1, i) + 2));
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Components are added in increasing order, so every set is sorted and is extended only by larger indices.
+         *
+         * @param setNo number of the set to extend or -1 if the set consists of <code>single</code> index
+         */
+        private int setOf(Map<Long, Integer> extended, int setNo, int single, int i) {
+            long key = ((setNo == -1) ? -(single + 2L) : (long) setNo) << 32 | i;
+            Integer res = extended.get(key);
+            if (res == null) {
+                int[] prev = (setNo == -1) ? new int[]{single} : sets.get(setNo);
+                int[] set = Arrays.copyOf(prev, prev.length + 1);
+                set[prev.length] = i;
+                res = sets.size();
+                sets.add(set);
+                extended.put(key, res);
+            }
+            return res;
+        }
+
+        /**
+         * @param single buffer for the result if k-mer belongs to one component
+         */
+        int[] get(long kmer, int[] single) {
+            int id = ids.getWithZero(kmer);
+            if (id == 0) {
+                return NONE;
+            }
+            if (id > 0) {
+                single[0] = id - 1;
+                return single;
             }
+            return sets.get(-id - 2);
         }
     }
 
@@ -1,5 +1,7 @@
 package tools;
 
+import algo.ComponentUnitigs;
+import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
@@ -7,7 +9,14 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 
-import java.io.File;
+import structures.ConnectedComponent;
+import structures.Sequence;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Created by -- on 20.07.2021.
@@ -36,6 +45,20 @@ public class ComponentsToSequences extends Tool {
             .withDefaultValue(false)
             .create());
 
+    public final Parameter<Boolean> direct = addParameter(new BoolParameterBuilder("direct")
+            .important()
+            .withDescription("build contigs directly from components in memory, " +
+                    "without intermediate FASTA and k-mers files for every component")
+            .withDefaultValue(false)
+            .create());
+
+    public final Parameter<File> contigsFile = addParameter(new FileParameterBuilder("contigs-file")
+            .withDescription("FASTA file with contigs of all components (for --direct mode)")
+            .withDefaultValue(workDir.append("contigs.fasta"))
+            .create());
+
+    static final int COMPONENTS_BATCH = 256;
+
 
     //adding sub tools
     public BinaryToFasta bin2fasta = new BinaryToFasta();
@@ -69,12 +92,83 @@ public class ComponentsToSequences extends Tool {
 
     @Override
     protected void runImpl() throws ExecutionFailedException {
+        if (direct.get()) {
+            buildContigsDirectly();
+            return;
+        }
+
         // running steps
         addStep(bin2fasta);
         addStep(kmersCounter);
         addStep(seqBuilder);
     }
 
+    /**
+     * Builds unitigs of every component in parallel and prints them to a single FASTA file
+     * in the order of components, contig's name is <code>componentNo_contigNo</code>.
+     */
+    private void buildContigsDirectly() throws ExecutionFailedException {
+        final List<ConnectedComponent> components = ConnectedComponent.loadComponents(componentsFile.get());
+        info(NumUtils.groupDigits(components.size()) + " components loaded from " + componentsFile.get());
+        final int k = this.k.get();
+
+        ExecutorService executor = Executors.newFixedThreadPool(availableProcessors.get());
+        ArrayDeque<Future<List<List<Sequence>>>> inFlight = new ArrayDeque<Future<List<List<Sequence>>>>();
+        long contigs = 0;
+        int printed = 0;
+        try {
+            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(contigsFile.get()), 1 << 20));
+            try {
+                for (int from = 0; from < components.size(); from += COMPONENTS_BATCH) {
+                    final int batchFrom = from;
+                    final int batchTo = Math.min(from + COMPONENTS_BATCH, components.size());
+                    inFlight.add(executor.submit(new Callable<List<List<Sequence>>>() {
+                        @Override
+                        public List<List<Sequence>> call() {
+                            List<List<Sequence>> res = new ArrayList<List<Sequence>>(batchTo - batchFrom);
+                            for (int i = batchFrom; i < batchTo; i++) {
+                                res.add(ComponentUnitigs.build(components.get(i), k));
+                            }
+                            return res;
+                        }
+                    }));
+                    if (inFlight.size() >= 2 * availableProcessors.get()) {
+                        for (List<Sequence> unitigs : inFlight.poll().get()) {
+                            contigs += printContigs(out, ++printed, unitigs);
+                        }
+                    }
+                }
+                while (!inFlight.isEmpty()) {
+                    for (List<Sequence> unitigs : inFlight.poll().get()) {
+                        contigs += printContigs(out, ++printed, unitigs);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't write contigs to file " + contigsFile.get(), e);
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ExecutionFailedException("Can't build contigs: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        info(NumUtils.groupDigits(contigs) + " contigs printed to " + contigsFile.get());
+    }
+
+    private static int printContigs(PrintWriter out, int componentNo, List<Sequence> unitigs) {
+        int j = 0;
+        for (Sequence unitig : unitigs) {
+            j++;
+            out.println(">" + componentNo + "_" + j + " component=" + componentNo + " length=" + unitig.length());
+            out.println(unitig.toString());
+        }
+        return j;
+    }
+
     @Override
     protected void cleanImpl() { }
 
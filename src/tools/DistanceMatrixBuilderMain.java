@@ -66,6 +66,22 @@ public class DistanceMatrixBuilderMain extends Tool {
             .withDescription("use reads instead of kmers for calculating features (characteristic vectors)")
             .create());
 
+    public final Parameter<Boolean> binaryVectors = addParameter(new BoolParameterBuilder("binary-vectors")
+            .withDescription("save features vectors in compact binary format instead of text one")
+            .create());
+
+    public final Parameter<Boolean> separateSeqBuilder = addParameter(new BoolParameterBuilder("separate-seq-builder")
+            .withDescription("build sequences in a separate step reloading k-mers from disk " +
+                    "instead of building them from k-mers counted in memory")
+            .create());
+
+    public final Parameter<Integer> parallelSamples = addParameter(new IntParameterBuilder("parallel-samples")
+            .withShortOpt("ps")
+            .withDefaultValue(4)
+            .withDescription("maximal number of samples processed concurrently by k-mer counter and seq-builder " +
+                    "(limited by available memory)")
+            .create());
+
     public final Parameter<File> matrixFile = addParameter(new FileParameterBuilder("matrix-file")
             .withDefaultValue(workDir.append("matrices").append("dist_matrix_$DT.txt"))
             .withDefaultComment("<workDir>/matrices/dist_matrix_<date>_<time>.txt")
@@ -90,6 +106,9 @@ public class DistanceMatrixBuilderMain extends Tool {
         setFix(kmersCounter.k, k);
         setFix(kmersCounter.inputFiles, inputFiles);
         setFix(kmersCounter.maximalBadFrequency, maximalBadFrequency);
+        setFix(kmersCounter.parallelSamples, parallelSamples);
+        setFix(kmersCounter.sequenceLen, minSequenceLength);
+        setFix(kmersCounter.sequencesDir, workDir.append(SeqBuilderForManyFilesMain.NAME).append("sequences"));
         setFixDefault(kmersCounter.outputDir);
         kmersCounter.outputDescFiles = outputDescFiles;
         addSubTool(kmersCounter);
@@ -101,6 +120,7 @@ public class DistanceMatrixBuilderMain extends Tool {
         setFix(seqBuilder.inputFiles, kmersCounter.resultingKmerFiles);
         setFix(seqBuilder.maximalBadFrequency, maximalBadFrequency);
         setFix(seqBuilder.sequenceLen, minSequenceLength);
+        setFix(seqBuilder.parallelSamples, parallelSamples);
         setFixDefault(seqBuilder.outputDir);
         seqBuilder.outputDescFiles = outputDescFiles;
         addSubTool(seqBuilder);
@@ -123,6 +143,7 @@ public class DistanceMatrixBuilderMain extends Tool {
         setFixDefault(featuresCalculator.readsFiles);
         setFix(featuresCalculator.kmersFiles, kmersCounter.resultingKmerFiles);
         setFixDefault(featuresCalculator.threshold);
+        setFix(featuresCalculator.binaryVectors, binaryVectors);
         featuresCalculator.outputDescFiles = outputDescFiles;
         addSubTool(featuresCalculator);
     }
@@ -163,12 +184,21 @@ public class DistanceMatrixBuilderMain extends Tool {
             setFix(featuresCalculator.kmersFiles, new File[]{});
             setFix(featuresCalculator.readsFiles, inputFiles);
         }
+        boolean fused = !separateSeqBuilder.get() && seqBuilder.bottomCutPercent.get() == null;
+        if (fused) {
+            // sequences are built by kmer-counter right after counting
+            setFix(compCutter.sequencesFiles, kmersCounter.resultingSequencesFiles);
+        } else {
+            setFix(kmersCounter.sequenceLen, (Integer) null);
+        }
         outputDescFiles[1] = workDir.append("output_description.txt").get();    // updating workdir
         createOutputDescFiles();
 
         // running steps
         addStep(kmersCounter);
-        addStep(seqBuilder);
+        if (!fused) {
+            addStep(seqBuilder);
+        }
         addStep(compCutter);
         addStep(featuresCalculator);
         addStep(distMatrixCalculator);
@@ -1,6 +1,7 @@
 package tools;
 
 import io.IOUtils;
+import io.VectorsIO;
 import ru.ifmo.genetics.utils.FileUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
@@ -49,11 +50,11 @@ public class DistanceMatrixCalculatorMain extends Tool {
 
     @Override
     protected void runImpl() throws ExecutionFailedException {
-        List<List<Double>> features = new ArrayList<List<Double>>();
+        List<double[]> features = new ArrayList<double[]>();
 
         for (File featuresFile : featuresFiles.get()) {
             try {
-                features.add(readVector(featuresFile));
+                features.add(VectorsIO.readVector(featuresFile));
             } catch (IOException e) {
                 throw new ExecutionFailedException("Failed to read features from " + featuresFile);
             }
@@ -122,29 +123,14 @@ public class DistanceMatrixCalculatorMain extends Tool {
         out.close();
     }
 
-    private List<Double> readVector(File file) throws IOException {
-        List<Double> ans = new ArrayList<Double>();
-
-        BufferedReader reader = new BufferedReader(new FileReader(file));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (!line.isEmpty()) {
-                ans.add(Double.parseDouble(line));
-            }
-        }
-        reader.close();
-
-        return ans;
-    }
-
-    private double brayCurtisDistance(List<Double> vector1, List<Double> vector2) {
-        assert vector1.size() == vector2.size();
+    public static double brayCurtisDistance(double[] vector1, double[] vector2) {
+        assert vector1.length == vector2.length;
 
         double sumdiff = 0, sum = 0;
 
-        for (int pos = 0; pos < vector1.size(); pos++) {
-            sumdiff += Math.abs(vector1.get(pos) - vector2.get(pos));
-            sum += Math.abs(vector1.get(pos)) + Math.abs(vector2.get(pos));
+        for (int pos = 0; pos < vector1.length; pos++) {
+            sumdiff += Math.abs(vector1[pos] - vector2[pos]);
+            sum += Math.abs(vector1[pos]) + Math.abs(vector2[pos]);
         }
 
         assert sum > 0;
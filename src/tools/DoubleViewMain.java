@@ -1,20 +1,19 @@
 package tools;
 
 import io.IOUtils;
+import io.KmersTextWriter;
 import ru.ifmo.genetics.ToolTemplate;
-import ru.ifmo.genetics.dna.kmers.ShortKmer;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
-import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
+import structures.KmersMapBackend;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
-import java.util.Iterator;
 
 public class DoubleViewMain extends Tool {
     public static final String NAME = "double-view";
@@ -54,7 +53,7 @@ public class DoubleViewMain extends Tool {
 
     @Override
     protected void runImpl() throws ExecutionFailedException {
-        int _k = k.get();
+        final int _k = k.get();
 
         PrintWriter out;
         try {
@@ -64,20 +63,23 @@ public class DoubleViewMain extends Tool {
             throw new ExecutionFailedException("Couldn't open output file", e);
         }
 
-        BigLong2ShortHashMap mtxHM = IOUtils.loadKmers(new File[]{mtxFile.get()}, 0, availableProcessors.get(), logger);
-        BigLong2ShortHashMap mgxHM = IOUtils.loadKmers(new File[]{mgxFile.get()}, 0, availableProcessors.get(), logger);
+        // only mgx k-mers are loaded, mtx file is streamed and every its k-mer is probed in mgx map
+        final Long2ShortHashMapInterface mgxHM = IOUtils.loadKmersMap(new File[]{mgxFile.get()}, 0, false,
+                availableProcessors.get(), logger);
 
-        logger.info("Printing kmers...");
-        out.println("Kmer\tmtx_count\tmgx_count");
-        Iterator<MutableLongShortEntry> it = mtxHM.entryIterator();
-        while (it.hasNext()) {
-            MutableLongShortEntry entry = it.next();
-            long key = entry.getKey();
-            short value = entry.getValue();
-
-            out.println(new ShortKmer(key, _k) + "\t" + value + "\t" + mgxHM.getWithZero(key));
+        try {
+            logger.info("Printing kmers...");
+            out.println("Kmer\tmtx_count\tmgx_count");
+            KmersTextWriter.print(mtxFile.get(), out, new KmersTextWriter.RecordFormatter() {
+                @Override
+                public void format(long kmer, short freq, long number, KmersTextWriter.TextChunk chunk) {
+                    chunk.appendKmer(kmer, _k).append('\t').append(freq).append('\t')
+                            .append(mgxHM.getWithZero(kmer)).append('\n');
+                }
+            }, availableProcessors.get(), logger);
+        } finally {
+            KmersMapBackend.release(mgxHM);
         }
-
         out.close();
     }
 
@@ -1,22 +1,26 @@
 package tools;
 
 import io.IOUtils;
+import io.Tracer;
+import io.VectorsIO;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2LongHashMap;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.utils.FileUtils;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 import structures.ConnectedComponent;
+import structures.KmersMapBackend;
 
 import java.io.*;
 import java.util.Arrays;
@@ -63,6 +67,10 @@ public class FeaturesCalculatorMain extends Tool {
             .withDefaultValue(0)
             .create());
 
+    public final Parameter<Boolean> binaryVectors = addParameter(new BoolParameterBuilder("binary-vectors")
+            .withDescription("print features vectors in compact binary format instead of text one")
+            .create());
+
     public File[] outputDescFiles = null;
 
 
@@ -112,64 +120,69 @@ public class FeaturesCalculatorMain extends Tool {
         File[] featuresFiles = new File[featuresFilesCount];
         int curFiles = 0;
 
-        BigLong2ShortHashMap selected = null;
+        Long2ShortHashMapInterface selected = null;
         if (selectedKmers.get() != null) {
-            selected = IOUtils.loadKmers(selectedKmers.get(), 0, availableProcessors.get(), logger);
+            selected = IOUtils.loadKmersMapWithSnapshot(selectedKmers.get(), 0, false,
+                    availableProcessors.get(), logger);
         }
 
-        if (readsFiles.get() != null) {
-            for (File readsFile : readsFiles.get()) {
-                hm.resetValues();
-                IOUtils.calculatePresenceForReads(new File[]{readsFile}, k.get(), hm,
-                        availableProcessors.get(), logger);
-
-                File outFile = new File(outDir, ReadersUtils.readDnaLazy(readsFile).name() + ".vec");
-                File outBreadthFile = new File(outDir, ReadersUtils.readDnaLazy(readsFile).name() + ".breadth");
-                buildAndPrintVector(components, hm, threshold.get(), selected, vector, breadth, outFile, outBreadthFile);
-                info("Features for file " + readsFile.getName() + " printed to " + outFile);
-                info("Components breadth coverage for file " + readsFile.getName() + " printed to " + outBreadthFile);
-                featuresFiles[curFiles] = outFile;
-                curFiles++;
+        try {
+            if (readsFiles.get() != null) {
+                for (File readsFile : readsFiles.get()) {
+                    hm.resetValues();
+                    IOUtils.calculatePresenceForReads(new File[]{readsFile}, k.get(), hm,
+                            availableProcessors.get(), logger);
+
+                    File outFile = new File(outDir, ReadersUtils.readDnaLazy(readsFile).name() + ".vec");
+                    File outBreadthFile = new File(outDir, ReadersUtils.readDnaLazy(readsFile).name() + ".breadth");
+                    buildAndPrintVector(components, hm, threshold.get(), selected, vector, breadth, outFile, outBreadthFile);
+                    info("Features for file " + readsFile.getName() + " printed to " + outFile);
+                    info("Components breadth coverage for file " + readsFile.getName() + " printed to " + outBreadthFile);
+                    featuresFiles[curFiles] = outFile;
+                    curFiles++;
+                }
             }
-        }
 
-        if (kmersFiles.get() != null) {
-            for (File kmersFile : kmersFiles.get()) {
-                /*
-                // normalize on total amount of k-mers in kmersFile
-                BigLong2ShortHashMap hm_tmp =IOUtils.loadKmers(new File[]{kmersFile}, threshold.get(), availableProcessors.get(), logger);
-                debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-                long totalKmers = 0;
-                Iterator<MutableLongShortEntry> it = hm_tmp.entryIterator();
-                while (it.hasNext()) {
-                    MutableLongShortEntry entry = it.next();
-                    int value = entry.getValue();
-                    totalKmers += value;
+            if (kmersFiles.get() != null) {
+                for (File kmersFile : kmersFiles.get()) {
+                    /*
+                    // normalize on total amount of k-mers in kmersFile
+                    BigLong2ShortHashMap hm_tmp =IOUtils.loadKmers(new File[]{kmersFile}, threshold.get(), availableProcessors.get(), logger);
+                    debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+                    long totalKmers = 0;
+                    Iterator<MutableLongShortEntry> it = hm_tmp.entryIterator();
+                    while (it.hasNext()) {
+                        MutableLongShortEntry entry = it.next();
+                        int value = entry.getValue();
+                        totalKmers += value;
+                    }
+                    */
+
+                    hm.resetValues();
+                    IOUtils.calculatePresenceForKmers(new File[]{kmersFile}, hm,
+                            availableProcessors.get(), logger);
+
+                    File outFile = new File(outDir, FileUtils.removeExtension(kmersFile.getName(), ".kmers.bin") + ".vec");
+                    File outBreadthFile = new File(outDir, FileUtils.removeExtension(kmersFile.getName(), ".kmers.bin") + ".breadth");
+                    buildAndPrintVector(components, hm, threshold.get(), selected, vector, breadth, outFile, outBreadthFile);
+                    info("Features for file " + kmersFile.getName() + " printed to " + outFile);
+                    info("Components breadth coverage for file " + kmersFile.getName() + " printed to " + outBreadthFile);
+                    featuresFiles[curFiles] = outFile;
+                    curFiles++;
                 }
-                */
-
-                hm.resetValues();
-                IOUtils.calculatePresenceForKmers(new File[]{kmersFile}, hm,
-                        availableProcessors.get(), logger);
-
-                File outFile = new File(outDir, FileUtils.removeExtension(kmersFile.getName(), ".kmers.bin") + ".vec");
-                File outBreadthFile = new File(outDir, FileUtils.removeExtension(kmersFile.getName(), ".kmers.bin") + ".breadth");
-                buildAndPrintVector(components, hm, threshold.get(), selected, vector, breadth, outFile, outBreadthFile);
-                info("Features for file " + kmersFile.getName() + " printed to " + outFile);
-                info("Components breadth coverage for file " + kmersFile.getName() + " printed to " + outBreadthFile);
-                featuresFiles[curFiles] = outFile;
-                curFiles++;
             }
+        } finally {
+            KmersMapBackend.release(selected);
         }
-
         featuresFilesPr.set(featuresFiles);
         debug("Features-calculator has finished! Time = " + t);
     }
 
     private void buildAndPrintVector(final List<ConnectedComponent> components, final BigLong2LongHashMap hm,
-                                     final int threshold, final BigLong2ShortHashMap selected, final long[] vector, final double[] breadth, File outFile,
+                                     final int threshold, final Long2ShortHashMapInterface selected, final long[] vector, final double[] breadth, File outFile,
                                      File outBreadthFile) throws ExecutionFailedException {
 
+        Tracer.Span span = Tracer.begin("building vector", "features", "file", outFile.getName());
         try {
             debug("Building vector...");
 
@@ -185,25 +198,31 @@ public class FeaturesCalculatorMain extends Tool {
                     workers[i] = new Thread(new Runnable() {
                         @Override
                         public void run() {
-                            for (int i = from; i < to; i++) {
-                                ConnectedComponent component = components.get(i);
-                                long kmers = 0;
-                                long kmersCount = 0, kmersFound = 0;
-                                for (long kmer : component.kmers) {
-                                    if (selected == null || selected.getWithZero(kmer) > 0) {
-                                        long value = hm.getWithZero(kmer);
-                                        if (value > threshold) {
-                                            kmers += value;
-                                            kmersFound++;
+                            Tracer.Span span = Tracer.begin("building vector part", "worker",
+                                    "components", (to - from));
+                            try {
+                                for (int i = from; i < to; i++) {
+                                    ConnectedComponent component = components.get(i);
+                                    long kmers = 0;
+                                    long kmersCount = 0, kmersFound = 0;
+                                    for (long kmer : component.kmers) {
+                                        if (selected == null || selected.getWithZero(kmer) > 0) {
+                                            long value = hm.getWithZero(kmer);
+                                            if (value > threshold) {
+                                                kmers += value;
+                                                kmersFound++;
+                                            }
+                                            kmersCount++;
                                         }
-                                        kmersCount++;
                                     }
+                                    vector[i] = kmers;
+                                    breadth[i] = ((double) kmersFound) / kmersCount;
                                 }
-                                vector[i] = kmers;
-                                breadth[i] = ((double) kmersFound) / kmersCount;
+                            } finally {
+                                span.end();
                             }
                         }
-                    });
+                    }, "vector-worker-" + i);
                     workers[i].start();
                 }
             }
@@ -214,24 +233,14 @@ public class FeaturesCalculatorMain extends Tool {
             }
 
             // writing to file
-            PrintWriter out = new PrintWriter(new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(outFile)), 1 << 20));   // 1 Mb buffer
-            for (long kmers : vector) {
-                // out.println((double) kmers / totalKmers);
-                out.println(kmers);
-            }
-            out.close();
-
-            PrintWriter bout = new PrintWriter(new BufferedWriter(
-                    new OutputStreamWriter(new FileOutputStream(outBreadthFile)), 1 << 20));   // 1 Mb buffer
-            for (double kmers : breadth) {
-                bout.println(kmers);
-            }
-            bout.close();
+            VectorsIO.printVector(vector, outFile, binaryVectors.get());
+            VectorsIO.printVector(breadth, outBreadthFile, binaryVectors.get());
         } catch (IOException e) {
             throw new ExecutionFailedException("Can't write vector to file " + outFile, e);
         } catch (InterruptedException e) {
             throw new ExecutionFailedException("Calculating thread was interrupted!", e);
+        } finally {
+            span.end();
         }
     }
 
@@ -243,7 +252,8 @@ public class FeaturesCalculatorMain extends Tool {
     protected void postprocessing() {
         IOUtils.tryToAppendDescription(outputDescFiles,
                 featuresDirOut.get(),
-                "Directory with features values files for every library (in text format)"
+                "Directory with features values files for every library (in " +
+                        (binaryVectors.get() ? "binary" : "text") + " format)"
         );
     }
 
@@ -3,24 +3,17 @@ package tools;
 import algo.FullHeatMap;
 import algo.FullHeatMapXML;
 import io.IOUtils;
-import org.w3c.dom.Document;
 import ru.ifmo.genetics.utils.FileUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.BoolParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.StringParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 
-import javax.imageio.ImageIO;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.text.NumberFormat;
 import java.text.ParseException;
@@ -69,6 +62,12 @@ public class HeatMapMakerMain extends Tool {
             .withDescription("invert colors in heatmap")
             .create());
 
+    public final Parameter<Integer> maxImageSize = addParameter(new IntParameterBuilder("max-image-size")
+            .withDefaultValue(32768)
+            .withDescription("maximal heatmap grid size in pixels, for bigger matrices cells are shrunk " +
+                    "and several samples are aggregated into one cell")
+            .create());
+
     public final Parameter<String> outputFormat = addParameter(new StringParameterBuilder("output-format")
             .withDefaultValue("%.4f")
             .withDescription("output format for distance values")
@@ -116,11 +115,15 @@ public class HeatMapMakerMain extends Tool {
         }
 
 
-        // creating full heat map
-        FullHeatMap maker = new FullHeatMap(matrix, names, invertColors.get(), colors);
-        BufferedImage image = maker.createFullHeatMap(!withoutRenumbering.get());
-
-        Document document = new FullHeatMapXML(matrix, names, invertColors.get(), colors).createFullHeatMap(!withoutRenumbering.get());
+        // creating full heat map, images are rendered while being written to files
+        FullHeatMap maker = new FullHeatMap(matrix, 0, 1, names, invertColors.get(), colors, maxImageSize.get());
+        FullHeatMapXML makerXML = new FullHeatMapXML(matrix, 0, 1, names, invertColors.get(), colors, maxImageSize.get());
+        if (maker.group > 1) {
+            info("Too many samples for the heatmap, " + maker.group + " samples are aggregated into one cell");
+        }
+        if (makerXML.group > maker.group) {
+            info("In SVG heatmap " + makerXML.group + " samples are aggregated into one cell");
+        }
 
         // saving results
         String filePrefix = FileUtils.removeExtension(matrixFile.get().getPath(), ".txt");
@@ -133,34 +136,36 @@ public class HeatMapMakerMain extends Tool {
         if (withoutRenumbering.get()) {
             // OK
             newMatrixPath = matrixFile.get().getPath();
-        } else {
-            // should renumber
-            try {
-                DistanceMatrixCalculatorMain.printMatrix(matrix, newMatrixPath, names, maker.perm, outputFormat.get());
-            } catch (FileNotFoundException e) {
-                throw new ExecutionFailedException("Can't save renumbered matrix to file " + newMatrixPath, e);
-            }
-            info("Renumbered matrix saved to " + newMatrixPath);
         }
-        newMatrixFilePr.set(new File(newMatrixPath));
-
 
         String heatmapPath = FileUtils.removeExtension(newMatrixPath, ".txt") + "_heatmap.png";
         if (heatmapFile.get() != null) {
             heatmapPath = heatmapFile.get().getPath();
             heatmapPath = heatmapPath.replace("$DT", startTimestamp);
         }
+        String svgPath = FileUtils.removeExtension(heatmapPath, ".png") + ".svg";
         try {
-            ImageIO.write(image, "png", new File(heatmapPath));
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            DOMSource source = new DOMSource(document);
-            transformer.transform(source, new StreamResult(new FileWriter(FileUtils.removeExtension(heatmapPath, ".png") + ".svg")));
-
+            maker.writeFullHeatMap(!withoutRenumbering.get(), new File(heatmapPath));
         } catch (IOException e) {
             throw new ExecutionFailedException("Can't save image to file " + heatmapPath, e);
-        } catch (TransformerException e) {
-            throw new ExecutionFailedException("Can't save image to file " + FileUtils.removeExtension(heatmapPath, ".png") + ".svg", e);
         }
+        try {
+            makerXML.writeFullHeatMap(!withoutRenumbering.get(), new File(svgPath));
+        } catch (IOException e) {
+            throw new ExecutionFailedException("Can't save image to file " + svgPath, e);
+        }
+
+        if (!withoutRenumbering.get()) {
+            // should renumber, maker.perm is set while drawing the dendrogram
+            try {
+                DistanceMatrixCalculatorMain.printMatrix(matrix, newMatrixPath, names, maker.perm, outputFormat.get());
+            } catch (FileNotFoundException e) {
+                throw new ExecutionFailedException("Can't save renumbered matrix to file " + newMatrixPath, e);
+            }
+            info("Renumbered matrix saved to " + newMatrixPath);
+        }
+        newMatrixFilePr.set(new File(newMatrixPath));
+
         info("Heatmap for matrix saved to " + heatmapPath);
         heatmapFilePr.set(new File(heatmapPath));
     }
@@ -1,6 +1,7 @@
 package tools;
 
 import io.IOUtils;
+import io.SamplesScheduler;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
@@ -8,6 +9,7 @@ import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
@@ -29,6 +31,12 @@ public class KmersCounterForManyFilesMain extends Tool {
             .withDescription("k-mer size (maximum 31 due to realization details)")
             .create());
 
+    public final Parameter<Integer[]> additionalK = addParameter(new IntMVParameterBuilder("additional-k")
+            .optional()
+            .withDescription("other k-mer sizes counted in the same pass over reads, " +
+                    "k-mers are printed to <name>.k<size>.kmers.bin")
+            .create());
+
     public final Parameter<File[]> inputFiles = addParameter(new FileMVParameterBuilder("reads")
             .withShortOpt("i")
             .mandatory()
@@ -52,6 +60,25 @@ public class KmersCounterForManyFilesMain extends Tool {
             .withDefaultValue(workDir.append("stats"))
             .create());
 
+    public final Parameter<Integer> sequenceLen = addParameter(new IntParameterBuilder("sequence-len")
+            .optional()
+            .withShortOpt("l")
+            .withDescription("if set, sequences of at least this length are built for every sample right after counting " +
+                    "(as seq-builder-many does, but without reloading k-mers)")
+            .create());
+
+    public final Parameter<File> sequencesDir = addParameter(new FileParameterBuilder("sequences-dir")
+            .withDescription("Destination of resulting FASTA sequences (if --sequence-len is set)")
+            .withDefaultValue(workDir.append("sequences"))
+            .create());
+
+    public final Parameter<Integer> parallelSamples = addParameter(new IntParameterBuilder("parallel-samples")
+            .optional()
+            .withShortOpt("ps")
+            .withDescription("maximal number of samples processed concurrently (limited by available memory)")
+            .withDefaultValue(4)
+            .create());
+
     public File[] outputDescFiles = null;
 
 
@@ -60,6 +87,10 @@ public class KmersCounterForManyFilesMain extends Tool {
     public final InValue<File[]> resultingKmerFiles =
             addOutput("resulting-kmers-files", resultingKmerFilesPr, File[].class);
 
+    private final InMemoryValue<File[]> resultingSequencesFilesPr = new InMemoryValue<File[]>();
+    public final InValue<File[]> resultingSequencesFiles =
+            addOutput("resulting-sequences-files", resultingSequencesFilesPr, File[].class);
+
 
     private List<KmersCounterMain> counters = new ArrayList<KmersCounterMain>();
 
@@ -77,38 +108,88 @@ public class KmersCounterForManyFilesMain extends Tool {
             names.add(ReadersUtils.readDnaLazy(f).name());
         }
 
+        List<File[]> samples = new ArrayList<File[]>();
         int i=0;
         while (i < files.length) {
             if ((names.get(i).endsWith("_r1") && i+1<files.length && names.get(i+1).endsWith("_r2")) ||
                     (names.get(i).endsWith("_R1") && i+1<files.length && names.get(i+1).endsWith("_R2"))) {
-                KmersCounterMain counter = new KmersCounterMain();
-                counter.workDir.set(workDir.append("sub-counter"));
-                counter.k.set(k);
-                counter.inputFiles.set(new File[]{files[i], files[i+1]});
-                counter.maximalBadFrequency.set(maximalBadFrequency);
-                counter.outputDir.set(outputDir);
-                counter.statsDir.set(statsDir);
-
-                addStep(counter);
-                counters.add(counter);
+                samples.add(new File[]{files[i], files[i+1]});
                 i += 2;
             } else {
-                KmersCounterMain counter = new KmersCounterMain();
-                counter.workDir.set(workDir.append("sub-counter"));
-                counter.k.set(k);
-                counter.inputFiles.set(new File[]{files[i]});
-                counter.maximalBadFrequency.set(maximalBadFrequency);
-                counter.outputDir.set(outputDir);
-                counter.statsDir.set(statsDir);
+                samples.add(new File[]{files[i]});
+                i += 1;
+            }
+        }
 
+        if (parallelSamples.get() <= 1 || samples.size() <= 1) {
+            for (File[] sample : samples) {
+                KmersCounterMain counter = createCounter(sample);
                 addStep(counter);
                 counters.add(counter);
-                i += 1;
             }
+        } else {
+            SamplesScheduler scheduler = new SamplesScheduler(parallelSamples.get(), availableProcessors.get(), logger);
+            for (int s = 0; s < samples.size(); s++) {
+                KmersCounterMain counter = createCounter(samples.get(s));
+                // every counter keeps its SUCCESS file and parameters in its own working directory,
+                // named by sample's number as files from different directories may have the same name
+                counter.workDir.set(workDir.append("sub-counter").append("sample-" + (s + 1)));
+                counters.add(counter);
+            }
+            long[] memory = estimateMemory(samples, scheduler);
+            for (int s = 0; s < samples.size(); s++) {
+                scheduler.add(counters.get(s), memory[s]);
+            }
+            info("Processing " + samples.size() + " samples, at most " + parallelSamples.get() + " in parallel");
+            scheduler.run();
         }
 
     }
 
+    /**
+     * Maps for all k-mer sizes are filled at the same time.
+     * Upper bounds from files' sizes are used if they don't limit the number of samples running in parallel,
+     * otherwise the numbers of distinct k-mers are estimated by a pass over reads of every sample.
+     */
+    private long[] estimateMemory(List<File[]> samples, SamplesScheduler scheduler)
+            throws ExecutionFailedException, IOException {
+        int[] ks = counters.get(0).getKs();
+        long[] memory = new long[samples.size()];
+        for (int s = 0; s < samples.size(); s++) {
+            for (int K : ks) {
+                memory[s] += SamplesScheduler.estimateReadsMapMemory(samples.get(s), K, availableProcessors.get());
+            }
+        }
+        if (scheduler.fitInParallel(memory)) {
+            return memory;
+        }
+
+        info("Estimating memory needed for samples...");
+        for (int s = 0; s < samples.size(); s++) {
+            long[] kmers = IOUtils.estimateReadsKmersCount(samples.get(s), ks, availableProcessors.get(), logger);
+            long estimated = 0;
+            for (long n : kmers) {
+                estimated += SamplesScheduler.readsMapMemory(n, availableProcessors.get());
+            }
+            memory[s] = Math.min(memory[s], estimated);
+        }
+        return memory;
+    }
+
+    private KmersCounterMain createCounter(File[] sampleFiles) {
+        KmersCounterMain counter = new KmersCounterMain();
+        counter.workDir.set(workDir.append("sub-counter"));
+        counter.k.set(k);
+        counter.additionalK.set(additionalK);
+        counter.inputFiles.set(sampleFiles);
+        counter.maximalBadFrequency.set(maximalBadFrequency);
+        counter.outputDir.set(outputDir);
+        counter.statsDir.set(statsDir);
+        counter.sequenceLen.set(sequenceLen);
+        counter.sequencesDir.set(sequencesDir);
+        return counter;
+    }
+
     @Override
     protected void cleanImpl() {
         File[] outFiles = new File[counters.size()];
@@ -116,6 +197,13 @@ public class KmersCounterForManyFilesMain extends Tool {
             outFiles[i] = counters.get(i).resultingKmerFiles.get();
         }
         resultingKmerFilesPr.set(outFiles);
+        if (sequenceLen.get() != null) {
+            File[] seqFiles = new File[counters.size()];
+            for (int i = 0; i < counters.size(); i++) {
+                seqFiles[i] = counters.get(i).resultingSequencesFile.get();
+            }
+            resultingSequencesFilesPr.set(seqFiles);
+        }
         debug("Kmer-counter-many has finished! Time = " + t);
     }
 
@@ -126,6 +214,12 @@ public class KmersCounterForManyFilesMain extends Tool {
                 "Directory with kmer frequency statistics " +
                         "(statistics files is in text format for every input reads file)"
         );
+        if (sequenceLen.get() != null) {
+            IOUtils.tryToAppendDescription(outputDescFiles,
+                    sequencesDir.get(),
+                    "Directory with FASTA files - paths from reads for every library"
+            );
+        }
     }
 
 
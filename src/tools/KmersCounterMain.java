@@ -1,9 +1,11 @@
 package tools;
 
 import io.IOUtils;
+import io.ResultCache;
 import ru.ifmo.genetics.io.ReadersUtils;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
@@ -11,12 +13,17 @@ import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
+import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
+import structures.KmersMapBackend;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.*;
 
 public class KmersCounterMain extends Tool {
 
@@ -31,6 +38,12 @@ public class KmersCounterMain extends Tool {
             .withDescription("k-mer size (maximum 31 due to realization details)")
             .create());
 
+    public final Parameter<Integer[]> additionalK = addParameter(new IntMVParameterBuilder("additional-k")
+            .optional()
+            .withDescription("other k-mer sizes counted in the same pass over reads, " +
+                    "k-mers are printed to <name>.k<size>.kmers.bin")
+            .create());
+
     public final Parameter<File[]> inputFiles = addParameter(new FileMVParameterBuilder("reads")
             .withShortOpt("i")
             .mandatory()
@@ -54,12 +67,32 @@ public class KmersCounterMain extends Tool {
             .withDefaultValue(workDir.append("stats"))
             .create());
 
+    public final Parameter<Integer> sequenceLen = addParameter(new IntParameterBuilder("sequence-len")
+            .optional()
+            .withShortOpt("l")
+            .withDescription("if set, sequences of at least this length are built from good k-mers right after counting " +
+                    "(as seq-builder does, but without reloading k-mers), k-mers are printed in background meanwhile")
+            .create());
+
+    public final Parameter<File> sequencesDir = addParameter(new FileParameterBuilder("sequences-dir")
+            .withDescription("Destination of resulting FASTA sequences (if --sequence-len is set)")
+            .withDefaultValue(workDir.append("sequences"))
+            .create());
+
 
 
     private final InMemoryValue<File> resultingKmerFilesPr = new InMemoryValue<File>();
     public final InValue<File> resultingKmerFiles =
             addOutput("resulting-kmers-file", resultingKmerFilesPr, File.class);
 
+    private final InMemoryValue<File[]> resultingAdditionalKmerFilesPr = new InMemoryValue<File[]>();
+    public final InValue<File[]> resultingAdditionalKmerFiles =
+            addOutput("resulting-additional-kmers-files", resultingAdditionalKmerFilesPr, File[].class);
+
+    private final InMemoryValue<File> resultingSequencesFilePr = new InMemoryValue<File>();
+    public final InValue<File> resultingSequencesFile =
+            addOutput("resulting-sequences-file", resultingSequencesFilePr, File.class);
+
 
     @Override
     protected void runImpl() throws ExecutionFailedException, IOException {
@@ -71,13 +104,7 @@ public class KmersCounterMain extends Tool {
             error("The size of k-mer must be no more than 31.");
             System.exit(1);
         }
-
-
-        Timer t = new Timer();
-        BigLong2ShortHashMap hm = IOUtils.loadReads(inputFiles.get(), k.get(), 0,
-                availableProcessors.get(),  logger);
-        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
+        int[] ks = getKs();
 
         File outDir = outputDir.get();
         if (!outDir.exists()) {
@@ -91,32 +118,197 @@ public class KmersCounterMain extends Tool {
         String name = getName();
         File outFile = new File(outDir, name + ".kmers.bin");
         File stFile = new File(stDir, name + ".stat.txt");
+        File[] addOutFiles = new File[ks.length - 1];
+        File[] addStFiles = new File[ks.length - 1];
+        for (int i = 1; i < ks.length; i++) {
+            addOutFiles[i - 1] = new File(outDir, name + ".k" + ks[i] + ".kmers.bin");
+            addStFiles[i - 1] = new File(stDir, name + ".k" + ks[i] + ".stat.txt");
+        }
+
+        ResultCache cache = ResultCache.getInstance();
+        String kmersKey = null, sequencesKey = null;
+        String[] addKmersKeys = new String[ks.length - 1];
+        if (cache != null) {
+            kmersKey = cache.getKey(NAME, inputFiles.get(), "k=" + k.get(), "b=" + maximalBadFrequency.get());
+            if (sequenceLen.get() != null) {
+                sequencesKey = cache.getKey(NAME + "-sequences", inputFiles.get(),
+                        "k=" + k.get(), "b=" + maximalBadFrequency.get(), "l=" + sequenceLen.get());
+            }
+            for (int i = 1; i < ks.length; i++) {
+                addKmersKeys[i - 1] = cache.getKey(NAME, inputFiles.get(), "k=" + ks[i], "b=" + maximalBadFrequency.get());
+            }
+            if (cache.restore(kmersKey, outFile, stFile) && restoreAll(cache, addKmersKeys, addOutFiles, addStFiles)) {
+                info("Good k-mers restored from cache to " + outFile.getPath());
+                resultingKmerFilesPr.set(outFile);
+                resultingAdditionalKmerFilesPr.set(addOutFiles);
+                if (sequenceLen.get() != null) {
+                    buildSequencesFromCachedKmers(cache, sequencesKey, outFile, name);
+                }
+                return;
+            }
+        }
 
 
-        debug("Starting to print k-mers to " + outFile.getPath());
+        Timer t = new Timer();
+        // sequences are built from small maps of the heap map, only printed k-mers can be counted by any backend
+        Long2ShortHashMapInterface[] hms = new Long2ShortHashMapInterface[ks.length];
+        hms[0] = (sequenceLen.get() == null)
+                ? IOUtils.createReadsMap(availableProcessors.get())
+                : IOUtils.createReadsHeapMap(availableProcessors.get());
+        for (int i = 1; i < ks.length; i++) {
+            hms[i] = IOUtils.createReadsMap(availableProcessors.get());
+        }
+        IOUtils.loadReads(inputFiles.get(), ks, 0, hms, availableProcessors.get(), logger);
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+
+        for (int i = 1; i < ks.length; i++) {
+            long allAddKmers = hms[i].size();
+            long addC = IOUtils.printKmers(hms[i], maximalBadFrequency.get(), addOutFiles[i - 1], addStFiles[i - 1]);
+            KmersMapBackend.release(hms[i]);
+            hms[i] = null;
+            info(NumUtils.groupDigits(allAddKmers) + " " + ks[i] + "-mers found, " + NumUtils.groupDigits(addC)
+                    + " of them printed to " + addOutFiles[i - 1].getPath());
+        }
+        resultingAdditionalKmerFilesPr.set(addOutFiles);
+        Long2ShortHashMapInterface hm = hms[0];
+
+
+        long allKmers = hm.size();
         long c = 0;
-        try {
-            c = IOUtils.printKmers(hm, maximalBadFrequency.get(), outFile, stFile);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (sequenceLen.get() == null) {
+            debug("Starting to print k-mers to " + outFile.getPath());
+            try {
+                c = IOUtils.printKmers(hm, maximalBadFrequency.get(), outFile, stFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            KmersMapBackend.release(hm);
+        } else {
+            c = filterAndBuildSequences((BigLong2ShortHashMap) hm, outFile, stFile, name);
         }
-        info(NumUtils.groupDigits(hm.size()) + " k-mers found, "
-                + NumUtils.groupDigits(c) + " (" + String.format("%.1f", c * 100.0 / hm.size()) + "%) of them is good (not erroneous)");
+        info(NumUtils.groupDigits(allKmers) + " k-mers found, "
+                + NumUtils.groupDigits(c) + " (" + String.format("%.1f", c * 100.0 / allKmers) + "%) of them is good (not erroneous)");
 
-        if (hm.size() == 0) {
+        if (allKmers == 0) {
             warn("No k-mers found in reads! Perhaps you reads file is empty or k-mer size is too big");
-        } else if (c == 0 || c < (long) (hm.size() * 0.03)) {
+        } else if (c == 0 || c < (long) (allKmers * 0.03)) {
             warn("Too few good k-mers were found! Perhaps you should decrease k-mer size or --maximal-bad-frequency value");
         }
         long allKmersNumber = (1L << (2*k.get())) / 2;  // (4^k)/2
-        if (hm.size() == allKmersNumber) {
+        if (allKmers == allKmersNumber) {
             warn("All possible k-mers were found in reads! Perhaps you should increase k-mer size");
-        } else if (hm.size() >= (long) (allKmersNumber * 0.99)) {
+        } else if (allKmers >= (long) (allKmersNumber * 0.99)) {
             warn("Almost all possible k-mers were found in reads! Perhaps you should increase k-mer size");
         }
 
         info("Good k-mers printed to " + outFile.getPath());
         resultingKmerFilesPr.set(outFile);
+
+        if (cache != null) {
+            cache.store(kmersKey, outFile, stFile);
+            for (int i = 0; i < addKmersKeys.length; i++) {
+                cache.store(addKmersKeys[i], addOutFiles[i], addStFiles[i]);
+            }
+            if (sequencesKey != null) {
+                cache.store(sequencesKey, resultingSequencesFile.get());
+            }
+        }
+    }
+
+    /**
+     * @return distinct k-mer sizes to count in one pass over reads, main k goes first
+     */
+    int[] getKs() {
+        Set<Integer> ks = new LinkedHashSet<Integer>();
+        ks.add(k.get());
+        if (additionalK.get() != null) {
+            for (int K : additionalK.get()) {
+                if (K <= 0 || K > 31) {
+                    error("Additional k-mer size must be from 1 to 31, found " + K + ".");
+                    System.exit(1);
+                }
+                ks.add(K);
+            }
+        }
+        int[] res = new int[ks.size()];
+        int i = 0;
+        for (int K : ks) {
+            res[i++] = K;
+        }
+        return res;
+    }
+
+    private static boolean restoreAll(ResultCache cache, String[] keys, File[] outFiles, File[] stFiles) {
+        for (int i = 0; i < keys.length; i++) {
+            if (!cache.restore(keys[i], outFiles[i], stFiles[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sequences are restored from cache or built from k-mers restored from cache (if only sequence length has changed).
+     */
+    private void buildSequencesFromCachedKmers(ResultCache cache, String sequencesKey, File kmersFile, String name)
+            throws ExecutionFailedException {
+        File seqFile = getSequencesFile(name);
+        if (cache.restore(sequencesKey, seqFile)) {
+            info("Sequences restored from cache to " + seqFile.getPath());
+        } else {
+            BigLong2ShortHashMap hm = IOUtils.loadKmers(new File[]{kmersFile}, maximalBadFrequency.get(),
+                    availableProcessors.get(), logger);
+            SeqBuilderMain.buildAndPrintSequences(hm, k.get(), maximalBadFrequency.get(), sequenceLen.get(),
+                    availableProcessors.get(), seqFile, logger);
+            cache.store(sequencesKey, seqFile);
+        }
+        resultingSequencesFilePr.set(seqFile);
+    }
+
+    private File getSequencesFile(String name) {
+        File seqDir = sequencesDir.get();
+        if (!seqDir.exists()) {
+            seqDir.mkdirs();
+        }
+        return new File(seqDir, name + ".seq.fasta");
+    }
+
+    /**
+     * Leaves only good k-mers in the map, prints them in background and builds sequences from the same map.
+     *
+     * @return number of good k-mers
+     */
+    private long filterAndBuildSequences(final BigLong2ShortHashMap hm, final File outFile, File stFile, String name)
+            throws ExecutionFailedException, IOException {
+        Timer t = new Timer();
+        final int threshold = maximalBadFrequency.get();
+        long c = IOUtils.filterKmers(hm, threshold, stFile);
+        debug("K-mers filtered, memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+
+        debug("Starting to print k-mers to " + outFile.getPath() + " in background");
+        ExecutorService printer = Executors.newSingleThreadExecutor();
+        Future<Long> printed = printer.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return IOUtils.printKmers(hm, threshold, outFile, null);
+            }
+        });
+        printer.shutdown();
+
+        File seqFile = getSequencesFile(name);
+        info("Building sequences using maximal bad frequency = " + threshold);
+        SeqBuilderMain.buildAndPrintSequences(hm, k.get(), threshold, sequenceLen.get(),
+                availableProcessors.get(), seqFile, logger);
+        resultingSequencesFilePr.set(seqFile);
+
+        try {
+            printed.get();
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted!", e);
+        } catch (ExecutionException e) {
+            throw new ExecutionFailedException("Can't print k-mers to " + outFile.getPath(), e.getCause());
+        }
+        return c;
     }
 
     private String getName() throws IOException {
@@ -2,7 +2,7 @@ package tools;
 
 import io.IOUtils;
 import ru.ifmo.genetics.statistics.Timer;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
@@ -13,6 +13,7 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
+import structures.KmersMapBackend;
 
 import java.io.File;
 import java.io.IOException;
@@ -91,31 +92,39 @@ public class KmersFilter extends Tool {
             outDir.mkdirs();
         }
 
-        BigLong2ShortHashMap filter_hm = IOUtils.loadKmers(filterFiles.get(), maximalBadFrequency.get(),
-                availableProcessors.get(), logger);
+        Long2ShortHashMapInterface filter_hm = IOUtils.loadKmersMapWithSnapshot(filterFiles.get(),
+                maximalBadFrequency.get(), false, availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
-        for (File file : inputFiles.get()) {
-            BigLong2ShortHashMap hm = IOUtils.loadKmers(new File[]{file}, maximalBadFrequency.get(),
-                    availableProcessors.get(), logger);
-            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-            String name = file.getName().replaceAll(".kmers.bin", "");
-            File outFile = new File(outputDir.get(), name + ".kmers.bin");
-
-            debug("Starting to print k-mers to " + outFile.getPath());
-            long c = 0;
-            try {
-                c = IOUtils.filterAndPrintKmers(hm, filter_hm, maximalBadFrequency.get(),
-                        maximalThreshold.get() * filterFiles.get().length, outFile);
-            } catch (IOException e) {
-                e.printStackTrace();
+        try {
+            for (File file : inputFiles.get()) {
+                Long2ShortHashMapInterface hm = IOUtils.loadKmersMap(new File[]{file}, maximalBadFrequency.get(), false,
+                        availableProcessors.get(), logger);
+                debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+
+                try {
+                    String name = file.getName().replaceAll(".kmers.bin", "");
+                    File outFile = new File(outputDir.get(), name + ".kmers.bin");
+
+                    debug("Starting to print k-mers to " + outFile.getPath());
+                    long c = 0;
+                    try {
+                        c = IOUtils.filterAndPrintKmers(hm, filter_hm, maximalBadFrequency.get(),
+                                maximalThreshold.get() * filterFiles.get().length, outFile);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    info(NumUtils.groupDigits(hm.size()) + " k-mers found, " + NumUtils.groupDigits(c) +
+                            " (" + String.format("%.1f", c * 100.0 / hm.size()) + "%) of them survived after filtering");
+
+                    info("Filtered k-mers printed to " + outFile.getPath());
+                } finally {
+                    KmersMapBackend.release(hm);
+                }
             }
-            info(NumUtils.groupDigits(hm.size()) + " k-mers found, " + NumUtils.groupDigits(c) +
-                    " (" + String.format("%.1f", c * 100.0 / hm.size()) + "%) of them survived after filtering");
-
-            info("Filtered k-mers printed to " + outFile.getPath());
+        } finally {
+            KmersMapBackend.release(filter_hm);
         }
     }
 
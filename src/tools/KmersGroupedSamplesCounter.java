@@ -1,11 +1,10 @@
 package tools;
 
 
+import algo.KmersGroupsCounter;
 import io.IOUtils;
-import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
-import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
@@ -14,10 +13,12 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.util.Iterator;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by -- on 08.11.2021.
@@ -26,7 +27,7 @@ public class KmersGroupedSamplesCounter  extends Tool {
 
     public static final String NAME = "kmers-grouped-counter";
 
-    public static final String DESCRIPTION = "Count number of samples from 3 groups containing specified k-mers";
+    public static final String DESCRIPTION = "Count number of samples from every group containing specified k-mers";
 
 
     public final Parameter<Integer> k = addParameter(new IntParameterBuilder("k")
@@ -42,23 +43,30 @@ public class KmersGroupedSamplesCounter  extends Tool {
             .create());
 
     public final Parameter<File[]> CDFiles = addParameter(new FileMVParameterBuilder("cd-kmers")
-            .mandatory()
+            .optional()
             .withShortOpt("cd")
             .withDescription("list of input files with k-mers in binary format for CD group")
             .create());
 
     public final Parameter<File[]> UCFiles = addParameter(new FileMVParameterBuilder("uc-kmers")
-            .mandatory()
+            .optional()
             .withShortOpt("uc")
             .withDescription("list of input files with k-mers in binary format for UC group")
             .create());
 
     public final Parameter<File[]> nonIBDFiles = addParameter(new FileMVParameterBuilder("nonibd-kmers")
-            .mandatory()
+            .optional()
             .withShortOpt("nonibd")
             .withDescription("list of input files with k-mers in binary format for nonIBD group")
             .create());
 
+    public final Parameter<File> groupsFile = addParameter(new FileParameterBuilder("groups-file")
+            .optional()
+            .withShortOpt("gf")
+            .withDescription("file with samples' groups, every line is <group name> <k-mers file> separated by tab, " +
+                    "used instead of -cd, -uc and -nonibd options")
+            .create());
+
 
     public final Parameter<Integer> maximalBadFrequency = addParameter(new IntParameterBuilder("maximal-bad-frequence")
             .optional()
@@ -100,95 +108,78 @@ public class KmersGroupedSamplesCounter  extends Tool {
             stDir.mkdirs();
         }
 
-        BigLong2ShortHashMap cd_hm = IOUtils.loadKmers(kmersFile.get(), 0,
-                availableProcessors.get(), logger);
-        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-        BigLong2ShortHashMap uc_hm = IOUtils.loadKmers(kmersFile.get(), 0,
-                availableProcessors.get(), logger);
-        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-        BigLong2ShortHashMap nonibd_hm = IOUtils.loadKmers(kmersFile.get(), 0,
-                availableProcessors.get(), logger);
-        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-        cd_hm.resetValues();
-        uc_hm.resetValues();
-        nonibd_hm.resetValues();
-
-        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-
-        for (File file : CDFiles.get()) {
-            BigLong2ShortHashMap filt_hm = IOUtils.loadKmers(new File[]{file}, maximalBadFrequency.get(),
-                    availableProcessors.get(), logger);
-            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-            Iterator<MutableLongShortEntry> it = cd_hm.entryIterator();
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                long key = entry.getKey();
-
-                if (filt_hm.get(key) > maximalBadFrequency.get()) {
-                    cd_hm.put(key, (short) (cd_hm.getWithZero(key) + 1));
-                }
-            }
-        }
-
-        for (File file : UCFiles.get()) {
-            BigLong2ShortHashMap filt_hm = IOUtils.loadKmers(new File[]{file}, maximalBadFrequency.get(),
-                    availableProcessors.get(), logger);
-            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-            Iterator<MutableLongShortEntry> it = uc_hm.entryIterator();
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                long key = entry.getKey();
-
-                if (filt_hm.get(key) > maximalBadFrequency.get()) {
-                    uc_hm.put(key, (short) (uc_hm.getWithZero(key) + 1));
-                }
-            }
+        Map<String, List<File>> groups = getGroups();
+        String[] groupNames = groups.keySet().toArray(new String[groups.size()]);
+        File[][] samples = new File[groupNames.length][];
+        for (int g = 0; g < groupNames.length; g++) {
+            samples[g] = groups.get(groupNames[g]).toArray(new File[0]);
+            info("Group " + groupNames[g] + ": " + samples[g].length + " samples");
         }
 
-        for (File file : nonIBDFiles.get()) {
-            BigLong2ShortHashMap filt_hm = IOUtils.loadKmers(new File[]{file}, maximalBadFrequency.get(),
-                    availableProcessors.get(), logger);
-            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-            Iterator<MutableLongShortEntry> it = nonibd_hm.entryIterator();
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                long key = entry.getKey();
+        BigLong2ShortHashMap hm = IOUtils.loadKmers(kmersFile.get(), 0, availableProcessors.get(), logger);
+        KmersGroupsCounter counter = new KmersGroupsCounter(hm, groupNames.length);
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
-                if (filt_hm.get(key) > maximalBadFrequency.get()) {
-                    nonibd_hm.put(key, (short) (nonibd_hm.getWithZero(key) + 1));
-                }
-            }
-        }
+        info("Counting samples containing k-mers...");
+        counter.countSamples(samples, maximalBadFrequency.get(), availableProcessors.get(), logger);
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
         File outFile = new File(outDir, "kmers.groups.txt");
         PrintWriter out;
         try {
-            out = new PrintWriter(outFile);
-        } catch (FileNotFoundException e) {
+            out = new PrintWriter(new BufferedWriter(new FileWriter(outFile), 1 << 20));
+        } catch (IOException e) {
             throw new ExecutionFailedException("Couldn't open output file", e);
         }
 
         debug("Starting to print k-mers to " + outFile.getPath());
-
-        out.println("Kmer\tcd_count\tuc_count\tnonibd_count");
-        Iterator<MutableLongShortEntry> it = cd_hm.entryIterator();
-        while (it.hasNext()) {
-            MutableLongShortEntry entry = it.next();
-            long key = entry.getKey();
-            out.println(new ShortKmer(key, k.get()) + "\t" + entry.getValue() +
-                    "\t" + uc_hm.getWithZero(key) + "\t" + nonibd_hm.getWithZero(key));
-        }
+        counter.print(out, groupNames, k.get());
         out.close();
         info("K-mers printed to " + outFile.getPath());
 
     }
 
+    private Map<String, List<File>> getGroups() throws ExecutionFailedException {
+        Map<String, List<File>> groups = new LinkedHashMap<String, List<File>>();
+        if (groupsFile.get() != null) {
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(groupsFile.get()));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    String[] parts = line.split("\t");
+                    if (parts.length != 2) {
+                        reader.close();
+                        throw new ExecutionFailedException("Wrong line in groups file " + groupsFile.get() +
+                                ": '" + line + "', expected <group name> <k-mers file>");
+                    }
+                    if (!groups.containsKey(parts[0])) {
+                        groups.put(parts[0], new ArrayList<File>());
+                    }
+                    groups.get(parts[0]).add(new File(parts[1]));
+                }
+                reader.close();
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Couldn't read groups file " + groupsFile.get(), e);
+            }
+        } else {
+            if (CDFiles.get() == null || UCFiles.get() == null || nonIBDFiles.get() == null) {
+                throw new ExecutionFailedException("Groups file or all of -cd, -uc and -nonibd options must be set");
+            }
+            groups.put("cd", Arrays.asList(CDFiles.get()));
+            groups.put("uc", Arrays.asList(UCFiles.get()));
+            groups.put("nonibd", Arrays.asList(nonIBDFiles.get()));
+        }
+        if (groups.isEmpty()) {
+            throw new ExecutionFailedException("No groups of samples are set");
+        }
+        return groups;
+    }
+
     @Override
     protected void cleanImpl() {
     }
@@ -3,7 +3,7 @@ package tools;
 
 import io.IOUtils;
 import ru.ifmo.genetics.statistics.Timer;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
@@ -12,6 +12,7 @@ import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileMVParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
+import structures.KmersMapBackend;
 
 import java.io.File;
 import java.io.IOException;
@@ -96,39 +97,49 @@ public class KmersMultipleFilters extends Tool {
             stDir.mkdirs();
         }
 
-        BigLong2ShortHashMap cd_filter_hm = IOUtils.loadKmers(CDfilterFiles.get(), 0,
+        Long2ShortHashMapInterface cd_filter_hm = IOUtils.loadKmersMapWithSnapshot(CDfilterFiles.get(), 0, false,
                 availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-        BigLong2ShortHashMap uc_filter_hm = IOUtils.loadKmers(UCfilterFiles.get(), 0,
+        Long2ShortHashMapInterface uc_filter_hm = IOUtils.loadKmersMapWithSnapshot(UCfilterFiles.get(), 0, false,
                 availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-        BigLong2ShortHashMap nonibd_filter_hm = IOUtils.loadKmers(nonIBDfilterFiles.get(), 0,
-                availableProcessors.get(), logger);
+        Long2ShortHashMapInterface nonibd_filter_hm = IOUtils.loadKmersMapWithSnapshot(nonIBDfilterFiles.get(), 0,
+                false, availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
-        for (File file : inputFiles.get()) {
-            BigLong2ShortHashMap hm = IOUtils.loadKmers(new File[]{file}, maximalBadFrequency.get(),
-                    availableProcessors.get(), logger);
-            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-            String name = file.getName().replaceAll(".kmers.bin", "");
-            File outFile = new File(outDir, name + ".kmers.bin");
-            File stFile = new File(stDir, name + ".stat.txt");
-
-
-            debug("Starting to print k-mers to " + outFile.getPath());
-            long c = 0;
-            try {
-                c = IOUtils.MultipleFiltersAndPrintKmers(hm, cd_filter_hm, uc_filter_hm, nonibd_filter_hm,
-                        maximalBadFrequency.get(), outFile, stFile);
-            } catch (IOException e) {
-                e.printStackTrace();
+        try {
+            for (File file : inputFiles.get()) {
+                Long2ShortHashMapInterface hm = IOUtils.loadKmersMap(new File[]{file}, maximalBadFrequency.get(), false,
+                        availableProcessors.get(), logger);
+                debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+
+                try {
+                    String name = file.getName().replaceAll(".kmers.bin", "");
+                    File outFile = new File(outDir, name + ".kmers.bin");
+                    File stFile = new File(stDir, name + ".stat.txt");
+
+
+                    debug("Starting to print k-mers to " + outFile.getPath());
+                    long c = 0;
+                    try {
+                        c = IOUtils.MultipleFiltersAndPrintKmers(hm, cd_filter_hm, uc_filter_hm, nonibd_filter_hm,
+                                maximalBadFrequency.get(), outFile, stFile);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    info(NumUtils.groupDigits(hm.size()) + " k-mers found, " + NumUtils.groupDigits(c) +
+                            " (" + String.format("%.1f", c * 100.0 / hm.size()) + "%) of them survived after filtering");
+
+                    info("Filtered k-mers printed to " + outFile.getPath());
+                } finally {
+                    KmersMapBackend.release(hm);
+                }
             }
-            info(NumUtils.groupDigits(hm.size()) + " k-mers found, " + NumUtils.groupDigits(c) +
-                    " (" + String.format("%.1f", c * 100.0 / hm.size()) + "%) of them survived after filtering");
-
-            info("Filtered k-mers printed to " + outFile.getPath());
+        } finally {
+            KmersMapBackend.release(cd_filter_hm);
+            KmersMapBackend.release(uc_filter_hm);
+            KmersMapBackend.release(nonibd_filter_hm);
         }
     }
 
@@ -2,6 +2,7 @@ package tools;
 
 import algo.SequencesFinders;
 import io.IOUtils;
+import io.SamplesScheduler;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.ArrayLong2IntHashMap;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
@@ -60,6 +61,13 @@ public class SeqBuilderForManyFilesMain extends Tool {
             .withDescription("Destination of resulting FASTA sequences")
             .create());
 
+    public final Parameter<Integer> parallelSamples = addParameter(new IntParameterBuilder("parallel-samples")
+            .optional()
+            .withShortOpt("ps")
+            .withDescription("maximal number of samples processed concurrently (limited by available memory)")
+            .withDefaultValue(4)
+            .create());
+
     public File[] outputDescFiles = null;
 
 
@@ -79,21 +87,45 @@ public class SeqBuilderForManyFilesMain extends Tool {
         }
         t = new Timer();
 
-        for (File f : inputFiles.get()) {
-            SeqBuilderMain builder = new SeqBuilderMain();
-            builder.workDir.set(workDir.append("sub-builder"));
-            builder.k.set(k);
-            builder.inputFiles.set(new File[]{f});
-            builder.maximalBadFrequency.set(maximalBadFrequency);
-            builder.bottomCutPercent.set(bottomCutPercent);
-            builder.sequenceLen.set(sequenceLen);
-            builder.outputDir.set(outputDir);
-
-            addStep(builder);
-            builders.add(builder);
+        File[] files = inputFiles.get();
+        if (parallelSamples.get() <= 1 || files.length <= 1) {
+            for (File f : files) {
+                SeqBuilderMain builder = createBuilder(f);
+                builder.workDir.set(workDir.append("sub-builder"));
+
+                addStep(builder);
+                builders.add(builder);
+            }
+        } else {
+            SamplesScheduler scheduler = new SamplesScheduler(parallelSamples.get(), availableProcessors.get(), logger);
+            for (int i = 0; i < files.length; i++) {
+                File f = files[i];
+                SeqBuilderMain builder = createBuilder(f);
+                // every builder writes k-mers distribution to its own working directory,
+                // named by sample's number as files from different directories may have the same name
+                File builderWorkDir = workDir.append("sub-builder").append("sample-" + (i + 1)).get();
+                builderWorkDir.mkdirs();
+                builder.workDir.set(builderWorkDir.getPath());
+
+                scheduler.add(builder, SamplesScheduler.estimateKmersMapMemory(new File[]{f}, availableProcessors.get()));
+                builders.add(builder);
+            }
+            info("Processing " + files.length + " samples, at most " + parallelSamples.get() + " in parallel");
+            scheduler.run();
         }
     }
 
+    private SeqBuilderMain createBuilder(File kmersFile) {
+        SeqBuilderMain builder = new SeqBuilderMain();
+        builder.k.set(k);
+        builder.inputFiles.set(new File[]{kmersFile});
+        builder.maximalBadFrequency.set(maximalBadFrequency);
+        builder.bottomCutPercent.set(bottomCutPercent);
+        builder.sequenceLen.set(sequenceLen);
+        builder.outputDir.set(outputDir);
+        return builder;
+    }
+
     @Override
     protected void cleanImpl() {
         File[] outFiles = new File[builders.size()];
@@ -2,6 +2,8 @@ package tools;
 
 import algo.SequencesFinders;
 import io.IOUtils;
+import io.ResultCache;
+import org.apache.log4j.Logger;
 import ru.ifmo.genetics.statistics.*;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
@@ -76,6 +78,34 @@ public class SeqBuilderMain extends Tool {
 
     @Override
     protected void runImpl() throws ExecutionFailedException {
+        File dir = outputDir.get();
+        if (!dir.isDirectory()) {
+            dir.mkdir();
+        }
+        String basename = FileUtils.removeExtension(inputFiles.get()[0].getName(), ".kmers.bin");
+        String fp = dir + File.separator + basename;
+        fp += (inputFiles.get().length > 1 ? "+" : "") + ".seq.fasta";
+
+        File destination = new File(fp);
+        outputFilePr.set(destination);
+
+        File distributionFile = new File(workDir.get(), DISTRIBUTION_FILENAME);
+
+        ResultCache cache = ResultCache.getInstance();
+        String key = null;
+        if (cache != null) {
+            try {
+                key = cache.getKey(NAME, inputFiles.get(), "k=" + k.get(), "b=" + maximalBadFrequency.get(),
+                        "bp=" + bottomCutPercent.get(), "l=" + sequenceLen.get());
+            } catch (IOException e) {
+                throw new ExecutionFailedException(e);
+            }
+            if (cache.restore(key, destination, distributionFile)) {
+                info("Sequences restored from cache to " + destination);
+                return;
+            }
+        }
+
         Timer t = new Timer();
         BigLong2ShortHashMap hm =
                 IOUtils.loadKmers(inputFiles.get(), maximalBadFrequency.get(), availableProcessors.get(), logger);
@@ -95,7 +125,7 @@ public class SeqBuilderMain extends Tool {
         }
 
         try {
-            dumpStat(stat, workDir + File.separator + DISTRIBUTION_FILENAME);
+            dumpStat(stat, distributionFile.getPath());
         } catch (FileNotFoundException e) {
             throw new ExecutionFailedException(e);
         }
@@ -131,40 +161,45 @@ public class SeqBuilderMain extends Tool {
 
         info("Using maximal bad frequency = " + maximalBadFrequency.get());
 
-        File dir = outputDir.get();
-        if (!dir.isDirectory()) {
-            dir.mkdir();
+        buildAndPrintSequences(hm, k.get(), maximalBadFrequency.get(), sequenceLen.get(),
+                availableProcessors.get(), destination, logger);
+        if (cache != null) {
+            cache.store(key, destination, distributionFile);
         }
-        String basename = FileUtils.removeExtension(inputFiles.get()[0].getName(), ".kmers.bin");
-        String fp = dir + File.separator + basename;
-        fp += (inputFiles.get().length > 1 ? "+" : "") + ".seq.fasta";
 
-        File destination = new File(fp);
-        outputFilePr.set(destination);
+        //info("N50 value of sequences = " + getN50(sequenceLen));
+        //dumpSeqInfo(sequenceLen, sequenceWeight, workDir + File.separator + "seq-info");
+    }
 
+    /**
+     * Builds sequences from k-mers with frequency greater than <code>freqThreshold</code>
+     * and prints sequences not shorter than <code>sequenceLen</code> to <code>destination</code>.
+     *
+     * @return number of sequences found
+     */
+    public static long buildAndPrintSequences(BigLong2ShortHashMap hm, int k, int freqThreshold, int sequenceLen,
+                                              int availableProcessors, File destination, Logger logger)
+            throws ExecutionFailedException {
         Deque<Sequence> sequences;
         try {
-            sequences = SequencesFinders.thresholdStrategy(hm, availableProcessors.get(),
-                    maximalBadFrequency.get(), sequenceLen.get(), k.get());
+            sequences = SequencesFinders.thresholdStrategy(hm, availableProcessors,
+                    freqThreshold, sequenceLen, k);
         } catch (InterruptedException e) {
-            e.printStackTrace();
-            return;
+            throw new ExecutionFailedException("Thread was interrupted!", e);
         }
-        info(NumUtils.groupDigits(sequences.size()) + " sequences found");
+        info(logger, NumUtils.groupDigits(sequences.size()) + " sequences found");
         if (sequences.size() == 0) {
-            warn("No sequences were found! Perhaps you should decrease --min-seq-len or --maximal-bad-frequency values");
+            warn(logger, "No sequences were found! Perhaps you should decrease --min-seq-len or --maximal-bad-frequency values");
         }
-        debug("Memory used (without running GC) = " + Misc.usedMemoryWithoutRunningGCAsString());
+        debug(logger, "Memory used (without running GC) = " + Misc.usedMemoryWithoutRunningGCAsString());
 
         try {
             Sequence.printSequences(sequences, destination);
         } catch (IOException e) {
             throw new RuntimeException("Can't write sequences to file", e);
         }
-        info("Sequences printed to " + destination);
-
-        //info("N50 value of sequences = " + getN50(sequenceLen));
-        //dumpSeqInfo(sequenceLen, sequenceWeight, workDir + File.separator + "seq-info");
+        info(logger, "Sequences printed to " + destination);
+        return sequences.size();
     }
 
     void dumpStat(int[] stat, String filename) throws FileNotFoundException {
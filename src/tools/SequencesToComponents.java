@@ -3,6 +3,7 @@ package tools;
 import algo.ComponentFromSequence;
 import ru.ifmo.genetics.dna.Dna;
 import ru.ifmo.genetics.io.ReadersUtils;
+import ru.ifmo.genetics.io.sources.NamedSource;
 import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.utils.NumUtils;
 import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
@@ -17,18 +18,23 @@ import structures.SequenceComponent;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 
 /**
  * Created by -- on 03.02.2020.
  */
 public class SequencesToComponents extends Tool {
 
+    static final int BATCH_SEQUENCES = 1 << 10;
+    static final long BATCH_NUCLEOTIDES = 1 << 24;
+
     public static final String NAME = "seq2comp";
     public static final String DESCRIPTION = "Transforms sequences to components";
 
@@ -61,45 +67,65 @@ public class SequencesToComponents extends Tool {
     protected void runImpl() throws ExecutionFailedException, IOException {
         Timer t = new Timer();
         debug("Loading sequences from files...");
-        List<SequenceComponent> components = Collections.synchronizedList(new ArrayList<SequenceComponent>());
-        for (File f : sequencesFiles.get()) {
-            info("Loading file " + f.getName() + "...");
-            List<Dna> sequences = ReadersUtils.loadDnas(f);
-            int comps = components.size();
-            ExecutorService execService = Executors.newFixedThreadPool(availableProcessors.get());
-            for (Dna dna : sequences) {
-                execService.execute(new ComponentFromSequence(components, dna, k.get()));
-            }
-            execService.shutdown();
-            try {
-                while (!execService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)){}
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            info(components.size() - comps + " components added");
-        }
-
-        // post processing...
-        Tool.debug(logger, "ans.size = " + components.size());
         String statFP = workDir + File.separator + "components-stat.txt";
         PrintWriter statPW = new PrintWriter(statFP);
         statPW.println("# component.no\tcomponent.size\tcomponent.weight");
-        for (int i = 0; i < components.size(); i++) {
-            SequenceComponent comp = components.get(i);
-            statPW.println((i + 1) + "\t" + comp.size + "\t" + comp.weight);
+        SequenceComponent.ComponentsWriter writer = new SequenceComponent.ComponentsWriter(componentsFile.get());
+
+        // sequences are streamed by batches, components are written in the order of sequences
+        ExecutorService execService = Executors.newFixedThreadPool(availableProcessors.get());
+        ArrayDeque<Future<List<SequenceComponent>>> inFlight = new ArrayDeque<Future<List<SequenceComponent>>>();
+        try {
+            for (File f : sequencesFiles.get()) {
+                info("Loading file " + f.getName() + "...");
+                int comps = writer.count();
+                NamedSource<Dna> reader = ReadersUtils.readDnaLazy(f);
+                Iterator<Dna> iterator = reader.iterator();
+                List<Dna> batch = new ArrayList<Dna>();
+                long batchLen = 0;
+                while (iterator.hasNext()) {
+                    Dna dna = iterator.next();
+                    batch.add(dna);
+                    batchLen += dna.length();
+                    if (batch.size() >= BATCH_SEQUENCES || batchLen >= BATCH_NUCLEOTIDES || !iterator.hasNext()) {
+                        inFlight.add(execService.submit(new ComponentFromSequence(batch, k.get())));
+                        batch = new ArrayList<Dna>();
+                        batchLen = 0;
+                        if (inFlight.size() >= 2 * availableProcessors.get()) {
+                            writeComponents(inFlight.poll().get(), writer, statPW);
+                        }
+                    }
+                }
+                while (!inFlight.isEmpty()) {
+                    writeComponents(inFlight.poll().get(), writer, statPW);
+                }
+                info(writer.count() - comps + " components added");
+            }
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ExecutionFailedException("Can't build components: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            execService.shutdownNow();
+            writer.close();
+            statPW.close();
         }
-        statPW.close();
+
+        // post processing...
+        Tool.debug(logger, "ans.size = " + writer.count());
         componentsStatPr.set(new File(statFP));
 
-        info("Total " + NumUtils.groupDigits(components.size()) + " components were found");
+        info("Total " + NumUtils.groupDigits(writer.count()) + " components were found");
+        info("Components saved to " + componentsFile.get());
+        debug("Components-cutter has finished! Time = " + t);
+    }
 
-        try {
-            SequenceComponent.saveComponents(components, componentsFile.get().getAbsolutePath());
-            info("Components saved to " + componentsFile.get());
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static void writeComponents(List<SequenceComponent> components,
+                                        SequenceComponent.ComponentsWriter writer, PrintWriter statPW) throws IOException {
+        for (SequenceComponent comp : components) {
+            writer.write(comp);
+            statPW.println(writer.count() + "\t" + comp.size + "\t" + comp.weight);
         }
-        debug("Components-cutter has finished! Time = " + t);
     }
 
     public static void main(String[] args) {
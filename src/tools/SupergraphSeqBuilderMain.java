@@ -1,10 +1,14 @@
 package tools;
 
+import algo.HashMapOperations;
+import algo.SequencesFinders;
+import io.BytesWorker;
 import io.IOUtils;
-import ru.ifmo.genetics.dna.DnaTools;
+import io.KmersLoadWorker;
+import io.SamplesScheduler;
 import ru.ifmo.genetics.dna.kmers.KmerIteratorFactory;
-import ru.ifmo.genetics.dna.kmers.ShortKmer;
 import ru.ifmo.genetics.dna.kmers.ShortKmerIteratorFactory;
+import ru.ifmo.genetics.statistics.Timer;
 import ru.ifmo.genetics.structures.map.*;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
@@ -12,15 +16,17 @@ import ru.ifmo.genetics.utils.tool.ExecutionFailedException;
 import ru.ifmo.genetics.utils.tool.Parameter;
 import ru.ifmo.genetics.utils.tool.Tool;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.*;
+import structures.KmersMapBackend;
+import structures.Sequence;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SupergraphSeqBuilderMain extends Tool {
     public static final String NAME = "supergraph-sequence-builder";
-    public static final String DESCRIPTION = "NOT COMPLETED";
+    public static final String DESCRIPTION = "Builds sequences from the supergraph of k-mers present in several samples";
 
 
     private final int STAT_LEN = 1024;
@@ -40,7 +46,7 @@ public class SupergraphSeqBuilderMain extends Tool {
     public final Parameter<Integer> supergraphFreq = addParameter(new IntParameterBuilder("supergraph-frequence")
             .mandatory()
             .withShortOpt("sb")
-            .withDescription("maximal frequency for a kmer to be assumed erroneous in supergraph")
+            .withDescription("maximal number of samples for a kmer to be assumed erroneous in supergraph")
             .create());
 
     public final Parameter<Integer> k = addParameter(new IntParameterBuilder("k")
@@ -57,15 +63,28 @@ public class SupergraphSeqBuilderMain extends Tool {
 
     public final Parameter<Long> maxSize = addParameter(new LongParameterBuilder("max-size")
             .optional()
-            .withDescription("maximal hashset size")
+            .withDescription("maximal number of k-mers in the supergraph, new k-mers are skipped after it is reached")
             .withDefaultValue(NumUtils.highestBits(Misc.availableMemory() / 42, 3))
             .memoryParameter()
             .create());
 
     public final Parameter<File[]> inputFiles = addParameter(new FileMVParameterBuilder("reads")
             .withShortOpt("i")
-            .mandatory()
-            .withDescription("list of input files")
+            .optional()
+            .withDescription("list of input files with reads, one file per sample")
+            .create());
+
+    public final Parameter<File[]> kmersFiles = addParameter(new FileMVParameterBuilder("kmers-files")
+            .withShortOpt("kf")
+            .optional()
+            .withDescription("list of binary files with already counted k-mers, one file per sample")
+            .create());
+
+    public final Parameter<Integer> parallelSamples = addParameter(new IntParameterBuilder("parallel-samples")
+            .optional()
+            .withShortOpt("ps")
+            .withDescription("maximal number of samples processed concurrently (limited by available memory)")
+            .withDefaultValue(4)
             .create());
 
     public final Parameter<KmerIteratorFactory> kmerIteratorFactory = Parameter.createParameter(
@@ -77,70 +96,206 @@ public class SupergraphSeqBuilderMain extends Tool {
 
     private long MAX_SIZE;
 
+    private final AtomicLong supergraphKmers = new AtomicLong();
+    private final AtomicLong skippedKmers = new AtomicLong();
+
     @Override
     protected void runImpl() throws ExecutionFailedException, IOException {
-
+        Timer t = new Timer();
         MAX_SIZE = maxSize.get();
 
         if (maximalBadFrequency.get() != null && bottomCutPercent.get() != null) {
             throw new IllegalArgumentException("-b and -bp can not be set both");
         }
+        final File[] reads = (inputFiles.get() != null) ? inputFiles.get() : new File[0];
+        final File[] kmers = (kmersFiles.get() != null) ? kmersFiles.get() : new File[0];
+        if (reads.length + kmers.length == 0) {
+            throw new IllegalArgumentException("No input files, set reads (-i) or k-mers files (-kf)");
+        }
 
         debug("MAXIMAL_SIZE = " + MAX_SIZE);
 
-        BigLong2ShortHashMap superHM = new BigLong2ShortHashMap(
-                (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 8);
+        final BigLong2ShortHashMap superHM = new BigLong2ShortHashMap(
+                (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 12);
 
-        for (File file : inputFiles.get()) {
-            addToSupergraph(superHM, file);
+        // samples are added concurrently, k-mers files are streamed, reads need a map for every sample
+        long maxSampleMemory = SamplesScheduler.estimateKmersMapMemory(new File[0], availableProcessors.get());
+        for (File file : reads) {
+            long memory = SamplesScheduler.estimateReadsMapMemory(new File[]{file}, k.get(), availableProcessors.get());
+            maxSampleMemory = Math.max(maxSampleMemory, memory);
+        }
+        int parallel = Math.min(parallelSamples.get(), reads.length + kmers.length);
+        if (maxSampleMemory > 0) {
+            long fit = Misc.availableMemory() / 2 / maxSampleMemory;
+            parallel = (int) Math.max(1, Math.min(parallel, fit));
+        }
+        final int threads = Math.max(1, availableProcessors.get() / Math.max(parallel, 1));
+        info("Processing " + (reads.length + kmers.length) + " samples, at most " + parallel + " in parallel " +
+                "using " + threads + " threads for every sample");
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallel);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (final File file : reads) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    addReadsToSupergraph(superHM, file, threads);
+                    return null;
+                }
+            }));
+        }
+        for (final File file : kmers) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    addKmersToSupergraph(superHM, file, threads);
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw new ExecutionFailedException("Thread was interrupted", e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new ExecutionFailedException("Can't add sample to supergraph: " + e.getCause().getMessage(),
+                    e.getCause());
         }
 
-        calcSequences(superHM, workDir + File.separator + "sequences.fasta");
-    }
+        info(NumUtils.groupDigits(superHM.size()) + " k-mers in supergraph");
+        if (skippedKmers.get() > 0) {
+            warn(NumUtils.groupDigits(skippedKmers.get()) + " new k-mers were skipped as supergraph reached " +
+                    "its maximal size " + NumUtils.groupDigits(MAX_SIZE) + ", increase --max-size if possible");
+        }
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
-    private void addToSupergraph(BigLong2ShortHashMap superHM, File readsFile) throws ExecutionFailedException, IOException {
-        BigLong2ShortHashMap hm =
-                IOUtils.loadReads(new File[]{readsFile}, k.get(), 0, availableProcessors.get(), logger);
+        File kmersFile = new File(workDir.get(), "supergraph.kmers.bin");
+        IOUtils.printKmers(superHM, 0, kmersFile, new File(workDir.get(), "supergraph-stat.txt"));
+        info("Supergraph k-mers with number of samples containing them saved to " + kmersFile);
 
-        int freqThreshold = getThreshold(hm);
+        calcSequences(superHM, new File(workDir.get(), "sequences.fasta"));
+        debug("Supergraph-sequence-builder has finished! Time = " + t);
+    }
 
-        long uniqueKmers = 0, uniqueAdded = 0, newKmers = 0;
+    private void addReadsToSupergraph(BigLong2ShortHashMap superHM, File readsFile, int threads)
+            throws ExecutionFailedException, IOException {
+        Long2ShortHashMapInterface hm =
+                IOUtils.loadReadsMap(new File[]{readsFile}, k.get(), 0, threads, logger);
 
+        long totalKmers = 0;
+        int[] stat = new int[STAT_LEN];
         Iterator<MutableLongShortEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            int v = it.next().getValue();
+            totalKmers += v;
+            ++stat[Math.min(v, stat.length - 1)];
+        }
+        int freqThreshold = getThreshold(stat, totalKmers);
+
+        long uniqueKmers = 0, uniqueAdded = 0, newKmers = 0;
+        it = hm.entryIterator();
         while (it.hasNext()) {
             MutableLongShortEntry entry = it.next();
             uniqueKmers++;
-            int value = entry.getValue();
-            if (value > freqThreshold) {
+            if (entry.getValue() > freqThreshold) {
                 uniqueAdded++;
-                int old = superHM.addAndBound(entry.getKey(), (short)1);
-                if (old == 0) {
+                if (addToSupergraph(superHM, entry.getKey())) {
                     newKmers++;
                 }
             }
         }
 
+        KmersMapBackend.release(hm);
+
         debug("Reads from " + readsFile.getPath() + " added with threshold " + freqThreshold);
         debug("Unique k-mers count = " + uniqueKmers + ", unique k-mers added " + uniqueAdded +
                 ", new k-mers added = " + newKmers);
     }
 
-    private int getThreshold(BigLong2ShortHashMap hm) {
+    private void addKmersToSupergraph(final BigLong2ShortHashMap superHM, File kmersFile, int threads)
+            throws ExecutionFailedException {
+        int freqThreshold;
         if (maximalBadFrequency.get() != null) {
-            return maximalBadFrequency.get();
+            freqThreshold = maximalBadFrequency.get();
+        } else {
+            StatWorker[] statWorkers = new StatWorker[threads];
+            for (int i = 0; i < threads; i++) {
+                statWorkers[i] = new StatWorker(STAT_LEN);
+            }
+            IOUtils.run(new File[]{kmersFile}, statWorkers, null, logger);
+            long totalKmers = 0;
+            int[] stat = new int[STAT_LEN];
+            for (StatWorker worker : statWorkers) {
+                totalKmers += worker.totalKmers;
+                for (int i = 0; i < stat.length; i++) {
+                    stat[i] += worker.stat[i];
+                }
+            }
+            freqThreshold = getThreshold(stat, totalKmers);
+        }
+
+        final int threshold = freqThreshold;
+        final AtomicLong uniqueAdded = new AtomicLong(), newKmers = new AtomicLong();
+        BytesWorker[] workers = new BytesWorker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new KmersLoadWorker() {
+                @Override
+                public void processKmer(long kmer, short freq) {
+                    if (freq > threshold) {
+                        uniqueAdded.incrementAndGet();
+                        if (addToSupergraph(superHM, kmer)) {
+                            newKmers.incrementAndGet();
+                        }
+                    }
+                }
+            };
+        }
+        IOUtils.run(new File[]{kmersFile}, workers, null, logger);
+
+        debug("K-mers from " + kmersFile.getPath() + " added with threshold " + freqThreshold);
+        debug("Unique k-mers added " + uniqueAdded.get() + ", new k-mers added = " + newKmers.get());
+    }
+
+    /**
+     * Increments the number of samples containing the k-mer, new k-mers are skipped if supergraph is full.
+     *
+     * @return true if the k-mer is new for supergraph
+     */
+    private boolean addToSupergraph(BigLong2ShortHashMap superHM, long kmer) {
+        if (supergraphKmers.get() >= MAX_SIZE && superHM.getWithZero(kmer) == 0) {
+            skippedKmers.incrementAndGet();
+            return false;
+        }
+        if (superHM.addAndBound(kmer, (short) 1) == 0) {
+            supergraphKmers.incrementAndGet();
+            return true;
         }
+        return false;
+    }
 
+    static class StatWorker extends KmersLoadWorker {
+        final int[] stat;
         long totalKmers = 0;
-        int[] stat = new int[STAT_LEN];
-        Iterator<MutableLongShortEntry> it = hm.entryIterator();
-        while (it.hasNext()) {
-            MutableLongShortEntry entry = it.next();
-            int v = entry.getValue();
-            totalKmers += v;
-            if (v >= stat.length) {
-                v = stat.length - 1;
-            }
-            ++stat[v];
+
+        StatWorker(int statLen) {
+            stat = new int[statLen];
+        }
+
+        @Override
+        public void processKmer(long kmer, short freq) {
+            totalKmers += freq;
+            ++stat[Math.min(freq, stat.length - 1)];
+        }
+    }
+
+    private int getThreshold(int[] stat, long totalKmers) {
+        if (maximalBadFrequency.get() != null) {
+            return maximalBadFrequency.get();
         }
 
         if (bottomCutPercent.get() != null) {
@@ -172,151 +327,42 @@ public class SupergraphSeqBuilderMain extends Tool {
         return 0;
     }
 
-    public void calcSequences(BigLong2ShortHashMap hm, String fastaFP) throws FileNotFoundException {
+    public void calcSequences(BigLong2ShortHashMap hm, File fastaFile) throws ExecutionFailedException, IOException {
         int freqThreshold = supergraphFreq.get();
         int lenThreshold = sequenceLen.get();
         int kValue = k.get();
 
-        banKmers(hm, freqThreshold, kValue);
+        HashMapOperations.banBranchingKmers(hm, freqThreshold, kValue, availableProcessors.get(), logger);
 
-        int sequenceId = 0;
+        Deque<Sequence> sequences;
+        try {
+            sequences = SequencesFinders.thresholdStrategy(hm, availableProcessors.get(),
+                    freqThreshold, lenThreshold, kValue);
+        } catch (InterruptedException e) {
+            throw new ExecutionFailedException("Thread was interrupted!", e);
+        }
 
         ArrayList<Integer> sequenceLen = new ArrayList<Integer>();
         ArrayList<Long> sequenceWeight = new ArrayList<Long>();
-
         long kmersInSeq = 0;
         long totalKmersInSequences = 0;
-
-        PrintWriter fastaPW = new PrintWriter(fastaFP);
-
-        Iterator<MutableLongShortEntry> it = hm.entryIterator();
-        while (it.hasNext()) {
-            MutableLongShortEntry entry = it.next();
-            long key = entry.getKey();
-            int value = entry.getValue();
-            if (value <= freqThreshold) {
-                continue;
-            }
-            ShortKmer kmer = new ShortKmer(key, kValue);
-
-            if (getLeftNucleotide(kmer, hm, freqThreshold) >= 0) {
-                continue;
-            }
-
-            StringBuilder sequenceSB = new StringBuilder(kmer.toString());
-            long seqWeight = 0, minWeight = value, maxWeight = value;
-
-            while (true) {
-                long kmerRepr = kmer.toLong();
-                value = hm.getWithZero(kmerRepr);
-                seqWeight += value;
-                minWeight = Math.min(minWeight, value);
-                maxWeight = Math.max(maxWeight, value);
-
-                hm.put(kmerRepr, BAN_VALUE);
-
-                byte rightNuc = getRightNucleotide(kmer, hm, freqThreshold);
-                if (rightNuc < 0) {
-                    break;
-                }
-                sequenceSB.append(DnaTools.toChar(rightNuc));
-                kmer.shiftRight(rightNuc);
-            }
-
-            if (sequenceSB.length() >= lenThreshold) {
-                sequenceId++;
-                String sequenceStr = sequenceSB.toString();
-
-                sequenceLen.add(sequenceStr.length());
-                sequenceWeight.add(seqWeight);
-
-                totalKmersInSequences += seqWeight;
-                kmersInSeq += sequenceStr.length() - kValue + 1;
-
-                String seqInfo = String.format(">%d length=%d sum_weight=%d min_weight=%d max_weight=%d",
-                        sequenceId, sequenceStr.length(), seqWeight, minWeight, maxWeight);
-                fastaPW.println(seqInfo);
-                fastaPW.println(sequenceStr);
-
-                if (sequenceId % 10000 == 0) {
-                    debug("sequenceId = " + sequenceId + ", last len = " + sequenceStr.length());
-                }
-            }
-
+        for (Sequence sequence : sequences) {
+            int kmersCount = sequence.length() - kValue + 1;
+            long seqWeight = (long) sequence.averageWeight() * kmersCount;
+            sequenceLen.add(sequence.length());
+            sequenceWeight.add(seqWeight);
+            kmersInSeq += kmersCount;
+            totalKmersInSequences += seqWeight;
         }
-        info(sequenceId + " sequences found");
+
+        Sequence.printSequences(sequences, fastaFile);
+        info(sequences.size() + " sequences found");
         info(kmersInSeq + " unique k-mers out of " + hm.size() + " in sequences");
         info("Total k-mers in sequences = " + totalKmersInSequences);
         info("N50 value of sequences = " + getN50(sequenceLen));
+        info("Sequences printed to " + fastaFile);
 
         dumpSeqInfo(sequenceLen, sequenceWeight, workDir + File.separator + "seq-info");
-
-        fastaPW.close();
-    }
-
-    final short BAN_VALUE = -1;
-    private void banKmers(BigLong2ShortHashMap hm, int freqThreshold, int k) {
-        long totalKmers = 0, uniqueKmers = 0,
-                totalBanned = 0, uniqueBanned = 0,
-                totalUnderThreshold = 0, uniqueUnderThreshold = 0;
-
-        Iterator<MutableLongShortEntry> it = hm.entryIterator();
-        while (it.hasNext()) {
-            MutableLongShortEntry entry = it.next();
-            long key = entry.getKey();
-            int value = entry.getValue();
-            totalKmers += value;
-            uniqueKmers++;
-            if (value <= freqThreshold) {
-                totalUnderThreshold += value;
-                uniqueUnderThreshold++;
-                continue;
-            }
-
-            ShortKmer kmer = new ShortKmer(key, k);
-            if (getLeftNucleotide(kmer, hm, freqThreshold) == -2 ||
-                    getRightNucleotide(kmer, hm, freqThreshold) == -2) {
-                hm.put(key, BAN_VALUE);
-                totalBanned += value;
-                uniqueBanned++;
-            }
-        }
-
-        info("Total k-mers = " + totalKmers + ", unique k-mers = " + uniqueKmers);
-        info("Total k-mers [<=] threshold = " + totalUnderThreshold + ", unique = " + uniqueUnderThreshold);
-        info("Total k-mers banned = " + totalBanned + ", unique = " + uniqueBanned);
-    }
-
-    private static byte getLeftNucleotide(ShortKmer kmer, BigLong2ShortHashMap hm, int freqThreshold) {
-        byte rightNuc = kmer.nucAt(kmer.length() - 1);
-        byte ansNuc = -1;
-        for (byte nuc = 0; nuc <= 3; nuc++) {
-            kmer.shiftLeft(nuc);
-            if (hm.get(kmer.toLong()) > freqThreshold) {
-                if (ansNuc > -1) {
-                    return -2;
-                }
-                ansNuc = nuc;
-            }
-            kmer.shiftRight(rightNuc);
-        }
-        return ansNuc;
-    }
-
-    private static byte getRightNucleotide(ShortKmer kmer, BigLong2ShortHashMap hm, int freqThreshold) {
-        byte leftNuc = kmer.nucAt(0);
-        byte ansNuc = -1;
-        for (byte nuc = 0; nuc <= 3; nuc++) {
-            kmer.shiftRight(nuc);
-            if (hm.get(kmer.toLong()) > freqThreshold) {
-                if (ansNuc > -1) {
-                    return -2;
-                }
-                ansNuc = nuc;
-            }
-            kmer.shiftLeft(leftNuc);
-        }
-        return ansNuc;
     }
 
     void dumpStat(int[] stat, String filename) throws FileNotFoundException {
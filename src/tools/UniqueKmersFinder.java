@@ -2,7 +2,7 @@ package tools;
 
 import io.IOUtils;
 import ru.ifmo.genetics.statistics.Timer;
-import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
+import ru.ifmo.genetics.structures.map.Long2ShortHashMapInterface;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
 import ru.ifmo.genetics.utils.Misc;
 import ru.ifmo.genetics.utils.NumUtils;
@@ -14,6 +14,7 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.FileParameterBuilder;
 import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
+import structures.KmersMapBackend;
 
 import java.io.File;
 import java.io.IOException;
@@ -83,64 +84,72 @@ public class UniqueKmersFinder extends Tool {
 
         Timer t = new Timer();
 
-        BigLong2ShortHashMap hm = IOUtils.loadKmers(inputFiles.get(), maximalBadFrequency.get(),
+        Long2ShortHashMapInterface hm = IOUtils.loadKmersMap(inputFiles.get(), maximalBadFrequency.get(), false,
                 availableProcessors.get(), logger);
         debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
-        for (File file : filterFiles.get()) {
-            BigLong2ShortHashMap filt_hm = IOUtils.loadKmers(new File[]{file}, maximalBadFrequency.get(),
-                    availableProcessors.get(), logger);
-            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-            Iterator<MutableLongShortEntry> it = filt_hm.entryIterator();
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                long key = entry.getKey();
-                short value = entry.getValue();
-
-                if (value > maximalBadFrequency.get() && hm.get(key) > maximalBadFrequency.get()) {
-                    hm.put(key, (short) 0);
+        try {
+            for (File file : filterFiles.get()) {
+                Long2ShortHashMapInterface filt_hm = IOUtils.loadKmersMap(new File[]{file}, maximalBadFrequency.get(), false,
+                        availableProcessors.get(), logger);
+                debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
+
+                try {
+                    Iterator<MutableLongShortEntry> it = filt_hm.entryIterator();
+                    while (it.hasNext()) {
+                        MutableLongShortEntry entry = it.next();
+                        long key = entry.getKey();
+                        short value = entry.getValue();
+
+                        if (value > maximalBadFrequency.get() && hm.get(key) > maximalBadFrequency.get()) {
+                            hm.put(key, (short) 0);
+                        }
+                    }
+                } finally {
+                    KmersMapBackend.release(filt_hm);
                 }
             }
-        }
 
-        File outDir = outputDir.get();
-        if (!outDir.exists()) {
-            outDir.mkdirs();
-        }
-        File stDir = statsDir.get();
-        if (!stDir.exists()) {
-            stDir.mkdirs();
-        }
-        File outFile = new File(outDir, "filtered.kmers.bin");
-        File stFile = new File(stDir, "filtered.stat.txt");
+            File outDir = outputDir.get();
+            if (!outDir.exists()) {
+                outDir.mkdirs();
+            }
+            File stDir = statsDir.get();
+            if (!stDir.exists()) {
+                stDir.mkdirs();
+            }
+            File outFile = new File(outDir, "filtered.kmers.bin");
+            File stFile = new File(stDir, "filtered.stat.txt");
 
 
-        debug("Starting to print k-mers to " + outFile.getPath());
-        long c = 0;
-        try {
-            c = IOUtils.printKmers(hm, maximalBadFrequency.get(), outFile, stFile);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        info(NumUtils.groupDigits(hm.size()) + " k-mers found, "
-                + NumUtils.groupDigits(c) + " (" + String.format("%.1f", c * 100.0 / hm.size())
-                + "%) of them is good (present in one dataset and missing in other)");
-
-        if (hm.size() == 0) {
-            warn("No k-mers found in reads! Perhaps you reads file is empty or k-mer size is too big");
-        } else if (c == 0 || c < (long) (hm.size() * 0.03)) {
-            warn("Too few good k-mers were found! Perhaps you should decrease k-mer size or --maximal-bad-frequency value");
-        }
-        long allKmersNumber = (1L << (2*k.get())) / 2;  // (4^k)/2
-        if (hm.size() == allKmersNumber) {
-            warn("All possible k-mers were found in reads! Perhaps you should increase k-mer size");
-        } else if (hm.size() >= (long) (allKmersNumber * 0.99)) {
-            warn("Almost all possible k-mers were found in reads! Perhaps you should increase k-mer size");
-        }
+            debug("Starting to print k-mers to " + outFile.getPath());
+            long c = 0;
+            try {
+                c = IOUtils.printKmers(hm, maximalBadFrequency.get(), outFile, stFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            info(NumUtils.groupDigits(hm.size()) + " k-mers found, "
+                    + NumUtils.groupDigits(c) + " (" + String.format("%.1f", c * 100.0 / hm.size())
+                    + "%) of them is good (present in one dataset and missing in other)");
+
+            if (hm.size() == 0) {
+                warn("No k-mers found in reads! Perhaps you reads file is empty or k-mer size is too big");
+            } else if (c == 0 || c < (long) (hm.size() * 0.03)) {
+                warn("Too few good k-mers were found! Perhaps you should decrease k-mer size or --maximal-bad-frequency value");
+            }
+            long allKmersNumber = (1L << (2*k.get())) / 2;  // (4^k)/2
+            if (hm.size() == allKmersNumber) {
+                warn("All possible k-mers were found in reads! Perhaps you should increase k-mer size");
+            } else if (hm.size() >= (long) (allKmersNumber * 0.99)) {
+                warn("Almost all possible k-mers were found in reads! Perhaps you should increase k-mer size");
+            }
 
-        info("Good k-mers printed to " + outFile.getPath());
+            info("Good k-mers printed to " + outFile.getPath());
+        } finally {
+            KmersMapBackend.release(hm);
+        }
     }
 
     @Override
@@ -1,7 +1,10 @@
 package tools;
 
+import io.BytesWorker;
 import io.IOUtils;
+import io.KmersLoadWorker;
 import ru.ifmo.genetics.statistics.Timer;
+import ru.ifmo.genetics.structures.map.BigLong2IntHashMap;
 import ru.ifmo.genetics.structures.map.BigLong2ShortHashMap;
 import ru.ifmo.genetics.structures.map.MutableLongShortEntry;
 import ru.ifmo.genetics.utils.Misc;
@@ -15,8 +18,7 @@ import ru.ifmo.genetics.utils.tool.inputParameterBuilder.IntParameterBuilder;
 import ru.ifmo.genetics.utils.tool.values.InMemoryValue;
 import ru.ifmo.genetics.utils.tool.values.InValue;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.util.Iterator;
 
 /**
@@ -95,43 +97,27 @@ public class UniqueKmersMultipleSamplesFinder extends Tool {
 
         Timer t = new Timer();
 
-        BigLong2ShortHashMap hm = new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 8);
-        BigLong2ShortHashMap hm_cnt = new BigLong2ShortHashMap((int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4, 8);
-        for (File file : inputFiles.get()) {
-            BigLong2ShortHashMap tmp_hm = IOUtils.loadKmers(new File[]{file}, maximalBadFrequency.get(),
-                    availableProcessors.get(), logger);
-            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-            Iterator<MutableLongShortEntry> it = tmp_hm.entryIterator();
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                long key = entry.getKey();
-                short value = entry.getValue();
-
-                if (value > maximalBadFrequency.get()) {
-                    hm.put(key, (short) (hm.getWithZero(key) + value));
-                    hm_cnt.put(key, (short) (hm_cnt.getWithZero(key) + 1));
-                }
-            }
+        // maps are pre-sized, so they aren't rehashed during loading
+        long expectedSize = IOUtils.estimateKmersCount(inputFiles.get(), maximalBadFrequency.get(),
+                availableProcessors.get(), logger);
+        int logMapsNumber = (int) (Math.log(availableProcessors.get()) / Math.log(2)) + 4;
+        int logSmallCapacity = IOUtils.logSmallCapacity(expectedSize, logMapsNumber);
+        BigLong2ShortHashMap hm = new BigLong2ShortHashMap(logMapsNumber, logSmallCapacity);
+        BigLong2IntHashMap hm_cnt = new BigLong2IntHashMap(logMapsNumber, logSmallCapacity);
+
+        // k-mers are unique in every file, so every good record adds one sample to the k-mer's counter
+        BytesWorker[] workers = new BytesWorker[availableProcessors.get()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new SamplesCountingWorker(hm, hm_cnt, maximalBadFrequency.get());
         }
+        IOUtils.run(inputFiles.get(), workers, hm, logger);
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
-
-        for (File file : filterFiles.get()) {
-            BigLong2ShortHashMap filt_hm = IOUtils.loadKmers(new File[]{file}, maximalBadFrequency.get(),
-                    availableProcessors.get(), logger);
-            debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
-
-            Iterator<MutableLongShortEntry> it = filt_hm.entryIterator();
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                long key = entry.getKey();
-                short value = entry.getValue();
-
-                if (value > maximalBadFrequency.get() && hm.get(key) > maximalBadFrequency.get()) {
-                    hm.put(key, (short) 0);
-                }
-            }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new FilteringWorker(hm, maximalBadFrequency.get());
         }
+        IOUtils.run(filterFiles.get(), workers, hm, logger);
+        debug("Memory used = " + Misc.usedMemoryAsString() + ", time = " + t);
 
 
 
@@ -144,17 +130,40 @@ public class UniqueKmersMultipleSamplesFinder extends Tool {
             stDir.mkdirs();
         }
 
-        for (int i = minSamples.get(); i < maxSamples.get() + 1; i++) {
-            File outFile = new File(outDir, "filtered_" + i + ".kmers.bin");
-
+        // all output files are written in one pass over the map,
+        // k-mer present in c samples goes to every filtered_i file with i <= c
+        int min = minSamples.get(), max = maxSamples.get();
+        File[] outFiles = new File[Math.max(max - min + 1, 0)];
+        DataOutputStream[] streams = new DataOutputStream[outFiles.length];
+        long[] good = new long[outFiles.length];
+        for (int i = 0; i < outFiles.length; i++) {
+            outFiles[i] = new File(outDir, "filtered_" + (min + i) + ".kmers.bin");
+            debug("Starting to print k-mers to " + outFiles[i].getPath());
+            streams[i] = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(outFiles[i]), 1 << 22));   // 4 Mb buffer
+        }
 
-            debug("Starting to print k-mers to " + outFile.getPath());
-            long c = 0;
-            try {
-                c = IOUtils.filterAndPrintKmers(hm, hm_cnt, maximalBadFrequency.get(), i-1, outFile);
-            } catch (IOException e) {
-                e.printStackTrace();
+        Iterator<MutableLongShortEntry> it = hm.entryIterator();
+        while (it.hasNext()) {
+            MutableLongShortEntry entry = it.next();
+            short value = entry.getValue();
+            if (value <= maximalBadFrequency.get()) {
+                continue;
             }
+            long key = entry.getKey();
+            int last = Math.min(hm_cnt.getWithZero(key), max) - min;
+            for (int i = 0; i <= last; i++) {
+                streams[i].writeLong(key);
+                streams[i].writeShort(value);
+                good[i]++;
+            }
+        }
+        for (DataOutputStream stream : streams) {
+            stream.close();
+        }
+
+        for (int i = 0; i < outFiles.length; i++) {
+            long c = good[i];
             info(NumUtils.groupDigits(hm.size()) + " k-mers found, "
                     + NumUtils.groupDigits(c) + " (" + String.format("%.1f", c * 100.0 / hm.size())
                     + "%) of them is good (present in one dataset and missing in other)");
@@ -171,7 +180,45 @@ public class UniqueKmersMultipleSamplesFinder extends Tool {
                 warn("Almost all possible k-mers were found in reads! Perhaps you should increase k-mer size");
             }
 
-            info("Good k-mers printed to " + outFile.getPath());
+            info("Good k-mers printed to " + outFiles[i].getPath());
+        }
+    }
+
+
+    private static class SamplesCountingWorker extends KmersLoadWorker {
+        SamplesCountingWorker(BigLong2ShortHashMap hm, BigLong2IntHashMap hm_cnt, int freqThreshold) {
+            this.hm = hm;
+            this.hm_cnt = hm_cnt;
+            this.freqThreshold = freqThreshold;
+        }
+
+        final BigLong2ShortHashMap hm;
+        final BigLong2IntHashMap hm_cnt;
+        final int freqThreshold;
+
+        @Override
+        public void processKmer(long kmer, short freq) {
+            if (freq > freqThreshold) {
+                hm.addAndBound(kmer, freq);
+                hm_cnt.addAndBound(kmer, 1);
+            }
+        }
+    }
+
+    private static class FilteringWorker extends KmersLoadWorker {
+        FilteringWorker(BigLong2ShortHashMap hm, int freqThreshold) {
+            this.hm = hm;
+            this.freqThreshold = freqThreshold;
+        }
+
+        final BigLong2ShortHashMap hm;
+        final int freqThreshold;
+
+        @Override
+        public void processKmer(long kmer, short freq) {
+            if (freq > freqThreshold && hm.get(kmer) > freqThreshold) {
+                hm.put(kmer, (short) 0);
+            }
         }
     }
 
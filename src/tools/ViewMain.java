@@ -1,6 +1,8 @@
 package tools;
 
 import io.IOUtils;
+import io.KmersTextWriter;
+import io.VectorsIO;
 import it.unimi.dsi.fastutil.longs.Long2IntMap;
 import ru.ifmo.genetics.ToolTemplate;
 import ru.ifmo.genetics.dna.Dna;
@@ -49,6 +51,12 @@ public class ViewMain extends Tool {
             .withDescription("binary components file")
             .create());
 
+    public final Parameter<File> vectorFile = addParameter(new FileParameterBuilder("vector-file")
+            .important()
+            .withShortOpt("vf")
+            .withDescription("features vector file (.vec or .breadth) in binary or text format")
+            .create());
+
 
     public final Parameter<File> outputFile = addParameter(new FileParameterBuilder("output-file")
             .important()
@@ -62,7 +70,7 @@ public class ViewMain extends Tool {
 
     @Override
     protected void runImpl() throws ExecutionFailedException {
-        if (kmersFile.get() == null && componentsFile.get() == null) {
+        if (kmersFile.get() == null && componentsFile.get() == null && vectorFile.get() == null) {
             logger.warn("No input file is selected  --->  no data to display!");
             return;
         }
@@ -81,16 +89,15 @@ public class ViewMain extends Tool {
         }
 
         if (kmersFile.get() != null) {
-            BigLong2ShortHashMap kmersHM =
-                    IOUtils.loadKmers(new File[]{kmersFile.get()}, 0, availableProcessors.get(), logger);
-
             logger.info("Printing kmers...");
             out.println("Kmer\tCount");
-            Iterator<MutableLongShortEntry> it = kmersHM.entryIterator();
-            while (it.hasNext()) {
-                MutableLongShortEntry entry = it.next();
-                out.println(new ShortKmer(entry.getKey(), k.get()) + "\t" + entry.getValue());
-            }
+            final int _k = k.get();
+            KmersTextWriter.print(kmersFile.get(), out, new KmersTextWriter.RecordFormatter() {
+                @Override
+                public void format(long kmer, short freq, long number, KmersTextWriter.TextChunk chunk) {
+                    chunk.appendKmer(kmer, _k).append('\t').append(freq).append('\n');
+                }
+            }, availableProcessors.get(), logger);
         }
 
 
@@ -115,6 +122,24 @@ public class ViewMain extends Tool {
         }
 
 
+        if (vectorFile.get() != null) {
+            double[] vector;
+            try {
+                vector = VectorsIO.readVector(vectorFile.get());
+            } catch (IOException e) {
+                throw new ExecutionFailedException("Can't read vector from file " + vectorFile.get(), e);
+            }
+            info(vector.length + " values loaded from " + vectorFile.get());
+            for (double value : vector) {
+                if (value == (long) value) {
+                    out.println((long) value);
+                } else {
+                    out.println(value);
+                }
+            }
+        }
+
+
         out.close();
     }
 